@@ -43,6 +43,8 @@ public final class Id {
 
         public static final class compression {
             public static final int none = 0x21070001;
+            // ZLIB if the input is compressible
+            public static final int auto = 0x21070002;
             public static final int zlib = CompressionAlgorithmTags.ZLIB;
             public static final int bzip2 = CompressionAlgorithmTags.BZIP2;
             public static final int zip = CompressionAlgorithmTags.ZIP;
@@ -100,7 +100,7 @@ public class Preferences {
 
     public int getDefaultMessageCompression() {
         return mSharedPreferences.getInt(Constants.Pref.DEFAULT_MESSAGE_COMPRESSION,
-                Constants.choice.compression.zlib);
+                Constants.choice.compression.auto);
     }
 
     public void setDefaultMessageCompression(int value) {
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.bcpg.ArmoredInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the input of a cleartext signature into lines, see
+ * http://tools.ietf.org/html/rfc4880#section-7.1
+ * Works on bytes, the text is never decoded. Lines end with LF, CR LF or CR and trailing
+ * whitespace is removed. The returned line is only valid until the next call of readLine().
+ * <p/>
+ * When reading from an ArmoredInputStream, the input ends with the cleartext, the signature
+ * following it is left in the stream.
+ */
+public class CleartextLineReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private InputStream mIn;
+    private ArmoredInputStream mArmoredIn;
+
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferPos = 0;
+    private int mBufferEnd = 0;
+
+    private byte[] mLine = new byte[256];
+    private int mLineLength = 0;
+    private boolean mSkipLf = false;
+
+    public CleartextLineReader(InputStream in) {
+        mIn = in;
+        if (in instanceof ArmoredInputStream) {
+            mArmoredIn = (ArmoredInputStream) in;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (mArmoredIn != null) {
+            return fillClearText();
+        }
+
+        int n;
+        do {
+            n = mIn.read(mBuffer);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        mBufferPos = 0;
+        mBufferEnd = n;
+        return true;
+    }
+
+    /**
+     * ArmoredInputStream only tells after a read whether the byte still belonged to the
+     * cleartext, so it has to be read byte by byte. The first byte after the cleartext is the
+     * start of the signature header and dropped, like ArmoredInputStream expects.
+     */
+    private boolean fillClearText() throws IOException {
+        int n = 0;
+        while (n < mBuffer.length && mArmoredIn.isClearText()) {
+            int ch = mArmoredIn.read();
+            if (ch < 0 || !mArmoredIn.isClearText()) {
+                break;
+            }
+            mBuffer[n++] = (byte) ch;
+        }
+        if (n == 0) {
+            return false;
+        }
+        mBufferPos = 0;
+        mBufferEnd = n;
+        return true;
+    }
+
+    /**
+     * @return length of the next line without line ending and trailing whitespace or -1 at the
+     * end of the input
+     */
+    public int readLine() throws IOException {
+        int length = 0;
+        boolean eof = false;
+
+        while (true) {
+            if (mBufferPos == mBufferEnd && !fill()) {
+                eof = true;
+                break;
+            }
+
+            if (mSkipLf) {
+                mSkipLf = false;
+                if (mBuffer[mBufferPos] == '\n') {
+                    mBufferPos++;
+                    continue;
+                }
+            }
+
+            // copy everything up to the next line ending at once
+            int start = mBufferPos;
+            while (mBufferPos < mBufferEnd && mBuffer[mBufferPos] != '\n'
+                    && mBuffer[mBufferPos] != '\r') {
+                mBufferPos++;
+            }
+            int n = mBufferPos - start;
+            if (length + n > mLine.length) {
+                byte[] line = new byte[Math.max(mLine.length * 2, length + n)];
+                System.arraycopy(mLine, 0, line, 0, length);
+                mLine = line;
+            }
+            System.arraycopy(mBuffer, start, mLine, length, n);
+            length += n;
+
+            if (mBufferPos < mBufferEnd) {
+                mSkipLf = mBuffer[mBufferPos] == '\r';
+                mBufferPos++;
+                break;
+            }
+        }
+
+        if (eof && length == 0) {
+            return -1;
+        }
+
+        mLineLength = length;
+        while (length > 0 && isWhitespace(mLine[length - 1])) {
+            length--;
+        }
+        return length;
+    }
+
+    public byte[] getLine() {
+        return mLine;
+    }
+
+    /**
+     * @return length of the last line without line ending, but including trailing whitespace
+     */
+    public int getLineLengthWithWhitespace() {
+        return mLineLength;
+    }
+
+    /**
+     * Only spaces and tabs are removed, see http://tools.ietf.org/html/rfc4880#section-7.1
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
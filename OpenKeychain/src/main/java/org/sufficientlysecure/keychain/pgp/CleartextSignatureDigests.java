@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import android.util.SparseArray;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.Signer;
+import org.spongycastle.crypto.digests.MD5Digest;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+import org.spongycastle.crypto.digests.SHA1Digest;
+import org.spongycastle.crypto.digests.SHA224Digest;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.digests.SHA384Digest;
+import org.spongycastle.crypto.digests.SHA512Digest;
+import org.spongycastle.crypto.signers.DSADigestSigner;
+import org.spongycastle.crypto.signers.DSASigner;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.RSADigestSigner;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.PGPContentVerifier;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilder;
+import org.spongycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.bc.BcPGPKeyConverter;
+
+import java.io.OutputStream;
+
+/**
+ * In cleartext signed messages the signature follows the signed text, so the text can not be
+ * fed into a PGPSignature while it is read. Instead, this class digests the canonicalized text
+ * with all hash algorithms announced in the "Hash" armor header. Afterwards it is used as
+ * PGPContentVerifierBuilderProvider for PGPSignature.init(), which then only has to add the
+ * signature trailer to the precomputed digest in PGPSignature.verify().
+ * <p/>
+ * Every verifier works on a copy of the digest, so any number of signatures can be verified
+ * with the same hash algorithm.
+ */
+public class CleartextSignatureDigests implements PGPContentVerifierBuilderProvider {
+    private static final String HASH_HEADER = "Hash:";
+
+    private SparseArray<Digest> mDigests = new SparseArray<Digest>();
+
+    /**
+     * @param armorHeaders armor headers of the cleartext signed message
+     */
+    public CleartextSignatureDigests(String[] armorHeaders) {
+        if (armorHeaders != null) {
+            for (String header : armorHeaders) {
+                if (!header.startsWith(HASH_HEADER)) {
+                    continue;
+                }
+                for (String name : header.substring(HASH_HEADER.length()).split(",")) {
+                    addDigest(getHashAlgorithm(name.trim()));
+                }
+            }
+        }
+
+        if (mDigests.size() == 0) {
+            // MD5 is implied without "Hash" header (RFC 4880, 7.), but some implementations
+            // omit the header for other algorithms as well
+            addDigest(HashAlgorithmTags.MD5);
+            addDigest(HashAlgorithmTags.SHA1);
+            addDigest(HashAlgorithmTags.SHA256);
+            addDigest(HashAlgorithmTags.SHA512);
+        }
+    }
+
+    private void addDigest(int hashAlgorithm) {
+        Digest digest = createDigest(hashAlgorithm);
+        if (digest != null) {
+            mDigests.put(hashAlgorithm, digest);
+        }
+    }
+
+    public void update(byte b) {
+        for (int i = 0; i < mDigests.size(); i++) {
+            mDigests.valueAt(i).update(b);
+        }
+    }
+
+    public void update(byte[] buf, int off, int len) {
+        for (int i = 0; i < mDigests.size(); i++) {
+            mDigests.valueAt(i).update(buf, off, len);
+        }
+    }
+
+    @Override
+    public PGPContentVerifierBuilder get(final int keyAlgorithm, final int hashAlgorithm)
+            throws PGPException {
+        final Digest digest = mDigests.get(hashAlgorithm);
+        if (digest == null) {
+            throw new PGPException("hash algorithm " + hashAlgorithm
+                    + " not announced in armor header");
+        }
+
+        return new PGPContentVerifierBuilder() {
+            @Override
+            public PGPContentVerifier build(final PGPPublicKey publicKey) throws PGPException {
+                // the signature trailer is added to a copy, the text digest stays reusable
+                final Signer signer = createSigner(keyAlgorithm,
+                        new PrecomputedDigest(copyDigest(hashAlgorithm, digest)));
+                signer.init(false, new BcPGPKeyConverter().getPublicKey(publicKey));
+
+                return new PGPContentVerifier() {
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return new OutputStream() {
+                            @Override
+                            public void write(int b) {
+                                signer.update((byte) b);
+                            }
+
+                            @Override
+                            public void write(byte[] buf, int off, int len) {
+                                signer.update(buf, off, len);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int getHashAlgorithm() {
+                        return hashAlgorithm;
+                    }
+
+                    @Override
+                    public int getKeyAlgorithm() {
+                        return keyAlgorithm;
+                    }
+
+                    @Override
+                    public long getKeyID() {
+                        return publicKey.getKeyID();
+                    }
+
+                    @Override
+                    public boolean verify(byte[] expected) {
+                        return signer.verifySignature(expected);
+                    }
+                };
+            }
+        };
+    }
+
+    private static Signer createSigner(int keyAlgorithm, Digest digest) throws PGPException {
+        switch (keyAlgorithm) {
+            case PublicKeyAlgorithmTags.RSA_GENERAL:
+            case PublicKeyAlgorithmTags.RSA_SIGN:
+                return new RSADigestSigner(digest);
+            case PublicKeyAlgorithmTags.DSA:
+                return new DSADigestSigner(new DSASigner(), digest);
+            case PublicKeyAlgorithmTags.ECDSA:
+                return new DSADigestSigner(new ECDSASigner(), digest);
+            default:
+                throw new PGPException("cannot recognise keyAlgorithm: " + keyAlgorithm);
+        }
+    }
+
+    private static int getHashAlgorithm(String name) {
+        if ("MD5".equals(name)) {
+            return HashAlgorithmTags.MD5;
+        } else if ("SHA1".equals(name)) {
+            return HashAlgorithmTags.SHA1;
+        } else if ("RIPEMD160".equals(name)) {
+            return HashAlgorithmTags.RIPEMD160;
+        } else if ("SHA224".equals(name)) {
+            return HashAlgorithmTags.SHA224;
+        } else if ("SHA256".equals(name)) {
+            return HashAlgorithmTags.SHA256;
+        } else if ("SHA384".equals(name)) {
+            return HashAlgorithmTags.SHA384;
+        } else if ("SHA512".equals(name)) {
+            return HashAlgorithmTags.SHA512;
+        }
+        return -1;
+    }
+
+    private static Digest createDigest(int hashAlgorithm) {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.MD5:
+                return new MD5Digest();
+            case HashAlgorithmTags.SHA1:
+                return new SHA1Digest();
+            case HashAlgorithmTags.RIPEMD160:
+                return new RIPEMD160Digest();
+            case HashAlgorithmTags.SHA224:
+                return new SHA224Digest();
+            case HashAlgorithmTags.SHA256:
+                return new SHA256Digest();
+            case HashAlgorithmTags.SHA384:
+                return new SHA384Digest();
+            case HashAlgorithmTags.SHA512:
+                return new SHA512Digest();
+            default:
+                return null;
+        }
+    }
+
+    private static Digest copyDigest(int hashAlgorithm, Digest digest) {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.MD5:
+                return new MD5Digest((MD5Digest) digest);
+            case HashAlgorithmTags.SHA1:
+                return new SHA1Digest((SHA1Digest) digest);
+            case HashAlgorithmTags.RIPEMD160:
+                return new RIPEMD160Digest((RIPEMD160Digest) digest);
+            case HashAlgorithmTags.SHA224:
+                return new SHA224Digest((SHA224Digest) digest);
+            case HashAlgorithmTags.SHA256:
+                return new SHA256Digest((SHA256Digest) digest);
+            case HashAlgorithmTags.SHA384:
+                return new SHA384Digest((SHA384Digest) digest);
+            case HashAlgorithmTags.SHA512:
+                return new SHA512Digest((SHA512Digest) digest);
+            default:
+                throw new IllegalArgumentException("unknown hash algorithm " + hashAlgorithm);
+        }
+    }
+
+    /**
+     * Signers reset their digest on init(), which would discard the already digested text.
+     */
+    private static class PrecomputedDigest implements Digest {
+        private Digest mDigest;
+
+        PrecomputedDigest(Digest digest) {
+            mDigest = digest;
+        }
+
+        @Override
+        public String getAlgorithmName() {
+            return mDigest.getAlgorithmName();
+        }
+
+        @Override
+        public int getDigestSize() {
+            return mDigest.getDigestSize();
+        }
+
+        @Override
+        public void update(byte in) {
+            mDigest.update(in);
+        }
+
+        @Override
+        public void update(byte[] in, int inOff, int len) {
+            mDigest.update(in, inOff, len);
+        }
+
+        @Override
+        public int doFinal(byte[] out, int outOff) {
+            return mDigest.doFinal(out, outOff);
+        }
+
+        @Override
+        public void reset() {
+            // keep the precomputed state
+        }
+    }
+}
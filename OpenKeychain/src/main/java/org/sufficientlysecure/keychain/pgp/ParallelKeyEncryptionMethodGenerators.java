@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.bcpg.ContainedPacket;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PGPEncryptedDataGenerator.open() encrypts the session key for one recipient after the other.
+ * The generators returned by add() are added to the PGPEncryptedDataGenerator instead of the
+ * actual generators. When the first of them is asked for its packet, the session key is
+ * encrypted for all recipients concurrently and the remaining generators only pick up their
+ * results.
+ */
+public class ParallelKeyEncryptionMethodGenerators {
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private ArrayList<PGPKeyEncryptionMethodGenerator> mGenerators =
+            new ArrayList<PGPKeyEncryptionMethodGenerator>();
+    private ArrayList<Future<ContainedPacket>> mPackets;
+    private byte[] mSessionInfo;
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * @param generator generator for a single recipient
+     * @return generator to add to the PGPEncryptedDataGenerator instead
+     */
+    public PGPKeyEncryptionMethodGenerator add(PGPKeyEncryptionMethodGenerator generator) {
+        mGenerators.add(generator);
+        return new Member(mGenerators.size() - 1);
+    }
+
+    private synchronized Future<ContainedPacket> getPacket(int index, final int encAlgorithm,
+                                                           final byte[] sessionInfo) {
+        // a new session key is generated on every open()
+        if (mPackets == null || mSessionInfo != sessionInfo) {
+            mSessionInfo = sessionInfo;
+            mPackets = new ArrayList<Future<ContainedPacket>>(mGenerators.size());
+            for (final PGPKeyEncryptionMethodGenerator generator : mGenerators) {
+                mPackets.add(getExecutor().submit(new Callable<ContainedPacket>() {
+                    @Override
+                    public ContainedPacket call() throws Exception {
+                        return generator.generate(encAlgorithm, sessionInfo);
+                    }
+                }));
+            }
+        }
+        return mPackets.get(index);
+    }
+
+    private class Member extends PGPKeyEncryptionMethodGenerator {
+        private int mIndex;
+
+        Member(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo)
+                throws PGPException {
+            try {
+                return getPacket(mIndex, encAlgorithm, sessionInfo).get();
+            } catch (InterruptedException e) {
+                throw new PGPException("interrupted while encrypting session key", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof PGPException) {
+                    throw (PGPException) e.getCause();
+                }
+                throw new PGPException("exception encrypting session key", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.openpgp.PGPEncryptedDataList;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPPBEEncryptedData;
+import org.spongycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.spongycastle.util.encoders.Hex;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.pgp.PgpDecryptVerify.IntegrityCheckFailedException;
+import org.thialfihar.android.apg.pgp.PgpDecryptVerify.InvalidDataException;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.service.UnlockedKeyCache;
+import org.thialfihar.android.apg.util.BufferPool;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Reads arbitrary byte ranges from a container written by PgpChunkedEncrypt. open() decrypts
+ * the header with one of our secret keys or the passphrase and reads the index, afterwards only
+ * the chunks overlapping the requested range are read and decrypted.
+ * <p/>
+ * Not thread safe, the last decrypted chunk is kept for consecutive reads.
+ * <p/>
+ * This class uses a Builder pattern!
+ */
+public class PgpChunkedDecrypt {
+    private ProviderHelper mProviderHelper;
+    private PgpDecryptVerify.PassphraseCache mPassphraseCache;
+    private RandomAccessFile mFile;
+
+    private String mPassphrase;
+    private Set<Long> mAllowedKeyIds;
+    private UnlockedKeyCache mUnlockedKeyCache;
+
+    private char[] mContainerPassphrase;
+    private int mChunkSize;
+    private long mSize;
+    private long[] mOffsets;
+
+    private int mCachedChunkNumber = -1;
+    private byte[] mCachedChunk;
+
+    private PgpChunkedDecrypt(Builder builder) {
+        // private Constructor can only be called from Builder
+        this.mProviderHelper = builder.mProviderHelper;
+        this.mPassphraseCache = builder.mPassphraseCache;
+        this.mFile = builder.mFile;
+
+        this.mPassphrase = builder.mPassphrase;
+        this.mAllowedKeyIds = builder.mAllowedKeyIds;
+        this.mUnlockedKeyCache = builder.mUnlockedKeyCache;
+    }
+
+    public static class Builder {
+        // mandatory parameter
+        private ProviderHelper mProviderHelper;
+        private PgpDecryptVerify.PassphraseCache mPassphraseCache;
+        private RandomAccessFile mFile;
+
+        // optional
+        private String mPassphrase = null;
+        private Set<Long> mAllowedKeyIds = null;
+        private UnlockedKeyCache mUnlockedKeyCache = null;
+
+        public Builder(ProviderHelper providerHelper,
+                       PgpDecryptVerify.PassphraseCache passphraseCache, RandomAccessFile file) {
+            this.mProviderHelper = providerHelper;
+            this.mPassphraseCache = passphraseCache;
+            this.mFile = file;
+        }
+
+        public Builder setPassphrase(String passphrase) {
+            mPassphrase = passphrase;
+            return this;
+        }
+
+        public Builder setAllowedKeyIds(Set<Long> allowedKeyIds) {
+            mAllowedKeyIds = allowedKeyIds;
+            return this;
+        }
+
+        public Builder setUnlockedKeyCache(UnlockedKeyCache unlockedKeyCache) {
+            mUnlockedKeyCache = unlockedKeyCache;
+            return this;
+        }
+
+        public PgpChunkedDecrypt build() {
+            return new PgpChunkedDecrypt(this);
+        }
+    }
+
+    /**
+     * Decrypts the header and reads the index of the container. If the status of the result
+     * says that a passphrase is needed, nothing can be read until open() succeeds with it.
+     */
+    public PgpDecryptVerifyResult open()
+            throws IOException, PGPException, SignatureException,
+            PgpDecryptVerify.WrongPassphraseException, PgpDecryptVerify.NoSecretKeyException,
+            PgpDecryptVerify.KeyExtractionException, InvalidDataException,
+            IntegrityCheckFailedException {
+        mFile.seek(0);
+        byte[] magic = new byte[PgpChunkedEncrypt.MAGIC.length];
+        mFile.readFully(magic);
+        if (!Arrays.equals(magic, PgpChunkedEncrypt.MAGIC)
+                || mFile.readUnsignedByte() != PgpChunkedEncrypt.VERSION) {
+            throw new InvalidDataException();
+        }
+        int headerLength = mFile.readInt();
+        if (headerLength <= 0 || headerLength > mFile.length()) {
+            throw new InvalidDataException();
+        }
+        byte[] encryptedHeader = new byte[headerLength];
+        mFile.readFully(encryptedHeader);
+
+        // header is a normal message for our keys
+        ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+        PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(mProviderHelper,
+                mPassphraseCache, new InputData(new ByteArrayInputStream(encryptedHeader),
+                headerLength), headerOut);
+        builder.setPassphrase(mPassphrase)
+                .setAllowedKeyIds(mAllowedKeyIds)
+                .setUnlockedKeyCache(mUnlockedKeyCache);
+        PgpDecryptVerifyResult result = builder.build().execute();
+        if (result.getStatus() == PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED
+                || result.getStatus() == PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED) {
+            return result;
+        }
+
+        byte[] header = headerOut.toByteArray();
+        byte[] containerKey = new byte[PgpChunkedEncrypt.CONTAINER_KEY_LENGTH];
+        try {
+            if (header.length != 4 + containerKey.length) {
+                throw new InvalidDataException();
+            }
+            DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+            mChunkSize = headerIn.readInt();
+            headerIn.readFully(containerKey);
+            mContainerPassphrase = new String(Hex.encode(containerKey)).toCharArray();
+        } finally {
+            Arrays.fill(header, (byte) 0);
+            Arrays.fill(containerKey, (byte) 0);
+        }
+
+        readIndex();
+        return result;
+    }
+
+    private void readIndex() throws IOException, PGPException, InvalidDataException,
+            IntegrityCheckFailedException {
+        mFile.seek(mFile.length() - PgpChunkedEncrypt.TRAILER_LENGTH);
+        long indexOffset = mFile.readLong();
+        int indexLength = mFile.readInt();
+        byte[] magic = new byte[PgpChunkedEncrypt.MAGIC.length];
+        mFile.readFully(magic);
+        if (!Arrays.equals(magic, PgpChunkedEncrypt.MAGIC) || indexOffset < 0 || indexLength <= 0
+                || indexOffset + indexLength != mFile.length() - PgpChunkedEncrypt.TRAILER_LENGTH) {
+            throw new InvalidDataException();
+        }
+
+        byte[] index = decryptMessage(indexOffset, indexLength, PgpChunkedEncrypt.INDEX_NAME);
+        DataInputStream indexIn = new DataInputStream(new ByteArrayInputStream(index));
+        mSize = indexIn.readLong();
+        int chunkCount = indexIn.readInt();
+        if (mChunkSize <= 0 || mSize < 0 || chunkCount != (mSize + mChunkSize - 1) / mChunkSize
+                || index.length != 8 + 4 + 8 * (chunkCount + 1)) {
+            throw new InvalidDataException();
+        }
+        mOffsets = new long[chunkCount + 1];
+        for (int i = 0; i < mOffsets.length; i++) {
+            mOffsets[i] = indexIn.readLong();
+            if (i > 0 && mOffsets[i] < mOffsets[i - 1]) {
+                throw new InvalidDataException();
+            }
+        }
+        if (mOffsets[chunkCount] != indexOffset) {
+            throw new InvalidDataException();
+        }
+    }
+
+    /**
+     * @return size of the plaintext
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Decrypts length bytes of plaintext starting at position to out.
+     *
+     * @param position
+     * @param length
+     * @param out
+     */
+    public void read(long position, long length, OutputStream out)
+            throws IOException, PGPException, InvalidDataException, IntegrityCheckFailedException {
+        if (mOffsets == null) {
+            throw new IllegalStateException("container has not been opened");
+        }
+        if (position < 0 || length < 0 || position + length > mSize) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (length > 0) {
+            int chunkNumber = (int) (position / mChunkSize);
+            byte[] chunk = getChunk(chunkNumber);
+            int start = (int) (position - (long) chunkNumber * mChunkSize);
+            int n = (int) Math.min(length, chunk.length - start);
+            out.write(chunk, start, n);
+            position += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Decrypts up to length bytes of plaintext starting at position into b.
+     *
+     * @return number of bytes read, -1 if position is at the end
+     */
+    public int read(long position, byte[] b, int offset, int length)
+            throws IOException, PGPException, InvalidDataException, IntegrityCheckFailedException {
+        if (position >= mSize) {
+            return -1;
+        }
+        int n = (int) Math.min(length, mSize - position);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(n);
+        read(position, n, out);
+        System.arraycopy(out.toByteArray(), 0, b, offset, n);
+        return n;
+    }
+
+    /**
+     * Forgets the container key and the cached plaintext, the file is not closed.
+     */
+    public void close() {
+        if (mContainerPassphrase != null) {
+            Arrays.fill(mContainerPassphrase, '\0');
+            mContainerPassphrase = null;
+        }
+        if (mCachedChunk != null) {
+            Arrays.fill(mCachedChunk, (byte) 0);
+            mCachedChunk = null;
+        }
+        mCachedChunkNumber = -1;
+        mOffsets = null;
+    }
+
+    private byte[] getChunk(int chunkNumber)
+            throws IOException, PGPException, InvalidDataException, IntegrityCheckFailedException {
+        if (chunkNumber == mCachedChunkNumber) {
+            return mCachedChunk;
+        }
+        long start = mOffsets[chunkNumber];
+        long length = mOffsets[chunkNumber + 1] - start;
+        if (length > Integer.MAX_VALUE) {
+            throw new InvalidDataException();
+        }
+        byte[] chunk = decryptMessage(start, (int) length, Integer.toString(chunkNumber));
+
+        // all chunks but the last one are full
+        long expected = Math.min(mChunkSize, mSize - (long) chunkNumber * mChunkSize);
+        if (chunk.length != expected) {
+            throw new InvalidDataException();
+        }
+
+        if (mCachedChunk != null) {
+            Arrays.fill(mCachedChunk, (byte) 0);
+        }
+        mCachedChunk = chunk;
+        mCachedChunkNumber = chunkNumber;
+        return chunk;
+    }
+
+    /**
+     * Decrypts a message encrypted with the container key
+     *
+     * @param offset position of the message in the file
+     * @param length length of the message
+     * @param name   expected file name of the literal data
+     * @return the plaintext
+     */
+    private byte[] decryptMessage(long offset, int length, String name)
+            throws IOException, PGPException, InvalidDataException, IntegrityCheckFailedException {
+        byte[] message = new byte[length];
+        mFile.seek(offset);
+        mFile.readFully(message);
+
+        PGPObjectFactory pgpF = new PGPObjectFactory(message);
+        Object o = pgpF.nextObject();
+        if (!(o instanceof PGPEncryptedDataList)) {
+            throw new InvalidDataException();
+        }
+        Object encrypted = ((PGPEncryptedDataList) o).get(0);
+        if (!(encrypted instanceof PGPPBEEncryptedData)) {
+            throw new InvalidDataException();
+        }
+        PGPPBEEncryptedData encryptedData = (PGPPBEEncryptedData) encrypted;
+
+        PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+        PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
+                digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                mContainerPassphrase);
+        InputStream clear = encryptedData.getDataStream(decryptorFactory);
+
+        Object literal = new PGPObjectFactory(clear).nextObject();
+        if (!(literal instanceof PGPLiteralData)
+                || !name.equals(((PGPLiteralData) literal).getFileName())) {
+            throw new InvalidDataException();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        byte[] buffer = BufferPool.obtain();
+        try {
+            InputStream dataIn = ((PGPLiteralData) literal).getInputStream();
+            int n;
+            while ((n = dataIn.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            BufferPool.recycle(buffer, true);
+        }
+
+        if (!encryptedData.isIntegrityProtected() || !encryptedData.verify()) {
+            throw new IntegrityCheckFailedException();
+        }
+        return out.toByteArray();
+    }
+}
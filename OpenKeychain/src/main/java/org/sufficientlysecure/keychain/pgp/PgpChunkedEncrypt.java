@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.spongycastle.util.encoders.Hex;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.R;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.BufferPool;
+import org.thialfihar.android.apg.util.InputData;
+import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.ProgressReporter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encrypts data into a chunked container, which PgpChunkedDecrypt can decrypt at arbitrary
+ * positions while reading only the chunks needed.
+ * <p/>
+ * Layout of the container:
+ * <pre>
+ * "APGC", version byte
+ * int length, header: OpenPGP message for the recipients containing chunk size and container key
+ * chunks: one symmetrically encrypted OpenPGP message per chunk of the plaintext
+ * index: symmetrically encrypted OpenPGP message containing size and offsets of the chunks
+ * long offset of the index, int length of the index, "APGC"
+ * </pre>
+ * Chunks and index are encrypted with the random container key as passphrase, every message
+ * has its own salt and its own integrity packet. The file name of the literal data is the
+ * chunk number, so chunks can not be reordered without being noticed.
+ * <p/>
+ * This class uses a Builder pattern!
+ */
+public class PgpChunkedEncrypt {
+    public static final byte[] MAGIC = {'A', 'P', 'G', 'C'};
+    public static final int VERSION = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    static final int CONTAINER_KEY_LENGTH = 32;
+    static final int TRAILER_LENGTH = 8 + 4 + MAGIC.length;
+    static final String INDEX_NAME = "index";
+
+    private ProviderHelper mProviderHelper;
+    private String mVersionHeader;
+    private InputData mData;
+    private OutputStream mOutStream;
+
+    private ProgressReporter mProgressable;
+    private long[] mEncryptionMasterKeyIds;
+    private String mSymmetricPassphrase;
+    private int mSymmetricEncryptionAlgorithm;
+    private int mChunkSize;
+    private int mParallelism;
+
+    // passphrase derived from the container key
+    private char[] mContainerPassphrase;
+
+    private PgpChunkedEncrypt(Builder builder) {
+        // private Constructor can only be called from Builder
+        this.mProviderHelper = builder.mProviderHelper;
+        this.mVersionHeader = builder.mVersionHeader;
+        this.mData = builder.mData;
+        this.mOutStream = builder.mOutStream;
+
+        this.mProgressable = ProgressReporter.wrap(builder.mProgressable);
+        this.mEncryptionMasterKeyIds = builder.mEncryptionMasterKeyIds;
+        this.mSymmetricPassphrase = builder.mSymmetricPassphrase;
+        this.mSymmetricEncryptionAlgorithm = builder.mSymmetricEncryptionAlgorithm;
+        this.mChunkSize = builder.mChunkSize;
+        this.mParallelism = builder.mParallelism;
+    }
+
+    public static class Builder {
+        // mandatory parameter
+        private ProviderHelper mProviderHelper;
+        private String mVersionHeader;
+        private InputData mData;
+        private OutputStream mOutStream;
+
+        // optional
+        private Progressable mProgressable = null;
+        private long[] mEncryptionMasterKeyIds = null;
+        private String mSymmetricPassphrase = null;
+        private int mSymmetricEncryptionAlgorithm = PGPEncryptedData.AES_256;
+        private int mChunkSize = DEFAULT_CHUNK_SIZE;
+        private int mParallelism = 1;
+
+        public Builder(ProviderHelper providerHelper, String versionHeader, InputData data,
+                       OutputStream outStream) {
+            this.mProviderHelper = providerHelper;
+            this.mVersionHeader = versionHeader;
+            this.mData = data;
+            this.mOutStream = outStream;
+        }
+
+        public Builder setProgressable(Progressable progressable) {
+            mProgressable = progressable;
+            return this;
+        }
+
+        public Builder setEncryptionMasterKeyIds(long[] encryptionMasterKeyIds) {
+            mEncryptionMasterKeyIds = encryptionMasterKeyIds;
+            return this;
+        }
+
+        public Builder setSymmetricPassphrase(String symmetricPassphrase) {
+            mSymmetricPassphrase = symmetricPassphrase;
+            return this;
+        }
+
+        public Builder setSymmetricEncryptionAlgorithm(int symmetricEncryptionAlgorithm) {
+            mSymmetricEncryptionAlgorithm = symmetricEncryptionAlgorithm;
+            return this;
+        }
+
+        /**
+         * Size of the plaintext in each chunk, the smallest unit which is decrypted when
+         * reading from the container.
+         *
+         * @param chunkSize
+         * @return
+         */
+        public Builder setChunkSize(int chunkSize) {
+            mChunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Encrypt up to this number of chunks at the same time.
+         *
+         * @param parallelism
+         * @return
+         */
+        public Builder setParallelism(int parallelism) {
+            mParallelism = parallelism;
+            return this;
+        }
+
+        public PgpChunkedEncrypt build() {
+            return new PgpChunkedEncrypt(this);
+        }
+    }
+
+    public void updateProgress(int message, int current, int total) {
+        if (mProgressable != null) {
+            mProgressable.setProgress(message, current, total);
+        }
+    }
+
+    public void updateProgress(int current, int total, long bytes, long totalBytes) {
+        if (mProgressable != null) {
+            mProgressable.setBytes(current, total, bytes, totalBytes);
+        }
+    }
+
+    /**
+     * Encrypts the data into a container based on parameters of class
+     */
+    public void execute()
+            throws IOException, PGPException, NoSuchProviderException, NoSuchAlgorithmException,
+            SignatureException, PgpSignEncrypt.KeyExtractionException,
+            PgpSignEncrypt.NoSigningKeyException, PgpSignEncrypt.NoPassphraseException,
+            PgpSignEncrypt.NoEncryptionKeyException {
+        if (mChunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        if (mSymmetricPassphrase == null
+                && (mEncryptionMasterKeyIds == null || mEncryptionMasterKeyIds.length == 0)) {
+            // the header must never be written unencrypted
+            throw new IllegalArgumentException("no recipients and no passphrase given");
+        }
+
+        updateProgress(R.string.progress_preparing_streams, 0, 100);
+
+        byte[] containerKey = new byte[CONTAINER_KEY_LENGTH];
+        new SecureRandom().nextBytes(containerKey);
+        byte[] header = null;
+        try {
+            ByteArrayOutputStream headerPlain = new ByteArrayOutputStream();
+            DataOutputStream headerData = new DataOutputStream(headerPlain);
+            headerData.writeInt(mChunkSize);
+            headerData.write(containerKey);
+            headerData.close();
+            header = headerPlain.toByteArray();
+            mContainerPassphrase = new String(Hex.encode(containerKey)).toCharArray();
+
+            execute(encryptHeader(header));
+        } finally {
+            Arrays.fill(containerKey, (byte) 0);
+            if (header != null) {
+                Arrays.fill(header, (byte) 0);
+            }
+            if (mContainerPassphrase != null) {
+                Arrays.fill(mContainerPassphrase, '\0');
+            }
+        }
+
+        updateProgress(R.string.progress_done, 100, 100);
+    }
+
+    private void execute(byte[] encryptedHeader) throws IOException, PGPException {
+        DataOutputStream out = new DataOutputStream(mOutStream);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(encryptedHeader.length);
+        out.write(encryptedHeader);
+        long offset = MAGIC.length + 1 + 4 + encryptedHeader.length;
+
+        updateProgress(R.string.progress_encrypting, 5, 100);
+
+        // offsets of all chunks in the container, followed by the end of the last chunk
+        ByteArrayOutputStream offsetsOut = new ByteArrayOutputStream();
+        DataOutputStream offsets = new DataOutputStream(offsetsOut);
+        int chunkCount = 0;
+        long size = 0;
+
+        ExecutorService executor = null;
+        if (mParallelism > 1) {
+            executor = Executors.newFixedThreadPool(mParallelism);
+        }
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        try {
+            InputStream in = mData.getInputStream();
+            int length;
+            do {
+                byte[] plain = new byte[mChunkSize];
+                length = readFully(in, plain);
+                if (length == 0) {
+                    break;
+                }
+                ChunkTask task = new ChunkTask(plain, length, Integer.toString(chunkCount));
+                chunkCount++;
+                size += length;
+
+                if (executor == null) {
+                    offsets.writeLong(offset);
+                    offset += writeChunk(out, task.call());
+                } else {
+                    pending.add(executor.submit(task));
+                    // limit the memory used by chunks waiting to be written
+                    if (pending.size() >= 2 * mParallelism) {
+                        offsets.writeLong(offset);
+                        offset += writeChunk(out, waitFor(pending.removeFirst()));
+                    }
+                }
+
+                updateProgress(5 + (int) (90 * size / Math.max(size, mData.getSize())), 100,
+                        size, mData.getSize());
+            } while (length == mChunkSize);
+
+            while (!pending.isEmpty()) {
+                offsets.writeLong(offset);
+                offset += writeChunk(out, waitFor(pending.removeFirst()));
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        offsets.writeLong(offset);
+        offsets.close();
+
+        Log.d(Constants.TAG, "chunked container: " + chunkCount + " chunks, " + size + " bytes");
+
+        // index
+        ByteArrayOutputStream indexPlain = new ByteArrayOutputStream();
+        DataOutputStream indexData = new DataOutputStream(indexPlain);
+        indexData.writeLong(size);
+        indexData.writeInt(chunkCount);
+        indexData.write(offsetsOut.toByteArray());
+        indexData.close();
+        byte[] index = encryptChunk(indexPlain.toByteArray(), indexPlain.size(), INDEX_NAME);
+        out.write(index);
+
+        // trailer
+        out.writeLong(offset);
+        out.writeInt(index.length);
+        out.write(MAGIC);
+        out.close();
+    }
+
+    /**
+     * Encrypts the header for the recipients like any other message. If a passphrase is given as
+     * well, the header can be decrypted with either of them. A recipient without encryption key
+     * fails with NoEncryptionKeyException instead of leaving out the recipient.
+     */
+    private byte[] encryptHeader(byte[] header)
+            throws IOException, PGPException, NoSuchProviderException, NoSuchAlgorithmException,
+            SignatureException, PgpSignEncrypt.KeyExtractionException,
+            PgpSignEncrypt.NoSigningKeyException, PgpSignEncrypt.NoPassphraseException,
+            PgpSignEncrypt.NoEncryptionKeyException {
+        ByteArrayOutputStream encryptedHeader = new ByteArrayOutputStream();
+        PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(mProviderHelper,
+                mVersionHeader, new InputData(new ByteArrayInputStream(header), header.length),
+                encryptedHeader);
+        builder.setEncryptionMasterKeyIds(mEncryptionMasterKeyIds)
+                .setSymmetricPassphrase(mSymmetricPassphrase)
+                .setSymmetricEncryptionAlgorithm(mSymmetricEncryptionAlgorithm);
+        builder.build().execute();
+        return encryptedHeader.toByteArray();
+    }
+
+    /**
+     * Encrypts one chunk of plaintext with the container key
+     *
+     * @param plain
+     * @param length number of bytes used in plain
+     * @param name   file name of the literal data, identifying the chunk
+     * @return the OpenPGP message
+     */
+    private byte[] encryptChunk(byte[] plain, int length, String name)
+            throws IOException, PGPException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 256);
+
+        // has Integrity packet enabled!
+        JcePGPDataEncryptorBuilder encryptorBuilder =
+                new JcePGPDataEncryptorBuilder(mSymmetricEncryptionAlgorithm)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .setWithIntegrityPacket(true);
+        PGPEncryptedDataGenerator cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
+        cPk.addMethod(new JcePBEKeyEncryptionMethodGenerator(mContainerPassphrase));
+
+        byte[] encryptionBuffer = BufferPool.obtain();
+        try {
+            OutputStream encryptionOut = cPk.open(out, encryptionBuffer);
+
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream pOut = literalGen.open(encryptionOut, PGPLiteralData.BINARY, name,
+                    length, new Date());
+            pOut.write(plain, 0, length);
+            literalGen.close();
+            encryptionOut.close();
+        } finally {
+            BufferPool.recycle(encryptionBuffer, false);
+        }
+        return out.toByteArray();
+    }
+
+    private class ChunkTask implements Callable<byte[]> {
+        private byte[] mPlain;
+        private int mLength;
+        private String mName;
+
+        ChunkTask(byte[] plain, int length, String name) {
+            mPlain = plain;
+            mLength = length;
+            mName = name;
+        }
+
+        @Override
+        public byte[] call() throws IOException, PGPException {
+            try {
+                return encryptChunk(mPlain, mLength, mName);
+            } finally {
+                Arrays.fill(mPlain, (byte) 0);
+            }
+        }
+    }
+
+    private static long writeChunk(OutputStream out, byte[] chunk) throws IOException {
+        out.write(chunk);
+        return chunk.length;
+    }
+
+    private static byte[] waitFor(Future<byte[]> future) throws IOException, PGPException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while encrypting chunk");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof PGPException) {
+                throw (PGPException) e.getCause();
+            }
+            throw new IOException("encrypting chunk failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Reads until buffer is full or the stream ends
+     *
+     * @return number of bytes read
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int n;
+        while (length < buffer.length
+                && (n = in.read(buffer, length, buffer.length - length)) >= 0) {
+            length += n;
+        }
+        return length;
+    }
+}
@@ -19,7 +19,9 @@
 package org.thialfihar.android.apg.pgp;
 
 import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
 
+import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.bcpg.ArmoredInputStream;
 import org.spongycastle.bcpg.SignatureSubpacketTags;
 import org.spongycastle.openpgp.PGPCompressedData;
@@ -56,19 +58,24 @@ import org.thialfihar.android.apg.pgp.Progressable;
 import org.thialfihar.android.apg.provider.ApgContract;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
 import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.service.UnlockedKeyCache;
+import org.thialfihar.android.apg.util.BufferPool;
+import org.thialfihar.android.apg.util.ChunkPipe;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.ProgressReporter;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * This class uses a Builder pattern!
@@ -79,10 +86,15 @@ public class PgpDecryptVerify {
     private InputData mData;
     private OutputStream mOutStream;
 
-    private Progressable mProgressable;
+    private ProgressReporter mProgressable;
     private boolean mAllowSymmetricDecryption;
     private String mPassphrase;
     private Set<Long> mAllowedKeyIds;
+    private UnlockedKeyCache mUnlockedKeyCache;
+    private byte[] mDetachedSignature;
+    private boolean mPipelined;
+    private SessionKeyDataDecryptorFactory mSessionKeyFactory;
+    private boolean mExportSessionKey;
 
     private PgpDecryptVerify(Builder builder) {
         // private Constructor can only be called from Builder
@@ -91,10 +103,18 @@ public class PgpDecryptVerify {
         this.mData = builder.mData;
         this.mOutStream = builder.mOutStream;
 
-        this.mProgressable = builder.mProgressable;
+        this.mProgressable = ProgressReporter.wrap(builder.mProgressable);
         this.mAllowSymmetricDecryption = builder.mAllowSymmetricDecryption;
         this.mPassphrase = builder.mPassphrase;
         this.mAllowedKeyIds = builder.mAllowedKeyIds;
+        this.mUnlockedKeyCache = builder.mUnlockedKeyCache;
+        this.mDetachedSignature = builder.mDetachedSignature;
+        this.mPipelined = builder.mPipelined;
+        if (builder.mSessionKey != null) {
+            this.mSessionKeyFactory = new SessionKeyDataDecryptorFactory(
+                    builder.mSessionKeyAlgorithm, builder.mSessionKey);
+        }
+        this.mExportSessionKey = builder.mExportSessionKey;
     }
 
     public static class Builder {
@@ -109,6 +129,12 @@ public class PgpDecryptVerify {
         private boolean mAllowSymmetricDecryption = true;
         private String mPassphrase = null;
         private Set<Long> mAllowedKeyIds = null;
+        private UnlockedKeyCache mUnlockedKeyCache = null;
+        private byte[] mDetachedSignature = null;
+        private boolean mPipelined = false;
+        private int mSessionKeyAlgorithm = 0;
+        private byte[] mSessionKey = null;
+        private boolean mExportSessionKey = false;
 
         public Builder(ProviderHelper providerHelper, PassphraseCache passphraseCache,
                        InputData data, OutputStream outStream) {
@@ -145,6 +171,67 @@ public class PgpDecryptVerify {
             return this;
         }
 
+        /**
+         * Use already unlocked private keys from this cache and add newly unlocked ones to it.
+         * No passphrase is needed for keys found in the cache.
+         *
+         * @param unlockedKeyCache
+         * @return
+         */
+        public Builder setUnlockedKeyCache(UnlockedKeyCache unlockedKeyCache) {
+            this.mUnlockedKeyCache = unlockedKeyCache;
+            return this;
+        }
+
+        /**
+         * Verify the data against these detached signatures (binary or ascii armored) instead
+         * of decrypting it. Nothing is written to the output stream in this mode.
+         *
+         * @param detachedSignature
+         * @return
+         */
+        public Builder setDetachedSignature(byte[] detachedSignature) {
+            this.mDetachedSignature = detachedSignature;
+            return this;
+        }
+
+        /**
+         * Decrypt and decompress on separate threads, useful for large inputs.
+         *
+         * @param pipelined
+         * @return
+         */
+        public Builder setPipelined(boolean pipelined) {
+            this.mPipelined = pipelined;
+            return this;
+        }
+
+        /**
+         * Decrypt with this session key, e.g. exported by setExportSessionKey() before.
+         * No secret key and no passphrase is needed in this mode.
+         *
+         * @param algorithm  symmetric algorithm, see SymmetricKeyAlgorithmTags
+         * @param sessionKey
+         * @return
+         */
+        public Builder setSessionKey(int algorithm, byte[] sessionKey) {
+            this.mSessionKeyAlgorithm = algorithm;
+            this.mSessionKey = sessionKey;
+            return this;
+        }
+
+        /**
+         * Only decrypt the session key of a public key encrypted message and return it in the
+         * result. Nothing is written to the output stream in this mode.
+         *
+         * @param exportSessionKey
+         * @return
+         */
+        public Builder setExportSessionKey(boolean exportSessionKey) {
+            this.mExportSessionKey = exportSessionKey;
+            return this;
+        }
+
         public PgpDecryptVerify build() {
             return new PgpDecryptVerify(this);
         }
@@ -162,6 +249,12 @@ public class PgpDecryptVerify {
         }
     }
 
+    public void updateProgress(int current, int total, long bytes, long totalBytes) {
+        if (mProgressable != null) {
+            mProgressable.setBytes(current, total, bytes, totalBytes);
+        }
+    }
+
     public interface PassphraseCache {
         public String getCachedPassphrase(long masterKeyId);
     }
@@ -198,6 +291,11 @@ public class PgpDecryptVerify {
             throws IOException, PGPException, SignatureException,
             WrongPassphraseException, NoSecretKeyException, KeyExtractionException,
             InvalidDataException, IntegrityCheckFailedException {
+        if (mDetachedSignature != null) {
+            // the data itself is not pgp data
+            return verifyDetachedSignature();
+        }
+
         // automatically works with ascii armor input and binary
         InputStream in = PGPUtil.getDecoderStream(mData.getInputStream());
         if (in instanceof ArmoredInputStream) {
@@ -212,13 +310,80 @@ public class PgpDecryptVerify {
             // else: ascii armored encryption! go on...
         }
 
-        return decryptVerify(in);
+        ArrayList<ChunkPipe> pipes = new ArrayList<ChunkPipe>();
+        try {
+            return decryptVerify(in, pipes);
+        } finally {
+            // stop pipeline stages still running if decryptVerify failed
+            for (ChunkPipe pipe : pipes) {
+                pipe.abort();
+            }
+        }
+    }
+
+    /**
+     * Reads the session key packets at the start of an encrypted message, the data itself is
+     * not read.
+     *
+     * @param in binary or ascii armored message
+     * @return key ids of all public key encrypted session key packets, empty if the message is
+     * not encrypted
+     */
+    public static long[] getEncryptionKeyIds(InputStream in) throws IOException {
+        InputStream decoderIn = PGPUtil.getDecoderStream(in);
+        if (decoderIn instanceof ArmoredInputStream
+                && ((ArmoredInputStream) decoderIn).isClearText()) {
+            return new long[0];
+        }
+
+        PGPObjectFactory pgpF = new PGPObjectFactory(decoderIn);
+        Object o = pgpF.nextObject();
+        if (!(o instanceof PGPEncryptedDataList)) {
+            // skip a leading marker packet
+            o = pgpF.nextObject();
+        }
+        if (!(o instanceof PGPEncryptedDataList)) {
+            return new long[0];
+        }
+
+        ArrayList<Long> keyIds = new ArrayList<Long>();
+        Iterator<?> it = ((PGPEncryptedDataList) o).getEncryptedDataObjects();
+        while (it.hasNext()) {
+            Object obj = it.next();
+            if (obj instanceof PGPPublicKeyEncryptedData) {
+                keyIds.add(((PGPPublicKeyEncryptedData) obj).getKeyID());
+            }
+        }
+        long[] result = new long[keyIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = keyIds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Asymmetric packet for which the secret key is in the database
+     */
+    private static class DecryptionCandidate {
+        PGPPublicKeyEncryptedData mEncryptedData;
+        long mMasterKeyId;
+        PGPSecretKey mSecretKey;
+        // position of the packet in the encrypted data list
+        int mPosition;
+
+        DecryptionCandidate(PGPPublicKeyEncryptedData encryptedData, long masterKeyId,
+                            PGPSecretKey secretKey, int position) {
+            mEncryptedData = encryptedData;
+            mMasterKeyId = masterKeyId;
+            mSecretKey = secretKey;
+            mPosition = position;
+        }
     }
 
     /**
      * Decrypt and/or verifies binary or ascii armored pgp
      */
-    private PgpDecryptVerifyResult decryptVerify(InputStream in)
+    private PgpDecryptVerifyResult decryptVerify(InputStream in, ArrayList<ChunkPipe> pipes)
             throws IOException, PGPException, SignatureException,
             WrongPassphraseException, KeyExtractionException, NoSecretKeyException,
             InvalidDataException, IntegrityCheckFailedException {
@@ -249,101 +414,161 @@ public class PgpDecryptVerify {
         PGPPublicKeyEncryptedData encryptedDataAsymmetric = null;
         PGPPBEEncryptedData encryptedDataSymmetric = null;
         PGPSecretKey secretEncryptionKey = null;
+        PGPPrivateKey privateKey = null;
         Iterator<?> it = enc.getEncryptedDataObjects();
         boolean asymmetricPacketFound = false;
         boolean symmetricPacketFound = false;
-        // go through all objects and find one we can decrypt
+
+        // go through all objects, collect the asymmetric packets and the first symmetric one
+        ArrayList<PGPPublicKeyEncryptedData> asymmetricPackets =
+                new ArrayList<PGPPublicKeyEncryptedData>();
+        int symmetricPacketPosition = -1;
         while (it.hasNext()) {
             Object obj = it.next();
             if (obj instanceof PGPPublicKeyEncryptedData) {
-                updateProgress(R.string.progress_finding_key, currentProgress, 100);
+                asymmetricPackets.add((PGPPublicKeyEncryptedData) obj);
+            } else if (mAllowSymmetricDecryption && obj instanceof PGPPBEEncryptedData
+                    && encryptedDataSymmetric == null) {
+                encryptedDataSymmetric = (PGPPBEEncryptedData) obj;
+                symmetricPacketPosition = asymmetricPackets.size();
+            }
+        }
 
-                PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
+        if (mSessionKeyFactory != null) {
+            // the session key is the same in all packets, no key lookup needed
+            if (asymmetricPackets.isEmpty()) {
+                throw new InvalidDataException();
+            }
+            updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
-                long masterKeyId;
-                PGPSecretKeyRing secretKeyRing;
-                try {
-                    // get master key id for this encryption key id
-                    masterKeyId = mProviderHelper.getMasterKeyId(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(encData.getKeyID()))
-                    );
-                    // get actual keyring object based on master key id
-                    secretKeyRing = mProviderHelper.getPGPSecretKeyRing(masterKeyId);
-                } catch (ProviderHelper.NotFoundException e) {
-                    // continue with the next packet in the while loop
-                    continue;
-                }
-                if (secretKeyRing == null) {
-                    // continue with the next packet in the while loop
-                    continue;
-                }
-                // get subkey which has been used for this encryption packet
-                secretEncryptionKey = secretKeyRing.getSecretKey(encData.getKeyID());
-                if (secretEncryptionKey == null) {
-                    // continue with the next packet in the while loop
-                    continue;
-                }
+            encryptedDataAsymmetric = asymmetricPackets.get(0);
+            clear = encryptedDataAsymmetric.getDataStream(mSessionKeyFactory);
+            currentProgress += 15;
 
-                /* secret key exists in database! */
+            return decryptData(result, clear, encryptedDataAsymmetric, currentProgress, pipes);
+        }
 
-                // allow only specific keys for decryption?
-                if (mAllowedKeyIds != null) {
-                    Log.d(Constants.TAG, "encData.getKeyID():" + encData.getKeyID());
-                    Log.d(Constants.TAG, "allowedKeyIds: " + mAllowedKeyIds);
-                    Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
+        updateProgress(R.string.progress_finding_key, currentProgress, 100);
 
-                    if (!mAllowedKeyIds.contains(masterKeyId)) {
-                        // this key is in our db, but NOT allowed!
-                        // continue with the next packet in the while loop
-                        continue;
-                    }
-                }
+        // get the master key ids of all packets at once
+        long[] keyIds = new long[asymmetricPackets.size()];
+        for (int i = 0; i < keyIds.length; i++) {
+            keyIds[i] = asymmetricPackets.get(i).getKeyID();
+        }
+        LongSparseArray<Long> masterKeyIds = mProviderHelper.getMasterKeyIdsWithKeyIds(keyIds);
+
+        // candidates are all packets for which the secret key exists in our database
+        ArrayList<DecryptionCandidate> candidates = new ArrayList<DecryptionCandidate>();
+        for (int i = 0; i < asymmetricPackets.size(); i++) {
+            PGPPublicKeyEncryptedData encData = asymmetricPackets.get(i);
+            Long masterKeyId = masterKeyIds.get(encData.getKeyID());
+            if (masterKeyId == null) {
+                continue;
+            }
 
-                /* secret key exists in database and is allowed! */
-                asymmetricPacketFound = true;
+            // allow only specific keys for decryption?
+            if (mAllowedKeyIds != null && !mAllowedKeyIds.contains(masterKeyId)) {
+                Log.d(Constants.TAG, "key " + encData.getKeyID() + " of master key "
+                        + masterKeyId + " not in allowedKeyIds: " + mAllowedKeyIds);
+                // this key is in our db, but NOT allowed!
+                continue;
+            }
 
-                encryptedDataAsymmetric = encData;
+            PGPSecretKeyRing secretKeyRing;
+            try {
+                secretKeyRing = mProviderHelper.getPGPSecretKeyRing(masterKeyId);
+            } catch (ProviderHelper.NotFoundException e) {
+                continue;
+            }
+            // get subkey which has been used for this encryption packet
+            PGPSecretKey secretKey = secretKeyRing.getSecretKey(encData.getKeyID());
+            if (secretKey == null) {
+                continue;
+            }
 
-                // if no passphrase was explicitly set try to get it from the cache service
-                if (mPassphrase == null) {
-                    // returns "" if key has no passphrase
-                    mPassphrase = mPassphraseCache.getCachedPassphrase(masterKeyId);
+            candidates.add(new DecryptionCandidate(encData, masterKeyId, secretKey, i));
+        }
 
-                    // if passphrase was not cached, return here
-                    // indicating that a passphrase is missing!
-                    if (mPassphrase == null) {
-                        result.setKeyIdPassphraseNeeded(masterKeyId);
-                        result.setStatus(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED);
-                        return result;
-                    }
+        /*
+         * Rank the candidates, so that no passphrase is requested if any key can be used without:
+         * 1. a key which has already been unlocked
+         * 2. a key with an empty passphrase
+         * 3. a key with a cached passphrase
+         * 4. the first key, its passphrase needs to be entered
+         */
+        DecryptionCandidate candidate = null;
+        // the packet a passphrase is requested for, if none can be used without
+        boolean keyPacketFirst = !candidates.isEmpty() && (encryptedDataSymmetric == null
+                || candidates.get(0).mPosition < symmetricPacketPosition);
+        if (mUnlockedKeyCache != null) {
+            for (DecryptionCandidate c : candidates) {
+                privateKey = mUnlockedKeyCache.get(c.mEncryptedData.getKeyID());
+                if (privateKey != null) {
+                    candidate = c;
+                    break;
                 }
-
-                // break out of while, only decrypt the first packet where we have a key
-                // TODO???: There could be more pgp objects, which are not decrypted!
-                break;
-            } else if (mAllowSymmetricDecryption && obj instanceof PGPPBEEncryptedData) {
-                /*
-                 * When mAllowSymmetricDecryption == true and we find a data packet here,
-                 * we do not search for other available asymmetric packets!
-                 */
-                symmetricPacketFound = true;
-
-                encryptedDataSymmetric = (PGPPBEEncryptedData) obj;
-
-                // if no passphrase is given, return here
-                // indicating that a passphrase is missing!
-                if (mPassphrase == null) {
-                    result.setStatus(PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED);
-                    return result;
+            }
+        }
+        if (candidate == null && mPassphrase != null) {
+            // an explicitly given passphrase is meant for the first packet, like before
+            if (keyPacketFirst) {
+                candidate = candidates.get(0);
+            }
+        } else if (candidate == null) {
+            String candidatePassphrase = null;
+            for (DecryptionCandidate c : candidates) {
+                // returns "" if key has no passphrase
+                String passphrase = mPassphraseCache.getCachedPassphrase(c.mMasterKeyId);
+                if (passphrase == null) {
+                    continue;
                 }
+                if (candidate == null || (passphrase.length() == 0
+                        && candidatePassphrase.length() != 0)) {
+                    candidate = c;
+                    candidatePassphrase = passphrase;
+                }
+                if (passphrase.length() == 0) {
+                    break;
+                }
+            }
+            if (candidate != null) {
+                mPassphrase = candidatePassphrase;
+            }
+        }
 
-                // break out of while, only decrypt the first packet
-                // TODO???: There could be more pgp objects, which are not decrypted!
-                break;
+        if (candidate != null) {
+            /* secret key exists in database and is allowed! */
+            asymmetricPacketFound = true;
+            encryptedDataAsymmetric = candidate.mEncryptedData;
+            secretEncryptionKey = candidate.mSecretKey;
+        } else if (keyPacketFirst) {
+            // passphrase was not cached, return here indicating that a passphrase is missing!
+            // a passphrase given on the next call is used for this key, like the prompt says
+            result.setKeyIdPassphraseNeeded(candidates.get(0).mMasterKeyId);
+            result.setStatus(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED);
+            return result;
+        } else if (encryptedDataSymmetric != null) {
+            /*
+             * When mAllowSymmetricDecryption == true and we find a data packet here,
+             * we decrypt it if no key can be used without user interaction
+             */
+            symmetricPacketFound = true;
+
+            // if no passphrase is given, return here
+            // indicating that a passphrase is missing!
+            if (mPassphrase == null) {
+                result.setStatus(PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED);
+                return result;
             }
         }
 
+        // TODO???: There could be more pgp objects, which are not decrypted!
+
         if (symmetricPacketFound) {
+            if (mExportSessionKey) {
+                throw new PGPException("session key export is only supported for public key "
+                        + "encrypted data");
+            }
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
             PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
@@ -358,18 +583,24 @@ public class PgpDecryptVerify {
             currentProgress += 5;
         } else if (asymmetricPacketFound) {
             currentProgress += 5;
-            updateProgress(R.string.progress_extracting_key, currentProgress, 100);
-            PGPPrivateKey privateKey;
-            try {
-                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                                mPassphrase.toCharArray());
-                privateKey = secretEncryptionKey.extractPrivateKey(keyDecryptor);
-            } catch (PGPException e) {
-                throw new WrongPassphraseException();
-            }
             if (privateKey == null) {
-                throw new KeyExtractionException();
+                updateProgress(R.string.progress_extracting_key, currentProgress, 100);
+                char[] passphrase = mPassphrase.toCharArray();
+                try {
+                    PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase);
+                    privateKey = secretEncryptionKey.extractPrivateKey(keyDecryptor);
+                } catch (PGPException e) {
+                    throw new WrongPassphraseException();
+                } finally {
+                    Arrays.fill(passphrase, '\0');
+                }
+                if (privateKey == null) {
+                    throw new KeyExtractionException();
+                }
+                if (mUnlockedKeyCache != null) {
+                    mUnlockedKeyCache.put(candidate.mMasterKeyId, privateKey);
+                }
             }
             currentProgress += 5;
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
@@ -377,6 +608,19 @@ public class PgpDecryptVerify {
             PublicKeyDataDecryptorFactory decryptorFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey);
 
+            if (mExportSessionKey) {
+                // decrypt the session key packet only, the data is not read
+                SessionKeyDataDecryptorFactory sessionKeyFactory =
+                        new SessionKeyDataDecryptorFactory(decryptorFactory);
+                encryptedDataAsymmetric.getSymmetricAlgorithm(sessionKeyFactory);
+
+                result.setSessionKeyAlgorithm(sessionKeyFactory.getAlgorithm());
+                result.setSessionKey(sessionKeyFactory.getSessionKey());
+                result.setStatus(PgpDecryptVerifyResult.SUCCESS);
+                updateProgress(R.string.progress_done, 100, 100);
+                return result;
+            }
+
             clear = encryptedDataAsymmetric.getDataStream(decryptorFactory);
 
             encryptedData = encryptedDataAsymmetric;
@@ -386,6 +630,28 @@ public class PgpDecryptVerify {
             throw new NoSecretKeyException();
         }
 
+        return decryptData(result, clear, encryptedData, currentProgress, pipes);
+    }
+
+    /**
+     * Decompresses the decrypted data, writes the literal data and verifies signature and
+     * integrity
+     */
+    private PgpDecryptVerifyResult decryptData(PgpDecryptVerifyResult result, InputStream clear,
+                                               PGPEncryptedData encryptedData,
+                                               int currentProgress, ArrayList<ChunkPipe> pipes)
+            throws IOException, PGPException, SignatureException,
+            IntegrityCheckFailedException {
+        // pipelined decryption: decryption and decompression run on their own threads, this
+        // thread verifies the signature and writes the output
+        ArrayList<Future<Void>> stages = new ArrayList<Future<Void>>();
+        if (mPipelined) {
+            ChunkPipe decryptionPipe = new ChunkPipe();
+            pipes.add(decryptionPipe);
+            stages.add(decryptionPipe.fillFrom(clear));
+            clear = decryptionPipe.getInputStream();
+        }
+
         PGPObjectFactory plainFact = new PGPObjectFactory(clear);
         Object dataChunk = plainFact.nextObject();
         PGPOnePassSignature signature = null;
@@ -396,8 +662,14 @@ public class PgpDecryptVerify {
         if (dataChunk instanceof PGPCompressedData) {
             updateProgress(R.string.progress_decompressing_data, currentProgress, 100);
 
-            PGPObjectFactory fact = new PGPObjectFactory(
-                    ((PGPCompressedData) dataChunk).getDataStream());
+            InputStream decompressed = ((PGPCompressedData) dataChunk).getDataStream();
+            if (mPipelined) {
+                ChunkPipe decompressionPipe = new ChunkPipe();
+                pipes.add(decompressionPipe);
+                stages.add(decompressionPipe.fillFrom(decompressed));
+                decompressed = decompressionPipe.getInputStream();
+            }
+            PGPObjectFactory fact = new PGPObjectFactory(decompressed);
             dataChunk = fact.nextObject();
             plainFact = fact;
             currentProgress += 10;
@@ -489,44 +761,44 @@ public class PgpDecryptVerify {
 
             PGPLiteralData literalData = (PGPLiteralData) dataChunk;
 
-            byte[] buffer = new byte[1 << 16];
-            InputStream dataIn = literalData.getInputStream();
+            byte[] buffer = BufferPool.obtain();
+            try {
+                InputStream dataIn = literalData.getInputStream();
 
-            int startProgress = currentProgress;
-            int endProgress = 100;
-            if (signature != null) {
-                endProgress = 90;
-            } else if (encryptedData.isIntegrityProtected()) {
-                endProgress = 95;
-            }
-
-            int n;
-            // TODO: progress calculation is broken here! Try to rework it based on commented code!
-//            int progress = 0;
-            long startPos = mData.getStreamPosition();
-            while ((n = dataIn.read(buffer)) > 0) {
-                mOutStream.write(buffer, 0, n);
-//                progress += n;
+                int startProgress = currentProgress;
+                int endProgress = 100;
                 if (signature != null) {
-                    try {
-                        signature.update(buffer, 0, n);
-                    } catch (SignatureException e) {
-                        Log.d(Constants.TAG, "SIGNATURE_ERROR");
-                        signatureResultBuilder.validSignature(false);
-                        signature = null;
-                    }
+                    endProgress = 90;
+                } else if (encryptedData.isIntegrityProtected()) {
+                    endProgress = 95;
                 }
-                // TODO: dead code?!
-                // unknown size, but try to at least have a moving, slowing down progress bar
-//                currentProgress = startProgress + (endProgress - startProgress) * progress
-//                        / (progress + 100000);
-                if (mData.getSize() - startPos == 0) {
-                    currentProgress = endProgress;
-                } else {
-                    currentProgress = (int) (startProgress + (endProgress - startProgress)
-                            * (mData.getStreamPosition() - startPos) / (mData.getSize() - startPos));
+
+                int n;
+                // progress is based on the position in the (compressed) input
+                long startPos = mData.getStreamPosition();
+                while ((n = dataIn.read(buffer)) > 0) {
+                    mOutStream.write(buffer, 0, n);
+                    if (signature != null) {
+                        try {
+                            signature.update(buffer, 0, n);
+                        } catch (SignatureException e) {
+                            Log.d(Constants.TAG, "SIGNATURE_ERROR");
+                            signatureResultBuilder.validSignature(false);
+                            signature = null;
+                        }
+                    }
+                    long position = mData.getStreamPosition();
+                    if (mData.getSize() - startPos <= 0) {
+                        currentProgress = endProgress;
+                    } else {
+                        currentProgress = (int) (startProgress + (endProgress - startProgress)
+                                * Math.min(position - startPos, mData.getSize() - startPos)
+                                / (mData.getSize() - startPos));
+                    }
+                    updateProgress(currentProgress, 100, position, mData.getSize());
                 }
-                updateProgress(currentProgress, 100);
+            } finally {
+                BufferPool.recycle(buffer, true);
             }
 
             if (signature != null) {
@@ -548,6 +820,13 @@ public class PgpDecryptVerify {
             }
         }
 
+        // wait until all stages have consumed their input, the decryption stage has read the
+        // whole encrypted data before the integrity check
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            pipes.get(i).skipRemaining();
+            ChunkPipe.waitFor(stages.get(i));
+        }
+
         if (encryptedData.isIntegrityProtected()) {
             updateProgress(R.string.progress_verifying_integrity, 95, 100);
 
@@ -585,30 +864,32 @@ public class PgpDecryptVerify {
         // cleartext signatures are never encrypted ;)
         signatureResultBuilder.signatureOnly(true);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
         updateProgress(R.string.progress_done, 0, 100);
 
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int lookAhead = readInputLine(lineOut, aIn);
-        byte[] lineSep = getLineSeparator();
+        // the signature follows the text, digest the canonicalized text while writing it out
+        CleartextSignatureDigests digests = new CleartextSignatureDigests(aIn.getArmorHeaders());
 
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
+        CleartextLineReader reader = new CleartextLineReader(aIn);
+        byte[] lineSep = getLineSeparator();
+        int length;
+        boolean firstLine = true;
+        while ((length = reader.readLine()) >= 0) {
+            byte[] line = reader.getLine();
+            mOutStream.write(line, 0, reader.getLineLengthWithWhitespace());
+            mOutStream.write(lineSep);
+
+            // line endings are only digested between lines
+            if (!firstLine) {
+                digests.update((byte) '\r');
+                digests.update((byte) '\n');
+            }
+            firstLine = false;
 
-        while (lookAhead != -1 && aIn.isClearText()) {
-            lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+            if (length > 0) {
+                digests.update(line, 0, length);
+            }
         }
 
-        out.close();
-
-        byte[] clearText = out.toByteArray();
-        mOutStream.write(clearText);
-
         updateProgress(R.string.progress_processing_signature, 60, 100);
         PGPObjectFactory pgpFact = new PGPObjectFactory(aIn);
 
@@ -662,11 +943,6 @@ public class PgpDecryptVerify {
             signatureResultBuilder.userId(primaryUserId);
             signatureResultBuilder.keyId(masterKeyId);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            signature.init(contentVerifierBuilderProvider, signatureKey);
-
             // get certification status of this key
             boolean isSignatureKeyCertified;
             try {
@@ -691,32 +967,138 @@ public class PgpDecryptVerify {
         if (signature != null) {
             updateProgress(R.string.progress_verifying_signature, 90, 100);
 
-            InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
+            // the text has already been digested, only the signature trailer is added here
+            boolean validSignature;
+            try {
+                signature.init(digests, signatureKey);
+                validSignature = signature.verify();
+            } catch (PGPException e) {
+                Log.e(Constants.TAG, "cleartext signature could not be verified", e);
+                validSignature = false;
+            }
+
+            // check binding signatures
+            boolean validKeyBinding = verifyKeyBinding(signature, signatureKey);
+
+            signatureResultBuilder.validSignature(validSignature);
+            signatureResultBuilder.validKeyBinding(validKeyBinding);
+        }
+
+        result.setSignatureResult(signatureResultBuilder.build());
 
-            lookAhead = readInputLine(lineOut, sigIn);
+        updateProgress(R.string.progress_done, 100, 100);
+        return result;
+    }
 
-            processLine(signature, lineOut.toByteArray());
+    /**
+     * Verifies detached signatures over the data. The data is streamed once through all
+     * signatures made by keys in our database, there is one OpenPgpSignatureResult per signature.
+     */
+    private PgpDecryptVerifyResult verifyDetachedSignature()
+            throws IOException, PGPException, SignatureException, InvalidDataException {
+        PgpDecryptVerifyResult result = new PgpDecryptVerifyResult();
 
-            if (lookAhead != -1) {
-                do {
-                    lookAhead = readInputLine(lineOut, lookAhead, sigIn);
+        updateProgress(R.string.progress_processing_signature, 0, 100);
 
-                    signature.update((byte) '\r');
-                    signature.update((byte) '\n');
+        InputStream sigIn = PGPUtil.getDecoderStream(new ByteArrayInputStream(mDetachedSignature));
+        PGPObjectFactory pgpFact = new PGPObjectFactory(sigIn);
+        Object o = pgpFact.nextObject();
+        if (o instanceof PGPCompressedData) {
+            pgpFact = new PGPObjectFactory(((PGPCompressedData) o).getDataStream());
+            o = pgpFact.nextObject();
+        }
+        if (!(o instanceof PGPSignatureList)) {
+            throw new InvalidDataException();
+        }
+        PGPSignatureList sigList = (PGPSignatureList) o;
 
-                    processLine(signature, lineOut.toByteArray());
-                } while (lookAhead != -1);
+        JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
+                new JcaPGPContentVerifierBuilderProvider()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+        // find the keys of all signatures, only those with a known key are verified
+        OpenPgpSignatureResultBuilder[] signatureResultBuilders =
+                new OpenPgpSignatureResultBuilder[sigList.size()];
+        PGPPublicKey[] signatureKeys = new PGPPublicKey[sigList.size()];
+        ArrayList<PGPSignature> signatures = new ArrayList<PGPSignature>();
+        for (int i = 0; i < sigList.size(); ++i) {
+            PGPSignature signature = sigList.get(i);
+            OpenPgpSignatureResultBuilder signatureResultBuilder =
+                    new OpenPgpSignatureResultBuilder();
+            signatureResultBuilder.signatureOnly(true);
+            signatureResultBuilder.signatureAvailable(true);
+            signatureResultBuilders[i] = signatureResultBuilder;
+
+            try {
+                Map<String, Object> data = mProviderHelper.getGenericData(
+                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(
+                                Long.toString(signature.getKeyID())),
+                        new String[] { KeyRings.MASTER_KEY_ID, KeyRings.USER_ID, KeyRings.VERIFIED },
+                        new int[] { ProviderHelper.FIELD_TYPE_INTEGER,
+                                ProviderHelper.FIELD_TYPE_STRING,
+                                ProviderHelper.FIELD_TYPE_INTEGER }
+                );
+                long masterKeyId = (Long) data.get(KeyRings.MASTER_KEY_ID);
+                PGPPublicKeyRing publicKeyRing = mProviderHelper.getPGPPublicKeyRing(masterKeyId);
+
+                // get the subkey which has been used to generate this signature
+                signatureKeys[i] = publicKeyRing.getPublicKey(signature.getKeyID());
+                signature.init(contentVerifierBuilderProvider, signatureKeys[i]);
+                signatures.add(signature);
+
+                signatureResultBuilder.knownKey(true);
+                signatureResultBuilder.userId((String) data.get(KeyRings.USER_ID));
+                signatureResultBuilder.keyId(masterKeyId);
+                Long verified = (Long) data.get(KeyRings.VERIFIED);
+                signatureResultBuilder.signatureKeyCertified(verified != null && verified > 0);
+            } catch (ProviderHelper.NotFoundException e) {
+                Log.d(Constants.TAG, "key not found!");
+                signatureResultBuilder.knownKey(false);
+                signatureResultBuilder.keyId(signature.getKeyID());
             }
+        }
 
-            // Verify signature and check binding signatures
-            boolean validSignature = signature.verify();
-            boolean validKeyBinding = verifyKeyBinding(signature, signatureKey);
+        if (!signatures.isEmpty()) {
+            updateProgress(R.string.progress_verifying_signature, 10, 100);
 
-            signatureResultBuilder.validSignature(validSignature);
-            signatureResultBuilder.validKeyBinding(validKeyBinding);
+            byte[] buffer = BufferPool.obtain();
+            try {
+                InputStream dataIn = mData.getInputStream();
+                int n;
+                while ((n = dataIn.read(buffer)) > 0) {
+                    for (PGPSignature signature : signatures) {
+                        signature.update(buffer, 0, n);
+                    }
+                    if (mData.getSize() != 0) {
+                        long position = mData.getStreamPosition();
+                        updateProgress((int) (10 + (90 - 10) * position / mData.getSize()), 100,
+                                position, mData.getSize());
+                    }
+                }
+            } finally {
+                BufferPool.recycle(buffer, true);
+            }
         }
 
-        result.setSignatureResult(signatureResultBuilder.build());
+        updateProgress(R.string.progress_verifying_signature, 90, 100);
+
+        ArrayList<OpenPgpSignatureResult> signatureResults =
+                new ArrayList<OpenPgpSignatureResult>(sigList.size());
+        for (int i = 0; i < sigList.size(); ++i) {
+            if (signatureKeys[i] != null) {
+                PGPSignature signature = sigList.get(i);
+                signatureResultBuilders[i].validSignature(signature.verify());
+                signatureResultBuilders[i].validKeyBinding(
+                        verifyKeyBinding(signature, signatureKeys[i]));
+            }
+            signatureResults.add(signatureResultBuilders[i].build());
+        }
+
+        result.setSignatureResults(signatureResults);
+        // for callers which only handle a single signature
+        if (!signatureResults.isEmpty()) {
+            result.setSignatureResult(signatureResults.get(0));
+        }
 
         updateProgress(R.string.progress_done, 100, 100);
         return result;
@@ -763,8 +1145,11 @@ public class PgpDecryptVerify {
                     sig.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
                 //check and if ok, check primary key binding.
                 try {
-                    sig.init(contentVerifierBuilderProvider, masterPublicKey);
-                    validTempSubkeyBinding = sig.verifyCertification(masterPublicKey, signingPublicKey);
+                    // signatures of keyrings from the KeyRingCache are shared between threads
+                    synchronized (sig) {
+                        sig.init(contentVerifierBuilderProvider, masterPublicKey);
+                        validTempSubkeyBinding = sig.verifyCertification(masterPublicKey, signingPublicKey);
+                    }
                 } catch (PGPException e) {
                     continue;
                 } catch (SignatureException e) {
@@ -829,100 +1214,6 @@ public class PgpDecryptVerify {
         return validPrimaryKeyBinding;
     }
 
-    /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
-     *
-     * @param sig
-     * @param line
-     * @throws SignatureException
-     */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPassedEOL(bOut, ch, fIn);
-                break;
-            }
-        }
-
-        return lookAhead;
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPassedEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
-        }
-
-        return lookAhead;
-    }
-
-    private static int readPassedEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isLineEnding(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isLineEnding(byte b) {
-        return b == '\r' || b == '\n';
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
-    }
-
     private static byte[] getLineSeparator() {
         String nl = System.getProperty("line.separator");
         byte[] nlBytes = new byte[nl.length()];
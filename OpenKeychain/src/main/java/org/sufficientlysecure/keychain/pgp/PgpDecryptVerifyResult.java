@@ -22,6 +22,8 @@ import android.os.Parcelable;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
 
+import java.util.ArrayList;
+
 public class PgpDecryptVerifyResult implements Parcelable {
     public static final int SUCCESS = 1;
     public static final int KEY_PASSHRASE_NEEDED = 2;
@@ -31,6 +33,12 @@ public class PgpDecryptVerifyResult implements Parcelable {
     long mKeyIdPassphraseNeeded;
 
     OpenPgpSignatureResult mSignatureResult;
+    // results of all detached signatures
+    ArrayList<OpenPgpSignatureResult> mSignatureResults;
+
+    // exported session key, see PgpDecryptVerify.Builder.setExportSessionKey()
+    int mSessionKeyAlgorithm;
+    byte[] mSessionKey;
 
     public int getStatus() {
         return mStatus;
@@ -56,6 +64,30 @@ public class PgpDecryptVerifyResult implements Parcelable {
         mSignatureResult = signatureResult;
     }
 
+    public ArrayList<OpenPgpSignatureResult> getSignatureResults() {
+        return mSignatureResults;
+    }
+
+    public void setSignatureResults(ArrayList<OpenPgpSignatureResult> signatureResults) {
+        mSignatureResults = signatureResults;
+    }
+
+    public int getSessionKeyAlgorithm() {
+        return mSessionKeyAlgorithm;
+    }
+
+    public void setSessionKeyAlgorithm(int sessionKeyAlgorithm) {
+        mSessionKeyAlgorithm = sessionKeyAlgorithm;
+    }
+
+    public byte[] getSessionKey() {
+        return mSessionKey;
+    }
+
+    public void setSessionKey(byte[] sessionKey) {
+        mSessionKey = sessionKey;
+    }
+
     public PgpDecryptVerifyResult() {
 
     }
@@ -64,6 +96,9 @@ public class PgpDecryptVerifyResult implements Parcelable {
         this.mStatus = b.mStatus;
         this.mKeyIdPassphraseNeeded = b.mKeyIdPassphraseNeeded;
         this.mSignatureResult = b.mSignatureResult;
+        this.mSignatureResults = b.mSignatureResults;
+        this.mSessionKeyAlgorithm = b.mSessionKeyAlgorithm;
+        this.mSessionKey = b.mSessionKey;
     }
 
 
@@ -75,6 +110,9 @@ public class PgpDecryptVerifyResult implements Parcelable {
         dest.writeInt(mStatus);
         dest.writeLong(mKeyIdPassphraseNeeded);
         dest.writeParcelable(mSignatureResult, 0);
+        dest.writeTypedList(mSignatureResults);
+        dest.writeInt(mSessionKeyAlgorithm);
+        dest.writeByteArray(mSessionKey);
     }
 
     public static final Creator<PgpDecryptVerifyResult> CREATOR = new Creator<PgpDecryptVerifyResult>() {
@@ -83,6 +121,9 @@ public class PgpDecryptVerifyResult implements Parcelable {
             vr.mStatus = source.readInt();
             vr.mKeyIdPassphraseNeeded = source.readLong();
             vr.mSignatureResult = source.readParcelable(OpenPgpSignatureResult.class.getClassLoader());
+            vr.mSignatureResults = source.createTypedArrayList(OpenPgpSignatureResult.CREATOR);
+            vr.mSessionKeyAlgorithm = source.readInt();
+            vr.mSessionKey = source.createByteArray();
             return vr;
         }
 
@@ -33,7 +33,9 @@ import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.pgp.Progressable;
+import org.thialfihar.android.apg.util.BufferPool;
 import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.ProgressReporter;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -136,9 +138,13 @@ public class PgpHelper {
     public static long getLengthOfStream(InputStream in) throws IOException {
         long size = 0;
         long n = 0;
-        byte dummy[] = new byte[0x10000];
-        while ((n = in.read(dummy)) > 0) {
-            size += n;
+        byte dummy[] = BufferPool.obtain();
+        try {
+            while ((n = in.read(dummy)) > 0) {
+                size += n;
+            }
+        } finally {
+            BufferPool.recycle(dummy, true);
         }
         return size;
     }
@@ -160,18 +166,27 @@ public class PgpHelper {
         RandomAccessFile raf = new RandomAccessFile(file, "rws");
         raf.seek(0);
         raf.getFilePointer();
-        byte[] data = new byte[1 << 16];
-        int pos = 0;
-        String msg = context.getString(R.string.progress_deleting_securely, file.getName());
-        while (pos < length) {
-            if (progressable != null) {
-                progressable.setProgress(msg, (int) (100 * pos / length), 100);
+        byte[] data = BufferPool.obtain();
+        try {
+            long pos = 0;
+            ProgressReporter reporter = ProgressReporter.wrap(progressable);
+            if (reporter != null) {
+                reporter.setProgress(context.getString(R.string.progress_deleting_securely,
+                        file.getName()), 0, 100);
+            }
+            while (pos < length) {
+                if (reporter != null) {
+                    reporter.setBytes((int) (100 * pos / length), 100, pos, length);
+                }
+                random.nextBytes(data);
+                raf.write(data);
+                pos += data.length;
             }
-            random.nextBytes(data);
-            raf.write(data);
-            pos += data.length;
+        } finally {
+            raf.close();
+            // only random data
+            BufferPool.recycle(data, false);
         }
-        raf.close();
         file.delete();
     }
 }
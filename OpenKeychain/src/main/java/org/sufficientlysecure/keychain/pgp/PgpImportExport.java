@@ -41,6 +41,7 @@ import org.thialfihar.android.apg.keyimport.Keyserver;
 import org.thialfihar.android.apg.util.IterableIterator;
 import org.thialfihar.android.apg.keyimport.Keyserver.AddKeyException;
 import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.ProgressReporter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -56,7 +57,7 @@ public class PgpImportExport {
     }
 
     private Context mContext;
-    private Progressable mProgressable;
+    private ProgressReporter mProgressable;
 
     private ApgServiceListener mApgServiceListener;
 
@@ -67,10 +68,13 @@ public class PgpImportExport {
     public static final int RETURN_BAD = -2;
     public static final int RETURN_UPDATED = 1;
 
+    // keyrings saved per transaction when importing
+    private static final int IMPORT_BATCH_SIZE = 100;
+
     public PgpImportExport(Context context, Progressable progressable) {
         super();
         this.mContext = context;
-        this.mProgressable = progressable;
+        this.mProgressable = ProgressReporter.wrap(progressable);
         this.mProviderHelper = new ProviderHelper(context);
     }
 
@@ -78,7 +82,7 @@ public class PgpImportExport {
                            Progressable progressable, ApgServiceListener apgListener) {
         super();
         this.mContext = context;
-        this.mProgressable = progressable;
+        this.mProgressable = ProgressReporter.wrap(progressable);
         this.mProviderHelper = new ProviderHelper(context);
         this.mApgServiceListener = apgListener;
     }
@@ -127,6 +131,7 @@ public class PgpImportExport {
         int badKeys = 0;
 
         int position = 0;
+        ArrayList<PGPKeyRing> keyRings = new ArrayList<PGPKeyRing>(IMPORT_BATCH_SIZE);
         try {
             for (ImportKeysListEntry entry : entries) {
                 KeyRing keyRing = KeyRing.decode(entry.getBytes());
@@ -134,9 +139,9 @@ public class PgpImportExport {
                 if (keyRing != null) {
                     int status;
                     if (keyRing.isPublic()) {
-                        status = storeKeyRingInCache(keyRing.getPublicKeyRing());
+                        status = addKeyRingsToSave(keyRing.getPublicKeyRing(), keyRings);
                     } else {
-                        status = storeKeyRingInCache(keyRing.getSecretKeyRing());
+                        status = addKeyRingsToSave(keyRing.getSecretKeyRing(), keyRings);
                     }
 
                     if (status == RETURN_ERROR) {
@@ -156,8 +161,17 @@ public class PgpImportExport {
                     Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!", new Exception());
                 }
 
+                // save many keyrings in a single transaction
+                if (keyRings.size() >= IMPORT_BATCH_SIZE) {
+                    mProviderHelper.saveKeyRings(keyRings);
+                    keyRings.clear();
+                }
+
                 position++;
-                updateProgress(position / entries.size() * 100, 100);
+                updateProgress(position * 100 / entries.size(), 100);
+            }
+            if (!keyRings.isEmpty()) {
+                mProviderHelper.saveKeyRings(keyRings);
             }
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
@@ -245,8 +259,24 @@ public class PgpImportExport {
         return returnData;
     }
 
-    @SuppressWarnings("unchecked")
     public int storeKeyRingInCache(PGPKeyRing keyRing) {
+        ArrayList<PGPKeyRing> keyRings = new ArrayList<PGPKeyRing>(2);
+        int status = addKeyRingsToSave(keyRing, keyRings);
+        try {
+            mProviderHelper.saveKeyRings(keyRings);
+        } catch (IOException e) {
+            status = RETURN_ERROR;
+        }
+        return status;
+    }
+
+    /**
+     * Checks the keyring and adds the keyrings which need to be saved for it to keyRings
+     *
+     * @return RETURN_OK, RETURN_BAD or RETURN_ERROR
+     */
+    @SuppressWarnings("unchecked")
+    private int addKeyRingsToSave(PGPKeyRing keyRing, ArrayList<PGPKeyRing> keyRings) {
         int status = RETURN_ERROR;
         try {
             if (keyRing instanceof PGPSecretKeyRing) {
@@ -277,14 +307,13 @@ public class PgpImportExport {
                         newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
                     }
                     if (newPubRing != null) {
-                        mProviderHelper.saveKeyRing(newPubRing);
+                        keyRings.add(newPubRing);
                     }
-                    mProviderHelper.saveKeyRing(secretKeyRing);
+                    keyRings.add(secretKeyRing);
                     status = RETURN_OK;
                 }
             } else if (keyRing instanceof PGPPublicKeyRing) {
-                PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyRing;
-                mProviderHelper.saveKeyRing(publicKeyRing);
+                keyRings.add(keyRing);
                 status = RETURN_OK;
             }
         } catch (IOException e) {
@@ -626,4 +626,21 @@ public class PgpKeyHelper {
         return result;
     }
 
+    /**
+     * Extracts the email of a user id in the form "... <email>", as used for lookups by email.
+     *
+     * @param userId
+     * @return lower case email or null if the user id does not end with an email in brackets
+     */
+    public static String getEmailForLookup(String userId) {
+        if (userId == null || !userId.endsWith(">")) {
+            return null;
+        }
+        int start = userId.lastIndexOf('<');
+        if (start < 0) {
+            return null;
+        }
+        return userId.substring(start + 1, userId.length() - 1).toLowerCase(Locale.ENGLISH);
+    }
+
 }
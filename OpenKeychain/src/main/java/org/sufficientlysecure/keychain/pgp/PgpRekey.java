@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import android.support.v4.util.LongSparseArray;
+
+import org.spongycastle.bcpg.ArmoredOutputStream;
+import org.spongycastle.bcpg.BCPGInputStream;
+import org.spongycastle.bcpg.BCPGOutputStream;
+import org.spongycastle.bcpg.Packet;
+import org.spongycastle.bcpg.PacketTags;
+import org.spongycastle.bcpg.PublicKeyEncSessionPacket;
+import org.spongycastle.bcpg.SymmetricKeyEncSessionPacket;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPUtil;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.R;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.service.UnlockedKeyCache;
+import org.thialfihar.android.apg.util.BufferPool;
+import org.thialfihar.android.apg.util.InputData;
+import org.thialfihar.android.apg.util.ProgressReporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Changes the recipients of an encrypted message without decrypting its data. The session key
+ * is recovered with one of our secret keys and encrypted for the new recipients, the
+ * symmetrically encrypted data packet is copied byte for byte. Symmetric session key packets are
+ * kept, the old public key session key packets are replaced.
+ * <p/>
+ * This class uses a Builder pattern!
+ */
+public class PgpRekey {
+    private ProviderHelper mProviderHelper;
+    private PgpDecryptVerify.PassphraseCache mPassphraseCache;
+    private String mVersionHeader;
+    private InputData mData;
+    private OutputStream mOutStream;
+
+    private ProgressReporter mProgressable;
+    private boolean mEnableAsciiArmorOutput;
+    private long[] mEncryptionMasterKeyIds;
+    private String mPassphrase;
+    private UnlockedKeyCache mUnlockedKeyCache;
+
+    private PgpRekey(Builder builder) {
+        // private Constructor can only be called from Builder
+        this.mProviderHelper = builder.mProviderHelper;
+        this.mPassphraseCache = builder.mPassphraseCache;
+        this.mVersionHeader = builder.mVersionHeader;
+        this.mData = builder.mData;
+        this.mOutStream = builder.mOutStream;
+
+        this.mProgressable = ProgressReporter.wrap(builder.mProgressable);
+        this.mEnableAsciiArmorOutput = builder.mEnableAsciiArmorOutput;
+        // no recipients are only possible if the message keeps a symmetric session key packet
+        this.mEncryptionMasterKeyIds = builder.mEncryptionMasterKeyIds != null
+                ? builder.mEncryptionMasterKeyIds : new long[0];
+        this.mPassphrase = builder.mPassphrase;
+        this.mUnlockedKeyCache = builder.mUnlockedKeyCache;
+    }
+
+    public static class Builder {
+        // mandatory parameter
+        private ProviderHelper mProviderHelper;
+        private PgpDecryptVerify.PassphraseCache mPassphraseCache;
+        private String mVersionHeader;
+        private InputData mData;
+        private OutputStream mOutStream;
+
+        // optional
+        private Progressable mProgressable = null;
+        private boolean mEnableAsciiArmorOutput = false;
+        private long[] mEncryptionMasterKeyIds = null;
+        private String mPassphrase = null;
+        private UnlockedKeyCache mUnlockedKeyCache = null;
+
+        public Builder(ProviderHelper providerHelper,
+                       PgpDecryptVerify.PassphraseCache passphraseCache, String versionHeader,
+                       InputData data, OutputStream outStream) {
+            this.mProviderHelper = providerHelper;
+            this.mPassphraseCache = passphraseCache;
+            this.mVersionHeader = versionHeader;
+            this.mData = data;
+            this.mOutStream = outStream;
+        }
+
+        public Builder setProgressable(Progressable progressable) {
+            mProgressable = progressable;
+            return this;
+        }
+
+        public Builder setEnableAsciiArmorOutput(boolean enableAsciiArmorOutput) {
+            mEnableAsciiArmorOutput = enableAsciiArmorOutput;
+            return this;
+        }
+
+        /**
+         * The new recipients, replacing all old ones. Without recipients, only the symmetric
+         * session key packets of the message are kept.
+         *
+         * @param encryptionMasterKeyIds
+         * @return
+         */
+        public Builder setEncryptionMasterKeyIds(long[] encryptionMasterKeyIds) {
+            mEncryptionMasterKeyIds = encryptionMasterKeyIds;
+            return this;
+        }
+
+        /**
+         * Passphrase of the first of our keys the message is encrypted to.
+         *
+         * @param passphrase
+         * @return
+         */
+        public Builder setPassphrase(String passphrase) {
+            mPassphrase = passphrase;
+            return this;
+        }
+
+        public Builder setUnlockedKeyCache(UnlockedKeyCache unlockedKeyCache) {
+            mUnlockedKeyCache = unlockedKeyCache;
+            return this;
+        }
+
+        public PgpRekey build() {
+            return new PgpRekey(this);
+        }
+    }
+
+    public void updateProgress(int message, int current, int total) {
+        if (mProgressable != null) {
+            mProgressable.setProgress(message, current, total);
+        }
+    }
+
+    public void updateProgress(int current, int total, long bytes, long totalBytes) {
+        if (mProgressable != null) {
+            mProgressable.setBytes(current, total, bytes, totalBytes);
+        }
+    }
+
+    public static class NoRecipientsException extends Exception {
+        public NoRecipientsException() {
+            super("no recipients, the message could not be decrypted anymore");
+        }
+    }
+
+    /**
+     * Writes the message with new public key session key packets.
+     *
+     * @return result with status SUCCESS or KEY_PASSHRASE_NEEDED
+     */
+    public PgpDecryptVerifyResult execute()
+            throws IOException, PGPException, PgpDecryptVerify.InvalidDataException,
+            PgpDecryptVerify.NoSecretKeyException, PgpDecryptVerify.WrongPassphraseException,
+            PgpDecryptVerify.KeyExtractionException, PgpSignEncrypt.NoEncryptionKeyException,
+            NoRecipientsException {
+        PgpDecryptVerifyResult result = new PgpDecryptVerifyResult();
+
+        // resolve all recipients before any input is read,
+        // the message must not silently lose a recipient
+        LongSparseArray<PGPPublicKey> recipientKeys =
+                mProviderHelper.getEncryptionSubkeys(mEncryptionMasterKeyIds);
+        for (long id : mEncryptionMasterKeyIds) {
+            if (recipientKeys.get(id) == null) {
+                throw new PgpSignEncrypt.NoEncryptionKeyException(id);
+            }
+        }
+
+        updateProgress(R.string.progress_reading_data, 0, 100);
+
+        // automatically works with ascii armor input and binary
+        InputStream in = PGPUtil.getDecoderStream(mData.getInputStream());
+        BCPGInputStream bcpgIn = new BCPGInputStream(in);
+
+        // read all session key packets up to the encrypted data
+        ArrayList<PublicKeyEncSessionPacket> publicKeyPackets =
+                new ArrayList<PublicKeyEncSessionPacket>();
+        ArrayList<SymmetricKeyEncSessionPacket> symmetricKeyPackets =
+                new ArrayList<SymmetricKeyEncSessionPacket>();
+        int tag;
+        while ((tag = bcpgIn.nextPacketTag()) == PacketTags.PUBLIC_KEY_ENC_SESSION
+                || tag == PacketTags.SYMMETRIC_KEY_ENC_SESSION || tag == PacketTags.MARKER) {
+            Packet packet = bcpgIn.readPacket();
+            if (packet instanceof PublicKeyEncSessionPacket) {
+                publicKeyPackets.add((PublicKeyEncSessionPacket) packet);
+            } else if (packet instanceof SymmetricKeyEncSessionPacket) {
+                symmetricKeyPackets.add((SymmetricKeyEncSessionPacket) packet);
+            }
+        }
+        if (tag != PacketTags.SYM_ENC_INTEGRITY_PRO && tag != PacketTags.SYMMETRIC_KEY_ENC) {
+            throw new PgpDecryptVerify.InvalidDataException();
+        }
+        if (mEncryptionMasterKeyIds.length == 0 && symmetricKeyPackets.isEmpty()) {
+            throw new NoRecipientsException();
+        }
+
+        updateProgress(R.string.progress_finding_key, 5, 100);
+
+        // get the master key ids of all packets at once
+        long[] keyIds = new long[publicKeyPackets.size()];
+        for (int i = 0; i < keyIds.length; i++) {
+            keyIds[i] = publicKeyPackets.get(i).getKeyID();
+        }
+        LongSparseArray<Long> masterKeyIds = mProviderHelper.getMasterKeyIdsWithKeyIds(keyIds);
+
+        // prefer an unlocked key, then a cached passphrase, else use the first key we have
+        PublicKeyEncSessionPacket sessionPacket = null;
+        long sessionMasterKeyId = Constants.key.none;
+        PGPSecretKey secretKey = null;
+        PGPPrivateKey privateKey = null;
+        String passphrase = null;
+        long firstMasterKeyId = Constants.key.none;
+        for (PublicKeyEncSessionPacket packet : publicKeyPackets) {
+            Long masterKeyId = masterKeyIds.get(packet.getKeyID());
+            if (masterKeyId == null) {
+                continue;
+            }
+            PGPSecretKey key;
+            try {
+                PGPSecretKeyRing secretKeyRing = mProviderHelper.getPGPSecretKeyRing(masterKeyId);
+                key = secretKeyRing.getSecretKey(packet.getKeyID());
+            } catch (ProviderHelper.NotFoundException e) {
+                continue;
+            }
+            if (key == null) {
+                continue;
+            }
+
+            if (mUnlockedKeyCache != null) {
+                privateKey = mUnlockedKeyCache.get(packet.getKeyID());
+                if (privateKey != null) {
+                    sessionPacket = packet;
+                    sessionMasterKeyId = masterKeyId;
+                    break;
+                }
+            }
+
+            if (firstMasterKeyId == Constants.key.none) {
+                firstMasterKeyId = masterKeyId;
+                if (mPassphrase != null) {
+                    // an explicitly given passphrase is meant for the first key
+                    sessionPacket = packet;
+                    sessionMasterKeyId = masterKeyId;
+                    secretKey = key;
+                    passphrase = mPassphrase;
+                }
+            }
+            if (sessionPacket == null && mPassphrase == null) {
+                // returns "" if key has no passphrase
+                String cachedPassphrase = mPassphraseCache.getCachedPassphrase(masterKeyId);
+                if (cachedPassphrase != null) {
+                    sessionPacket = packet;
+                    sessionMasterKeyId = masterKeyId;
+                    secretKey = key;
+                    passphrase = cachedPassphrase;
+                }
+            }
+        }
+
+        if (sessionPacket == null) {
+            if (firstMasterKeyId == Constants.key.none) {
+                throw new PgpDecryptVerify.NoSecretKeyException();
+            }
+            result.setKeyIdPassphraseNeeded(firstMasterKeyId);
+            result.setStatus(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED);
+            return result;
+        }
+
+        if (privateKey == null) {
+            updateProgress(R.string.progress_extracting_key, 10, 100);
+            char[] passphraseChars = passphrase.toCharArray();
+            try {
+                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(passphraseChars);
+                privateKey = secretKey.extractPrivateKey(keyDecryptor);
+            } catch (PGPException e) {
+                throw new PgpDecryptVerify.WrongPassphraseException();
+            } finally {
+                Arrays.fill(passphraseChars, '\0');
+            }
+            if (privateKey == null) {
+                throw new PgpDecryptVerify.KeyExtractionException();
+            }
+            if (mUnlockedKeyCache != null) {
+                mUnlockedKeyCache.put(sessionMasterKeyId, privateKey);
+            }
+        }
+
+        // session info: algorithm, key, checksum
+        PublicKeyDataDecryptorFactory decryptorFactory =
+                new JcePublicKeyDataDecryptorFactoryBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey);
+        byte[] sessionInfo = decryptorFactory.recoverSessionData(sessionPacket.getAlgorithm(),
+                sessionPacket.getEncSessionKey());
+        try {
+            checkSessionInfo(sessionInfo);
+
+            updateProgress(R.string.progress_encrypting, 20, 100);
+            writeMessage(bcpgIn, sessionInfo, symmetricKeyPackets, recipientKeys);
+        } finally {
+            Arrays.fill(sessionInfo, (byte) 0);
+        }
+
+        updateProgress(R.string.progress_done, 100, 100);
+
+        result.setStatus(PgpDecryptVerifyResult.SUCCESS);
+        return result;
+    }
+
+    private static void checkSessionInfo(byte[] sessionInfo) throws PGPException {
+        if (sessionInfo.length < 3) {
+            throw new PGPException("session key too short");
+        }
+        int checksum = 0;
+        for (int i = 1; i < sessionInfo.length - 2; i++) {
+            checksum += sessionInfo[i] & 0xff;
+        }
+        if (sessionInfo[sessionInfo.length - 2] != (byte) (checksum >> 8)
+                || sessionInfo[sessionInfo.length - 1] != (byte) checksum) {
+            throw new PGPException("session key checksum failed");
+        }
+    }
+
+    private void writeMessage(BCPGInputStream bcpgIn, byte[] sessionInfo,
+                              ArrayList<SymmetricKeyEncSessionPacket> symmetricKeyPackets,
+                              LongSparseArray<PGPPublicKey> recipientKeys)
+            throws IOException, PGPException {
+        ArmoredOutputStream armorOut = null;
+        OutputStream out;
+        if (mEnableAsciiArmorOutput) {
+            armorOut = new ArmoredOutputStream(mOutStream);
+            armorOut.setHeader("Version", mVersionHeader);
+            out = armorOut;
+        } else {
+            out = mOutStream;
+        }
+        BCPGOutputStream pOut = new BCPGOutputStream(out);
+
+        ParallelKeyEncryptionMethodGenerators parallelGenerators = null;
+        if (mEncryptionMasterKeyIds.length > 1) {
+            parallelGenerators = new ParallelKeyEncryptionMethodGenerators();
+        }
+        ArrayList<PGPKeyEncryptionMethodGenerator> generators =
+                new ArrayList<PGPKeyEncryptionMethodGenerator>();
+        for (long id : mEncryptionMasterKeyIds) {
+            PGPKeyEncryptionMethodGenerator generator =
+                    new JcePublicKeyKeyEncryptionMethodGenerator(recipientKeys.get(id));
+            if (parallelGenerators != null) {
+                generator = parallelGenerators.add(generator);
+            }
+            generators.add(generator);
+        }
+
+        int algorithm = sessionInfo[0] & 0xff;
+        for (PGPKeyEncryptionMethodGenerator generator : generators) {
+            generator.generate(algorithm, sessionInfo).encode(pOut);
+        }
+        for (SymmetricKeyEncSessionPacket packet : symmetricKeyPackets) {
+            packet.encode(pOut);
+        }
+        pOut.flush();
+
+        // the encrypted data and everything after it is copied unchanged
+        byte[] buffer = BufferPool.obtain();
+        try {
+            int n;
+            while ((n = bcpgIn.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                if (mData.getSize() != 0) {
+                    long position = mData.getStreamPosition();
+                    updateProgress((int) (20 + (100 - 20) * position / mData.getSize()), 100,
+                            position, mData.getSize());
+                }
+            }
+        } finally {
+            BufferPool.recycle(buffer, false);
+        }
+
+        if (mEnableAsciiArmorOutput) {
+            armorOut.close();
+        }
+        out.close();
+        mOutStream.close();
+    }
+}
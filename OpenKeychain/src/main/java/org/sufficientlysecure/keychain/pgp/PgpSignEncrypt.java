@@ -18,6 +18,8 @@
 
 package org.thialfihar.android.apg.pgp;
 
+import android.support.v4.util.LongSparseArray;
+
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.BCPGOutputStream;
 import org.spongycastle.openpgp.PGPCompressedDataGenerator;
@@ -25,40 +27,37 @@ import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPLiteralData;
 import org.spongycastle.openpgp.PGPLiteralDataGenerator;
-import org.spongycastle.openpgp.PGPPrivateKey;
 import org.spongycastle.openpgp.PGPPublicKey;
-import org.spongycastle.openpgp.PGPPublicKeyRing;
-import org.spongycastle.openpgp.PGPSecretKey;
-import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureGenerator;
-import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.spongycastle.openpgp.PGPV3SignatureGenerator;
-import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
-import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
-import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.R;
 import org.thialfihar.android.apg.pgp.Progressable;
-import org.thialfihar.android.apg.provider.ApgContract;
 import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.service.UnlockedKeyCache;
+import org.thialfihar.android.apg.util.BufferPool;
+import org.thialfihar.android.apg.util.ChunkPipe;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
+import org.thialfihar.android.apg.util.ProgressReporter;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 /**
  * This class uses a Builder pattern!
@@ -69,7 +68,7 @@ public class PgpSignEncrypt {
     private InputData mData;
     private OutputStream mOutStream;
 
-    private Progressable mProgressable;
+    private ProgressReporter mProgressable;
     private boolean mEnableAsciiArmorOutput;
     private int mCompressionId;
     private long[] mEncryptionMasterKeyIds;
@@ -81,6 +80,14 @@ public class PgpSignEncrypt {
     private String mSignaturePassphrase;
     private boolean mEncryptToSigner;
     private boolean mCleartextInput;
+    private UnlockedKeyCache mUnlockedKeyCache;
+    private boolean mParallelKeyEncryption;
+    private PgpSigningSession mSigningSession;
+    private boolean mPipelined;
+
+    private static final int COMPRESSION_SAMPLE_SIZE = 1 << 16;
+    // compress only if the sample shrinks to this percentage or less
+    private static final int COMPRESSION_MAX_RATIO = 90;
 
     private static byte[] NEW_LINE;
 
@@ -99,7 +106,7 @@ public class PgpSignEncrypt {
         this.mData = builder.mData;
         this.mOutStream = builder.mOutStream;
 
-        this.mProgressable = builder.mProgressable;
+        this.mProgressable = ProgressReporter.wrap(builder.mProgressable);
         this.mEnableAsciiArmorOutput = builder.mEnableAsciiArmorOutput;
         this.mCompressionId = builder.mCompressionId;
         this.mEncryptionMasterKeyIds = builder.mEncryptionMasterKeyIds;
@@ -111,6 +118,10 @@ public class PgpSignEncrypt {
         this.mSignaturePassphrase = builder.mSignaturePassphrase;
         this.mEncryptToSigner = builder.mEncryptToSigner;
         this.mCleartextInput = builder.mCleartextInput;
+        this.mUnlockedKeyCache = builder.mUnlockedKeyCache;
+        this.mParallelKeyEncryption = builder.mParallelKeyEncryption;
+        this.mSigningSession = builder.mSigningSession;
+        this.mPipelined = builder.mPipelined;
     }
 
     public static class Builder {
@@ -133,6 +144,10 @@ public class PgpSignEncrypt {
         private String mSignaturePassphrase = null;
         private boolean mEncryptToSigner = false;
         private boolean mCleartextInput = false;
+        private UnlockedKeyCache mUnlockedKeyCache = null;
+        private boolean mParallelKeyEncryption = false;
+        private PgpSigningSession mSigningSession = null;
+        private boolean mPipelined = false;
 
         public Builder(ProviderHelper providerHelper, String versionHeader, InputData data, OutputStream outStream) {
             this.mProviderHelper = providerHelper;
@@ -151,6 +166,12 @@ public class PgpSignEncrypt {
             return this;
         }
 
+        /**
+         * @param compressionId one of Constants.choice.compression, auto uses ZLIB only if a
+         *                      trial compression of the beginning of the input shows that the
+         *                      data is compressible, e.g., not for JPEG or zip files
+         * @return
+         */
         public Builder setCompressionId(int compressionId) {
             mCompressionId = compressionId;
             return this;
@@ -211,6 +232,55 @@ public class PgpSignEncrypt {
             return this;
         }
 
+        /**
+         * Use an already unlocked signing key from this cache and add it there after unlocking.
+         *
+         * @param unlockedKeyCache
+         * @return
+         */
+        public Builder setUnlockedKeyCache(UnlockedKeyCache unlockedKeyCache) {
+            this.mUnlockedKeyCache = unlockedKeyCache;
+            return this;
+        }
+
+        /**
+         * Encrypt the session key for all recipients concurrently, useful for many recipients.
+         *
+         * @param parallelKeyEncryption
+         * @return
+         */
+        public Builder setParallelKeyEncryption(boolean parallelKeyEncryption) {
+            this.mParallelKeyEncryption = parallelKeyEncryption;
+            return this;
+        }
+
+        /**
+         * Sign with this session, replaces signature master key id, hash algorithm and
+         * passphrase.
+         *
+         * @param signingSession
+         * @return
+         */
+        public Builder setSigningSession(PgpSigningSession signingSession) {
+            this.mSigningSession = signingSession;
+            if (signingSession != null) {
+                this.mSignatureMasterKeyId = signingSession.getMasterKeyId();
+                this.mSignatureHashAlgorithm = signingSession.getHashAlgorithm();
+            }
+            return this;
+        }
+
+        /**
+         * Compress and encrypt on separate threads when encrypting, useful for large inputs.
+         *
+         * @param pipelined
+         * @return
+         */
+        public Builder setPipelined(boolean pipelined) {
+            this.mPipelined = pipelined;
+            return this;
+        }
+
         public PgpSignEncrypt build() {
             return new PgpSignEncrypt(this);
         }
@@ -228,6 +298,12 @@ public class PgpSignEncrypt {
         }
     }
 
+    public void updateProgress(int current, int total, long bytes, long totalBytes) {
+        if (mProgressable != null) {
+            mProgressable.setBytes(current, total, bytes, totalBytes);
+        }
+    }
+
     public static class KeyExtractionException extends Exception {
         public KeyExtractionException() {
         }
@@ -243,17 +319,62 @@ public class PgpSignEncrypt {
         }
     }
 
+    public static class NoEncryptionKeyException extends Exception {
+        private long mMasterKeyId;
+
+        public NoEncryptionKeyException(long masterKeyId) {
+            super("no encryption key found for " + PgpKeyHelper.convertKeyIdToHex(masterKeyId));
+            mMasterKeyId = masterKeyId;
+        }
+
+        public long getMasterKeyId() {
+            return mMasterKeyId;
+        }
+    }
+
     /**
      * Signs and/or encrypts data based on parameters of class
      */
-    public void execute()
+    public PgpSignEncryptResult execute()
+            throws IOException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException, KeyExtractionException, NoSigningKeyException, NoPassphraseException,
+            NoEncryptionKeyException {
+        ArrayList<ChunkPipe> pipes = new ArrayList<ChunkPipe>();
+        try {
+            return signEncrypt(pipes);
+        } finally {
+            // stop pipeline stages still waiting for input if signEncrypt failed
+            for (ChunkPipe pipe : pipes) {
+                pipe.abort();
+            }
+        }
+    }
+
+    private PgpSignEncryptResult signEncrypt(ArrayList<ChunkPipe> pipes)
             throws IOException, PGPException, NoSuchProviderException,
-            NoSuchAlgorithmException, SignatureException, KeyExtractionException, NoSigningKeyException, NoPassphraseException {
+            NoSuchAlgorithmException, SignatureException, KeyExtractionException, NoSigningKeyException, NoPassphraseException,
+            NoEncryptionKeyException {
 
         boolean enableSignature = mSignatureMasterKeyId != Constants.key.none;
         boolean enableEncryption = ((mEncryptionMasterKeyIds != null && mEncryptionMasterKeyIds.length > 0)
                 || mSymmetricPassphrase != null);
-        boolean enableCompression = (mCompressionId != Constants.choice.compression.none);
+        int compressionId = mCompressionId;
+        boolean enableCompression = (compressionId != Constants.choice.compression.none);
+        if (!enableEncryption && mCleartextInput && mEnableAsciiArmorOutput) {
+            // cleartext signatures are never compressed
+            enableCompression = false;
+        }
+
+        PgpSignEncryptResult result = new PgpSignEncryptResult();
+        if (enableCompression && compressionId == Constants.choice.compression.auto) {
+            int ratio = estimateCompressionRatio(mData.peek(COMPRESSION_SAMPLE_SIZE));
+            result.setCompressionSampleRatio(ratio);
+            enableCompression = ratio <= COMPRESSION_MAX_RATIO;
+            compressionId = Constants.choice.compression.zlib;
+        }
+        if (enableCompression) {
+            result.setCompressionId(compressionId);
+        }
 
         Log.d(Constants.TAG, "enableSignature:" + enableSignature
                 + "\nenableEncryption:" + enableEncryption
@@ -276,36 +397,13 @@ public class PgpSignEncrypt {
             out = mOutStream;
         }
 
-        /* Get keys for signature generation for later usage */
-        PGPSecretKey signingKey = null;
-        PGPSecretKeyRing signingKeyRing = null;
-        PGPPrivateKey signaturePrivateKey = null;
-        String signingUserId = null;
-        if (enableSignature) {
-            try {
-                signingKeyRing = mProviderHelper.getPGPSecretKeyRing(mSignatureMasterKeyId);
-                signingUserId = (String) mProviderHelper.getUnifiedData(mSignatureMasterKeyId,
-                        ApgContract.KeyRings.USER_ID, ProviderHelper.FIELD_TYPE_STRING);
-            } catch (ProviderHelper.NotFoundException e) {
-                throw new NoSigningKeyException();
-            }
-            signingKey = PgpKeyHelper.getFirstSigningSubkey(signingKeyRing);
-            if (signingKey == null) {
-                throw new NoSigningKeyException();
-            }
-
-            if (mSignaturePassphrase == null) {
-                throw new NoPassphraseException();
-            }
-
+        /* Get signing session with the unlocked key for later usage */
+        PgpSigningSession signingSession = mSigningSession;
+        if (enableSignature && signingSession == null) {
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
-            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mSignaturePassphrase.toCharArray());
-            signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
-            if (signaturePrivateKey == null) {
-                throw new KeyExtractionException();
-            }
+            signingSession = PgpSigningSession.open(mProviderHelper, mSignatureMasterKeyId,
+                    mSignatureHashAlgorithm, mSignaturePassphrase, mUnlockedKeyCache);
         }
         updateProgress(R.string.progress_preparing_streams, 5, 100);
 
@@ -320,27 +418,37 @@ public class PgpSignEncrypt {
 
             cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
 
+            // with a passphrase and recipients, the message can be decrypted with either of them
             if (mSymmetricPassphrase != null) {
                 // Symmetric encryption
-                Log.d(Constants.TAG, "encryptionMasterKeyIds length is 0 -> symmetric encryption");
+                Log.d(Constants.TAG, "symmetric encryption");
 
                 JcePBEKeyEncryptionMethodGenerator symmetricEncryptionGenerator =
                         new JcePBEKeyEncryptionMethodGenerator(mSymmetricPassphrase.toCharArray());
                 cPk.addMethod(symmetricEncryptionGenerator);
-            } else {
+            }
+            if (mEncryptionMasterKeyIds != null && mEncryptionMasterKeyIds.length > 0) {
                 // Asymmetric encryption
+                ParallelKeyEncryptionMethodGenerators parallelGenerators = null;
+                if (mParallelKeyEncryption && mEncryptionMasterKeyIds.length > 1) {
+                    parallelGenerators = new ParallelKeyEncryptionMethodGenerators();
+                }
+
+                // get the encryption subkeys of all recipients at once
+                LongSparseArray<PGPPublicKey> keys =
+                        mProviderHelper.getEncryptionSubkeys(mEncryptionMasterKeyIds);
                 for (long id : mEncryptionMasterKeyIds) {
-                    try {
-                        PGPPublicKeyRing keyRing = mProviderHelper.getPGPPublicKeyRing(id);
-                        PGPPublicKey key = PgpKeyHelper.getFirstEncryptSubkey(keyRing);
-                        if (key != null) {
-                            JcePublicKeyKeyEncryptionMethodGenerator pubKeyEncryptionGenerator =
-                                    new JcePublicKeyKeyEncryptionMethodGenerator(key);
-                            cPk.addMethod(pubKeyEncryptionGenerator);
-                        }
-                    } catch (ProviderHelper.NotFoundException e) {
-                        Log.e(Constants.TAG, "key not found!", e);
+                    PGPPublicKey key = keys.get(id);
+                    if (key == null) {
+                        // the message must not silently lose a recipient
+                        throw new NoEncryptionKeyException(id);
+                    }
+                    PGPKeyEncryptionMethodGenerator pubKeyEncryptionGenerator =
+                            new JcePublicKeyKeyEncryptionMethodGenerator(key);
+                    if (parallelGenerators != null) {
+                        pubKeyEncryptionGenerator = parallelGenerators.add(pubKeyEncryptionGenerator);
                     }
+                    cPk.addMethod(pubKeyEncryptionGenerator);
                 }
             }
         }
@@ -348,15 +456,10 @@ public class PgpSignEncrypt {
         /* Initialize signature generator object for later usage */
         PGPSignatureGenerator signatureGenerator = null;
         PGPV3SignatureGenerator signatureV3Generator = null;
+        int signatureType = 0;
         if (enableSignature) {
             updateProgress(R.string.progress_preparing_signature, 10, 100);
 
-            // content signer based on signing key algorithm and chosen hash algorithm
-            JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(
-                    signingKey.getPublicKey().getAlgorithm(), mSignatureHashAlgorithm)
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-
-            int signatureType;
             if (mCleartextInput && mEnableAsciiArmorOutput && !enableEncryption) {
                 // for sign-only ascii text
                 signatureType = PGPSignature.CANONICAL_TEXT_DOCUMENT;
@@ -365,235 +468,314 @@ public class PgpSignEncrypt {
             }
 
             if (mSignatureForceV3) {
-                signatureV3Generator = new PGPV3SignatureGenerator(contentSignerBuilder);
-                signatureV3Generator.init(signatureType, signaturePrivateKey);
+                signatureV3Generator = signingSession.acquireV3Generator(signatureType);
             } else {
-                signatureGenerator = new PGPSignatureGenerator(contentSignerBuilder);
-                signatureGenerator.init(signatureType, signaturePrivateKey);
-
-                PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-                spGen.setSignerUserID(false, signingUserId);
-                signatureGenerator.setHashedSubpackets(spGen.generate());
+                signatureGenerator = signingSession.acquireGenerator(signatureType);
             }
         }
 
         PGPCompressedDataGenerator compressGen = null;
+        // pooled buffers, only recycled after all streams have been closed
+        byte[] encryptionBuffer = null;
+        byte[] literalBuffer = null;
+        byte[] buffer = null;
         OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
-        if (enableEncryption) {
-            /* actual encryption */
-
-            encryptionOut = cPk.open(out, new byte[1 << 16]);
-
-            if (enableCompression) {
-                compressGen = new PGPCompressedDataGenerator(mCompressionId);
-                bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
-            } else {
-                bcpgOut = new BCPGOutputStream(encryptionOut);
-            }
-
-            if (enableSignature) {
-                if (mSignatureForceV3) {
-                    signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
+        // pipelined encryption: output of this thread and the stages on other threads
+        OutputStream pipelineOut = null;
+        ArrayList<Future<Void>> stages = new ArrayList<Future<Void>>();
+        boolean success = false;
+        // generate() resets the signature generator, only then it can be reused
+        boolean signatureGenerated = false;
+        try {
+            if (enableEncryption) {
+                /* actual encryption */
+
+                encryptionBuffer = BufferPool.obtain();
+                encryptionOut = cPk.open(out, encryptionBuffer);
+
+                if (mPipelined) {
+                    // this thread reads and hashes, compression and encryption run on their own
+                    // threads, the written packets are the same as without pipelining
+                    ChunkPipe encryptionPipe = new ChunkPipe();
+                    pipes.add(encryptionPipe);
+                    stages.add(encryptionPipe.drainTo(encryptionOut));
+                    pipelineOut = encryptionPipe.getOutputStream();
+
+                    if (enableCompression) {
+                        compressGen = new PGPCompressedDataGenerator(compressionId);
+                        ChunkPipe compressionPipe = new ChunkPipe();
+                        pipes.add(compressionPipe);
+                        stages.add(compressionPipe.drainTo(
+                                new CompressionStageOutputStream(compressGen, pipelineOut)));
+                        pipelineOut = compressionPipe.getOutputStream();
+                    }
+                    bcpgOut = new BCPGOutputStream(pipelineOut);
+                } else if (enableCompression) {
+                    compressGen = new PGPCompressedDataGenerator(compressionId);
+                    bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
                 } else {
-                    signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+                    bcpgOut = new BCPGOutputStream(encryptionOut);
                 }
-            }
-
-            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-            // file name not needed, so empty string
-            pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
-                    new byte[1 << 16]);
-            updateProgress(R.string.progress_encrypting, 20, 100);
 
-            long progress = 0;
-            int n;
-            byte[] buffer = new byte[1 << 16];
-            InputStream in = mData.getInputStream();
-            while ((n = in.read(buffer)) > 0) {
-                pOut.write(buffer, 0, n);
-
-                // update signature buffer if signature is requested
                 if (enableSignature) {
                     if (mSignatureForceV3) {
-                        signatureV3Generator.update(buffer, 0, n);
+                        signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
                     } else {
-                        signatureGenerator.update(buffer, 0, n);
+                        signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
                     }
                 }
 
-                progress += n;
-                if (mData.getSize() != 0) {
-                    updateProgress((int) (20 + (95 - 20) * progress / mData.getSize()), 100);
+                PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+                // file name not needed, so empty string
+                literalBuffer = BufferPool.obtain();
+                pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
+                        literalBuffer);
+                updateProgress(R.string.progress_encrypting, 20, 100);
+
+                int n;
+                buffer = BufferPool.obtain();
+                InputStream in = mData.getInputStream();
+                while ((n = in.read(buffer)) > 0) {
+                    pOut.write(buffer, 0, n);
+
+                    // update signature buffer if signature is requested
+                    if (enableSignature) {
+                        if (mSignatureForceV3) {
+                            signatureV3Generator.update(buffer, 0, n);
+                        } else {
+                            signatureGenerator.update(buffer, 0, n);
+                        }
+                    }
+
+                    if (mData.getSize() != 0) {
+                        long position = mData.getStreamPosition();
+                        updateProgress((int) (20 + (95 - 20) * position / mData.getSize()), 100,
+                                position, mData.getSize());
+                    }
                 }
-            }
 
-            literalGen.close();
-        } else if (enableSignature && mCleartextInput && mEnableAsciiArmorOutput) {
-            /* cleartext signature: sign-only of ascii text */
+                literalGen.close();
+            } else if (enableSignature && mCleartextInput && mEnableAsciiArmorOutput) {
+                /* cleartext signature: sign-only of ascii text */
 
-            updateProgress(R.string.progress_signing, 40, 100);
+                updateProgress(R.string.progress_signing, 40, 100);
 
-            // write -----BEGIN PGP SIGNED MESSAGE-----
-            armorOut.beginClearText(mSignatureHashAlgorithm);
+                // write -----BEGIN PGP SIGNED MESSAGE-----
+                armorOut.beginClearText(mSignatureHashAlgorithm);
 
-            InputStream in = mData.getInputStream();
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                CleartextLineReader reader = new CleartextLineReader(mData.getInputStream());
+                int length;
+                boolean firstLine = true;
+                while ((length = reader.readLine()) >= 0) {
+                    byte[] line = reader.getLine();
 
-            // update signature buffer with first line
-            if (mSignatureForceV3) {
-                processLineV3(reader.readLine(), armorOut, signatureV3Generator);
-            } else {
-                processLine(reader.readLine(), armorOut, signatureGenerator);
-            }
+                    // line endings are only written between lines
+                    if (!firstLine) {
+                        armorOut.write(NEW_LINE);
+                        if (mSignatureForceV3) {
+                            signatureV3Generator.update(NEW_LINE);
+                        } else {
+                            signatureGenerator.update(NEW_LINE);
+                        }
+                    }
+                    firstLine = false;
 
-            while (true) {
-                String line = reader.readLine();
+                    armorOut.write(line, 0, length);
+                    if (mSignatureForceV3) {
+                        signatureV3Generator.update(line, 0, length);
+                    } else {
+                        signatureGenerator.update(line, 0, length);
+                    }
 
-                // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
-                if (line == null) {
-                    armorOut.write(NEW_LINE);
-                    break;
+                    if (mData.getSize() != 0) {
+                        long position = mData.getStreamPosition();
+                        updateProgress((int) (40 + (95 - 40) * position / mData.getSize()), 100,
+                                position, mData.getSize());
+                    }
                 }
 
+                // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
                 armorOut.write(NEW_LINE);
 
-                // update signature buffer with input line
-                if (mSignatureForceV3) {
-                    signatureV3Generator.update(NEW_LINE);
-                    processLineV3(line, armorOut, signatureV3Generator);
+                armorOut.endClearText();
+
+                pOut = new BCPGOutputStream(armorOut);
+            } else if (enableSignature && !mCleartextInput) {
+                /* sign-only binary (files/data stream) */
+
+                updateProgress(R.string.progress_signing, 40, 100);
+
+                InputStream in = mData.getInputStream();
+
+                if (enableCompression) {
+                    compressGen = new PGPCompressedDataGenerator(compressionId);
+                    bcpgOut = new BCPGOutputStream(compressGen.open(out));
                 } else {
-                    signatureGenerator.update(NEW_LINE);
-                    processLine(line, armorOut, signatureGenerator);
+                    bcpgOut = new BCPGOutputStream(out);
                 }
-            }
 
-            armorOut.endClearText();
+                if (mSignatureForceV3) {
+                    signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
+                } else {
+                    signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+                }
 
-            pOut = new BCPGOutputStream(armorOut);
-        } else if (enableSignature && !mCleartextInput) {
-            /* sign-only binary (files/data stream) */
+                PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+                // file name not needed, so empty string
+                literalBuffer = BufferPool.obtain();
+                pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
+                        literalBuffer);
 
-            updateProgress(R.string.progress_signing, 40, 100);
+                buffer = BufferPool.obtain();
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    pOut.write(buffer, 0, n);
 
-            InputStream in = mData.getInputStream();
+                    if (mSignatureForceV3) {
+                        signatureV3Generator.update(buffer, 0, n);
+                    } else {
+                        signatureGenerator.update(buffer, 0, n);
+                    }
 
-            if (enableCompression) {
-                compressGen = new PGPCompressedDataGenerator(mCompressionId);
-                bcpgOut = new BCPGOutputStream(compressGen.open(out));
-            } else {
-                bcpgOut = new BCPGOutputStream(out);
-            }
+                    if (mData.getSize() != 0) {
+                        long position = mData.getStreamPosition();
+                        updateProgress((int) (40 + (95 - 40) * position / mData.getSize()), 100,
+                                position, mData.getSize());
+                    }
+                }
 
-            if (mSignatureForceV3) {
-                signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
+                literalGen.close();
             } else {
-                signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+                pOut = null;
+                Log.e(Constants.TAG, "not supported!");
             }
 
-            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-            // file name not needed, so empty string
-            pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
-                    new byte[1 << 16]);
-
-            byte[] buffer = new byte[1 << 16];
-            int n;
-            while ((n = in.read(buffer)) > 0) {
-                pOut.write(buffer, 0, n);
-
+            if (enableSignature) {
+                updateProgress(R.string.progress_generating_signature, 95, 100);
+                PGPSignature signature;
                 if (mSignatureForceV3) {
-                    signatureV3Generator.update(buffer, 0, n);
+                    signature = signatureV3Generator.generate();
                 } else {
-                    signatureGenerator.update(buffer, 0, n);
+                    signature = signatureGenerator.generate();
                 }
+                signatureGenerated = true;
+                signature.encode(pOut);
             }
 
-            literalGen.close();
-        } else {
-            pOut = null;
-            Log.e(Constants.TAG, "not supported!");
-        }
+            // closing outputs
+            // NOTE: closing needs to be done in the correct order!
+            // TODO: closing bcpgOut and pOut???
+            if (pipelineOut != null) {
+                // the stages close compressGen and encryptionOut at the end of their input
+                pipelineOut.close();
+                for (int i = stages.size() - 1; i >= 0; i--) {
+                    ChunkPipe.waitFor(stages.get(i));
+                }
+            } else if (enableEncryption) {
+                if (enableCompression) {
+                    compressGen.close();
+                }
 
-        if (enableSignature) {
-            updateProgress(R.string.progress_generating_signature, 95, 100);
-            if (mSignatureForceV3) {
-                signatureV3Generator.generate().encode(pOut);
-            } else {
-                signatureGenerator.generate().encode(pOut);
+                encryptionOut.close();
+            }
+            if (mEnableAsciiArmorOutput) {
+                armorOut.close();
             }
-        }
 
-        // closing outputs
-        // NOTE: closing needs to be done in the correct order!
-        // TODO: closing bcpgOut and pOut???
-        if (enableEncryption) {
-            if (enableCompression) {
-                compressGen.close();
+            out.close();
+            mOutStream.close();
+
+            updateProgress(R.string.progress_done, 100, 100);
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                // stages on other threads may still use the buffers, stop them first
+                for (ChunkPipe pipe : pipes) {
+                    pipe.abort();
+                }
+                for (Future<Void> stage : stages) {
+                    try {
+                        ChunkPipe.waitFor(stage);
+                    } catch (IOException e) {
+                        // failed because of the abort
+                    }
+                }
             }
+            BufferPool.recycle(encryptionBuffer, false);
+            BufferPool.recycle(literalBuffer, true);
+            BufferPool.recycle(buffer, true);
 
-            encryptionOut.close();
-        }
-        if (mEnableAsciiArmorOutput) {
-            armorOut.close();
+            // a generator which failed before generate() still holds data of this message
+            // and is dropped
+            if (signatureGenerated) {
+                if (mSignatureForceV3) {
+                    signingSession.releaseV3Generator(signatureType, signatureV3Generator);
+                } else {
+                    signingSession.releaseGenerator(signatureType, signatureGenerator);
+                }
+            }
         }
-
-        out.close();
-        mOutStream.close();
-
-        updateProgress(R.string.progress_done, 100, 100);
     }
 
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPSignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
+    /**
+     * Target of the compression stage in pipelined encryption, closing it finishes the
+     * compressed data packet.
+     */
+    private static class CompressionStageOutputStream extends OutputStream {
+        private PGPCompressedDataGenerator mCompressGen;
+        private OutputStream mCompressedOut;
+        private OutputStream mOut;
 
-        if (pLine == null) {
-            return;
+        CompressionStageOutputStream(PGPCompressedDataGenerator compressGen, OutputStream out)
+                throws IOException {
+            mCompressGen = compressGen;
+            mCompressedOut = compressGen.open(out);
+            mOut = out;
         }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
-
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
-            }
-            len--;
+        @Override
+        public void write(int b) throws IOException {
+            mCompressedOut.write(b);
         }
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            mCompressedOut.write(b, offset, length);
+        }
 
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
+        @Override
+        public void close() throws IOException {
+            mCompressGen.close();
+            mOut.close();
         }
-        pSignatureGenerator.update(data);
     }
 
-    private static void processLineV3(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                      final PGPV3SignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
-
-        if (pLine == null) {
-            return;
+    /**
+     * Trial compression with the fastest deflate level, which is sufficient to detect already
+     * compressed data.
+     *
+     * @param sample
+     * @return compressed size in percent of the sample size
+     */
+    private static int estimateCompressionRatio(byte[] sample) {
+        if (sample.length == 0) {
+            return 100;
         }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
-
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
-            }
-            len--;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(sample);
+        deflater.finish();
+        byte[] buffer = new byte[1 << 12];
+        long compressed = 0;
+        while (!deflater.finished()) {
+            compressed += deflater.deflate(buffer);
         }
+        deflater.end();
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
-
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
-        }
-        pSignatureGenerator.update(data);
+        return (int) (compressed * 100 / sample.length);
     }
 
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.thialfihar.android.apg.Constants;
+
+public class PgpSignEncryptResult implements Parcelable {
+    // compression algorithm actually used
+    int mCompressionId = Constants.choice.compression.none;
+    // compressed size of the sampled input in percent, -1 if not sampled
+    int mCompressionSampleRatio = -1;
+
+    public int getCompressionId() {
+        return mCompressionId;
+    }
+
+    public void setCompressionId(int compressionId) {
+        mCompressionId = compressionId;
+    }
+
+    public int getCompressionSampleRatio() {
+        return mCompressionSampleRatio;
+    }
+
+    public void setCompressionSampleRatio(int compressionSampleRatio) {
+        mCompressionSampleRatio = compressionSampleRatio;
+    }
+
+    public PgpSignEncryptResult() {
+
+    }
+
+    public PgpSignEncryptResult(PgpSignEncryptResult b) {
+        this.mCompressionId = b.mCompressionId;
+        this.mCompressionSampleRatio = b.mCompressionSampleRatio;
+    }
+
+    public int describeContents() {
+        return 0;
+    }
+
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mCompressionId);
+        dest.writeInt(mCompressionSampleRatio);
+    }
+
+    public static final Creator<PgpSignEncryptResult> CREATOR = new Creator<PgpSignEncryptResult>() {
+        public PgpSignEncryptResult createFromParcel(final Parcel source) {
+            PgpSignEncryptResult result = new PgpSignEncryptResult();
+            result.mCompressionId = source.readInt();
+            result.mCompressionSampleRatio = source.readInt();
+            return result;
+        }
+
+        public PgpSignEncryptResult[] newArray(final int size) {
+            return new PgpSignEncryptResult[size];
+        }
+    };
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import android.util.SparseArray;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.PGPSignatureSubpacketVector;
+import org.spongycastle.openpgp.PGPV3SignatureGenerator;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.provider.ApgContract;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.service.UnlockedKeyCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Everything needed to sign with one key and hash algorithm: the unlocked private key, the
+ * signer user id subpacket and initialized signature generators. A generator can be reused
+ * after generate(), so generators are kept in a pool per signature type instead of building a
+ * new content signer for every signature.
+ * <p/>
+ * The state of a generator after generate() does not depend on the signed data: generate()
+ * resets the content signer, the hashed subpackets are the same for all signatures of a session
+ * and the creation time is added by generate() itself. The last byte remembered for
+ * CANONICAL_TEXT_DOCUMENT is never a CR, because PgpSignEncrypt only passes complete CR LF line
+ * endings between lines. A generator that failed before generate() still holds hashed data and
+ * must not be released.
+ * <p/>
+ * Sessions are thread safe, every thread acquires its own generator. They are cached together
+ * with the unlocked keys in UnlockedKeyCache.
+ */
+public class PgpSigningSession {
+    private long mMasterKeyId;
+    private int mHashAlgorithm;
+    private PGPPrivateKey mPrivateKey;
+    private PGPSignatureSubpacketVector mHashedSubpackets;
+    private JcaPGPContentSignerBuilder mContentSignerBuilder;
+
+    private SparseArray<ArrayList<PGPSignatureGenerator>> mGenerators =
+            new SparseArray<ArrayList<PGPSignatureGenerator>>();
+    private SparseArray<ArrayList<PGPV3SignatureGenerator>> mV3Generators =
+            new SparseArray<ArrayList<PGPV3SignatureGenerator>>();
+
+    private PgpSigningSession(long masterKeyId, int hashAlgorithm, PGPSecretKey signingKey,
+                              PGPPrivateKey privateKey, String signingUserId) {
+        mMasterKeyId = masterKeyId;
+        mHashAlgorithm = hashAlgorithm;
+        mPrivateKey = privateKey;
+
+        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+        spGen.setSignerUserID(false, signingUserId);
+        mHashedSubpackets = spGen.generate();
+
+        // content signer based on signing key algorithm and chosen hash algorithm
+        mContentSignerBuilder = new JcaPGPContentSignerBuilder(
+                signingKey.getPublicKey().getAlgorithm(), hashAlgorithm)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    /**
+     * Checks if open() can succeed without a passphrase, because a session is cached or the
+     * signing key has already been unlocked.
+     *
+     * @param providerHelper
+     * @param masterKeyId
+     * @param hashAlgorithm
+     * @param unlockedKeyCache
+     * @return
+     */
+    public static boolean isUnlocked(ProviderHelper providerHelper, long masterKeyId,
+                                     int hashAlgorithm, UnlockedKeyCache unlockedKeyCache) {
+        if (unlockedKeyCache.getSigningSession(masterKeyId, hashAlgorithm) != null) {
+            return true;
+        }
+
+        PGPSecretKey signingKey;
+        try {
+            signingKey = PgpKeyHelper.getFirstSigningSubkey(
+                    providerHelper.getPGPSecretKeyRing(masterKeyId));
+        } catch (ProviderHelper.NotFoundException e) {
+            return false;
+        }
+        return signingKey != null && unlockedKeyCache.get(signingKey.getKeyID()) != null;
+    }
+
+    /**
+     * Returns the cached session for this key and hash algorithm or creates a new one, which
+     * unlocks the signing key if it is not in the unlockedKeyCache.
+     *
+     * @param providerHelper
+     * @param masterKeyId
+     * @param hashAlgorithm
+     * @param passphrase       only needed if the key is not unlocked yet
+     * @param unlockedKeyCache can be null
+     * @return
+     */
+    public static PgpSigningSession open(ProviderHelper providerHelper, long masterKeyId,
+                                         int hashAlgorithm, String passphrase,
+                                         UnlockedKeyCache unlockedKeyCache)
+            throws PGPException, PgpSignEncrypt.NoSigningKeyException,
+            PgpSignEncrypt.NoPassphraseException, PgpSignEncrypt.KeyExtractionException {
+        if (unlockedKeyCache != null) {
+            PgpSigningSession session =
+                    unlockedKeyCache.getSigningSession(masterKeyId, hashAlgorithm);
+            if (session != null) {
+                return session;
+            }
+        }
+
+        PGPSecretKeyRing signingKeyRing;
+        String signingUserId;
+        try {
+            signingKeyRing = providerHelper.getPGPSecretKeyRing(masterKeyId);
+            signingUserId = (String) providerHelper.getUnifiedData(masterKeyId,
+                    ApgContract.KeyRings.USER_ID, ProviderHelper.FIELD_TYPE_STRING);
+        } catch (ProviderHelper.NotFoundException e) {
+            throw new PgpSignEncrypt.NoSigningKeyException();
+        }
+        PGPSecretKey signingKey = PgpKeyHelper.getFirstSigningSubkey(signingKeyRing);
+        if (signingKey == null) {
+            throw new PgpSignEncrypt.NoSigningKeyException();
+        }
+
+        PGPPrivateKey privateKey = null;
+        if (unlockedKeyCache != null) {
+            privateKey = unlockedKeyCache.get(signingKey.getKeyID());
+        }
+
+        if (privateKey == null) {
+            if (passphrase == null) {
+                throw new PgpSignEncrypt.NoPassphraseException();
+            }
+
+            char[] passphraseChars = passphrase.toCharArray();
+            try {
+                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(passphraseChars);
+                privateKey = signingKey.extractPrivateKey(keyDecryptor);
+            } finally {
+                Arrays.fill(passphraseChars, '\0');
+            }
+            if (privateKey == null) {
+                throw new PgpSignEncrypt.KeyExtractionException();
+            }
+            if (unlockedKeyCache != null) {
+                unlockedKeyCache.put(masterKeyId, privateKey);
+            }
+        }
+
+        PgpSigningSession session = new PgpSigningSession(masterKeyId, hashAlgorithm, signingKey,
+                privateKey, signingUserId);
+        if (unlockedKeyCache != null) {
+            unlockedKeyCache.putSigningSession(session);
+        }
+        return session;
+    }
+
+    public long getMasterKeyId() {
+        return mMasterKeyId;
+    }
+
+    public int getHashAlgorithm() {
+        return mHashAlgorithm;
+    }
+
+    /**
+     * @return key id of the signing subkey
+     */
+    public long getKeyId() {
+        return mPrivateKey.getKeyID();
+    }
+
+    /**
+     * Returns an initialized generator, which must be given back by releaseGenerator() after
+     * generate() has been called. If signing fails before, the generator is dropped instead.
+     *
+     * @param signatureType
+     * @return
+     */
+    public PGPSignatureGenerator acquireGenerator(int signatureType) throws PGPException {
+        synchronized (mGenerators) {
+            ArrayList<PGPSignatureGenerator> pool = mGenerators.get(signatureType);
+            if (pool != null && !pool.isEmpty()) {
+                return pool.remove(pool.size() - 1);
+            }
+        }
+
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(mContentSignerBuilder);
+        generator.init(signatureType, mPrivateKey);
+        generator.setHashedSubpackets(mHashedSubpackets);
+        return generator;
+    }
+
+    public void releaseGenerator(int signatureType, PGPSignatureGenerator generator) {
+        synchronized (mGenerators) {
+            ArrayList<PGPSignatureGenerator> pool = mGenerators.get(signatureType);
+            if (pool == null) {
+                pool = new ArrayList<PGPSignatureGenerator>();
+                mGenerators.put(signatureType, pool);
+            }
+            pool.add(generator);
+        }
+    }
+
+    /**
+     * Like acquireGenerator() for V3 signatures.
+     *
+     * @param signatureType
+     * @return
+     */
+    public PGPV3SignatureGenerator acquireV3Generator(int signatureType) throws PGPException {
+        synchronized (mV3Generators) {
+            ArrayList<PGPV3SignatureGenerator> pool = mV3Generators.get(signatureType);
+            if (pool != null && !pool.isEmpty()) {
+                return pool.remove(pool.size() - 1);
+            }
+        }
+
+        PGPV3SignatureGenerator generator = new PGPV3SignatureGenerator(mContentSignerBuilder);
+        generator.init(signatureType, mPrivateKey);
+        return generator;
+    }
+
+    public void releaseV3Generator(int signatureType, PGPV3SignatureGenerator generator) {
+        synchronized (mV3Generators) {
+            ArrayList<PGPV3SignatureGenerator> pool = mV3Generators.get(signatureType);
+            if (pool == null) {
+                pool = new ArrayList<PGPV3SignatureGenerator>();
+                mV3Generators.put(signatureType, pool);
+            }
+            pool.add(generator);
+        }
+    }
+}
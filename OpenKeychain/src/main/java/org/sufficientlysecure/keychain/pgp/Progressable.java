@@ -21,4 +21,14 @@ public interface Progressable {
     void setProgress(String message, int current, int total);
     void setProgress(int resourceId, int current, int total);
     void setProgress(int current, int total);
+
+    /**
+     * Throughput of byte oriented operations, sent before the corresponding setProgress call
+     *
+     * @param bytes          bytes processed so far
+     * @param totalBytes     total bytes or -1 if unknown
+     * @param bytesPerSecond average throughput
+     * @param etaSeconds     estimated remaining time or -1 if unknown
+     */
+    void setTransferProgress(long bytes, long totalBytes, long bytesPerSecond, long etaSeconds);
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.operator.PGPDataDecryptor;
+import org.spongycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+
+import org.thialfihar.android.apg.Constants;
+
+import java.math.BigInteger;
+import java.security.PrivateKey;
+
+/**
+ * Decryptor factory working on the session key instead of the private key, the session key
+ * "session info" is the algorithm, the key and its two byte checksum as in the public key
+ * encrypted session key packet.
+ * <p/>
+ * Either the session key is given and returned for any packet, so no secret key is needed to
+ * decrypt. Or the session key is recovered by a real factory and kept, so it can be exported.
+ */
+public class SessionKeyDataDecryptorFactory implements PublicKeyDataDecryptorFactory {
+    private PublicKeyDataDecryptorFactory mDelegate;
+    private byte[] mSessionInfo;
+
+    /**
+     * Decrypts with the given session key.
+     *
+     * @param algorithm  symmetric algorithm of the session key
+     * @param sessionKey
+     */
+    public SessionKeyDataDecryptorFactory(int algorithm, byte[] sessionKey) {
+        // the data decryptor does not need the private key
+        mDelegate = new JcePublicKeyDataDecryptorFactoryBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build((PrivateKey) null);
+
+        mSessionInfo = new byte[sessionKey.length + 3];
+        mSessionInfo[0] = (byte) algorithm;
+        System.arraycopy(sessionKey, 0, mSessionInfo, 1, sessionKey.length);
+        int checksum = 0;
+        for (byte b : sessionKey) {
+            checksum += b & 0xff;
+        }
+        mSessionInfo[mSessionInfo.length - 2] = (byte) (checksum >> 8);
+        mSessionInfo[mSessionInfo.length - 1] = (byte) checksum;
+    }
+
+    /**
+     * Recovers the session key with delegate and keeps it.
+     *
+     * @param delegate
+     */
+    public SessionKeyDataDecryptorFactory(PublicKeyDataDecryptorFactory delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public byte[] recoverSessionData(int keyAlgorithm, BigInteger[] secKeyData)
+            throws PGPException {
+        if (mSessionInfo == null) {
+            mSessionInfo = mDelegate.recoverSessionData(keyAlgorithm, secKeyData);
+        }
+        return mSessionInfo.clone();
+    }
+
+    @Override
+    public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm,
+                                                byte[] key) throws PGPException {
+        return mDelegate.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+    }
+
+    /**
+     * @return symmetric algorithm of the session key or -1 if not recovered yet
+     */
+    public int getAlgorithm() {
+        if (mSessionInfo == null) {
+            return -1;
+        }
+        return mSessionInfo[0] & 0xff;
+    }
+
+    /**
+     * @return session key without algorithm and checksum or null if not recovered yet
+     */
+    public byte[] getSessionKey() {
+        if (mSessionInfo == null) {
+            return null;
+        }
+        byte[] sessionKey = new byte[mSessionInfo.length - 3];
+        System.arraycopy(mSessionInfo, 1, sessionKey, 0, sessionKey.length);
+        return sessionKey;
+    }
+}
@@ -27,6 +27,7 @@ public class ApgContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String CONTENT_HASH = "content_hash"; // only for public keyrings, see ProviderHelper
     }
 
     interface KeysColumns {
@@ -51,6 +52,7 @@ public class ApgContract {
     interface UserIdsColumns {
         String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
         String USER_ID = "user_id"; // not a database id
+        String EMAIL = "email"; // lower case email of user_id, only used for lookups
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
@@ -66,6 +68,19 @@ public class ApgContract {
         String DATA = "data";
     }
 
+    interface CertCacheColumns {
+        String MASTER_KEY_ID = "master_key_id";
+        String SIGNATURE_HASH = "signature_hash";
+        String VERIFIED = "verified";
+    }
+
+    interface KeyRingSummaryColumns {
+        String ANY_ENCRYPT = "any_encrypt"; // has a not revoked encryption subkey
+        String ENCRYPT_EXPIRY = "encrypt_expiry"; // latest expiry of those, null if never
+        String ANY_SIGN = "any_sign"; // has a not revoked signing subkey with secret key
+        String SIGN_EXPIRY = "sign_expiry"; // latest expiry of those, null if never
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_SIGNATURE = "package_signature";
@@ -93,12 +108,14 @@ public class ApgContract {
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_MASTER_KEY_ID = "master_key_id";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_CERT_CACHE = "cert_cache";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
@@ -147,6 +164,24 @@ public class ApgContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY).appendPath(subkey).build();
         }
 
+        /**
+         * Only returns master_key_id and has_secret of the key with this key id, without joining
+         * user ids and certifications. Several comma separated key ids can be given.
+         */
+        public static Uri buildMasterKeyIdFindBySubkeyUri(String subkey) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY).appendPath(subkey)
+                    .appendPath(PATH_MASTER_KEY_ID).build();
+        }
+
+        /**
+         * Only returns master_key_id and email of the user ids with this email, without joining
+         * keys and certifications. Several comma separated emails can be given.
+         */
+        public static Uri buildMasterKeyIdFindByEmailUri(String email) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_EMAIL).appendPath(email)
+                    .appendPath(PATH_MASTER_KEY_ID).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -308,6 +343,21 @@ public class ApgContract {
 
     }
 
+    /**
+     * Columns of key_ring_summary which are not returned as they are, KeyRings has all others
+     */
+    public static class KeyRingSummary implements KeyRingSummaryColumns {
+    }
+
+    public static class CertCache implements CertCacheColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        public static Uri buildCertCacheUri(String masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(masterKeyId).appendPath(PATH_CERT_CACHE).build();
+        }
+    }
+
     private ApgContract() {
     }
 }
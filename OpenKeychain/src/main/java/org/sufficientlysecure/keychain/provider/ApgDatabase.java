@@ -17,21 +17,71 @@
 
 package org.thialfihar.android.apg.provider;
 
+import android.annotation.TargetApi;
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import org.spongycastle.openpgp.PGPKeyRing;
 
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.pgp.KeyRing;
+import org.thialfihar.android.apg.pgp.PgpKeyHelper;
 import org.thialfihar.android.apg.provider.ProviderHelper;
 import org.thialfihar.android.apg.util.Log;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 
 public class ApgDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
+
+    // keyrings saved per transaction when migrating from apg
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    // pages of the page cache of a connection, about 2 MiB with the default page size
+    private static final int CACHE_SIZE = 2000;
+    // compiled statements kept by a connection, the maximum allowed by SQLiteDatabase
+    private static final int MAX_SQL_CACHE_SIZE = 100;
+
+    /**
+     * Computes the key_ring_summary rows from the master key, the first user id, the certs and
+     * the subkeys. The expiry of encryption and signing is the latest expiry of the capable
+     * subkeys, null if one of them does not expire.
+     */
+    private static final String INSERT_KEY_RING_SUMMARY =
+        "INSERT OR REPLACE INTO key_ring_summary(" +
+            "master_key_id, key_id, key_size, algorithm, fingerprint, " +
+            "can_certify, can_sign, can_encrypt, is_revoked, has_secret, creation, expiry, " +
+            "user_id, verified, has_any_secret, " +
+            "any_encrypt, encrypt_expiry, any_sign, sign_expiry) " +
+        "SELECT keys.master_key_id, keys.key_id, keys.key_size, keys.algorithm, " +
+            "keys.fingerprint, keys.can_certify, keys.can_sign, keys.can_encrypt, " +
+            "keys.is_revoked, keys.has_secret, keys.creation, keys.expiry, " +
+            "user_ids.user_id, " +
+            "(SELECT MAX(certs.verified) FROM certs " +
+                "WHERE certs.master_key_id = keys.master_key_id AND certs.verified = 1), " +
+            "EXISTS (SELECT * FROM keyrings_secret " +
+                "WHERE keyrings_secret.master_key_id = keys.master_key_id), " +
+            "EXISTS (SELECT * FROM keys AS k WHERE k.master_key_id = keys.master_key_id " +
+                "AND k.is_revoked = 0 AND k.can_encrypt = 1), " +
+            "(SELECT CASE WHEN COUNT(*) > COUNT(k.expiry) THEN NULL ELSE MAX(k.expiry) END " +
+                "FROM keys AS k WHERE k.master_key_id = keys.master_key_id " +
+                "AND k.is_revoked = 0 AND k.can_encrypt = 1), " +
+            "EXISTS (SELECT * FROM keys AS k WHERE k.master_key_id = keys.master_key_id " +
+                "AND k.is_revoked = 0 AND k.has_secret = 1 AND k.can_sign = 1), " +
+            "(SELECT CASE WHEN COUNT(*) > COUNT(k.expiry) THEN NULL ELSE MAX(k.expiry) END " +
+                "FROM keys AS k WHERE k.master_key_id = keys.master_key_id " +
+                "AND k.is_revoked = 0 AND k.has_secret = 1 AND k.can_sign = 1) " +
+        "FROM keys INNER JOIN user_ids ON (keys.master_key_id = user_ids.master_key_id " +
+            "AND user_ids.rank = 0) " +
+        "WHERE keys.rank = 0";
 
     static Boolean migrationHack = false;
 
@@ -43,6 +93,8 @@ public class ApgDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String USER_IDS = "user_ids";
         String CERTS = "certs";
+        String CERT_CACHE = "cert_cache";
+        String KEY_RING_SUMMARY = "key_ring_summary";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
     }
@@ -50,6 +102,9 @@ public class ApgDatabase extends SQLiteOpenHelper {
     ApgDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging();
+        }
         // make sure this is only done once, on the first instance!
         boolean iAmIt = false;
         synchronized(migrationHack) {
@@ -127,12 +182,7 @@ public class ApgDatabase extends SQLiteOpenHelper {
             cursor = db.rawQuery(query, null);
             if (cursor != null) {
                 Log.d(Constants.TAG, "Migrating " + cursor.getCount() + " secret keyrings from apg...");
-                for (int i = 0; i < cursor.getCount(); i++) {
-                    cursor.moveToPosition(i);
-                    byte[] data = cursor.getBlob(0);
-                    KeyRing keyRing = KeyRing.decode(data);
-                    providerHelper.saveKeyRing(keyRing);
-                }
+                migrateKeyRings(cursor, providerHelper);
                 cursor.close();
             }
 
@@ -152,12 +202,7 @@ public class ApgDatabase extends SQLiteOpenHelper {
 
             if (cursor != null) {
             Log.d(Constants.TAG, "Migrating " + cursor.getCount() + " keyrings from apg...");
-                for (int i = 0; i < cursor.getCount(); i++) {
-                    cursor.moveToPosition(i);
-                    byte[] data = cursor.getBlob(0);
-                    KeyRing keyRing = KeyRing.decode(data);
-                    providerHelper.saveKeyRing(keyRing);
-                }
+                migrateKeyRings(cursor, providerHelper);
             }
         } catch (IOException e) {
             Log.e(Constants.TAG, "Error migrating apg!", e);
@@ -175,13 +220,39 @@ public class ApgDatabase extends SQLiteOpenHelper {
         mContext.getDatabasePath("apg").renameTo(mContext.getDatabasePath("apg_old.db"));
     }
 
+    /**
+     * Saves the keyrings of the cursor in order, MIGRATION_BATCH_SIZE keyrings per transaction
+     */
+    private static void migrateKeyRings(Cursor cursor, ProviderHelper providerHelper)
+            throws IOException {
+        ArrayList<PGPKeyRing> keyRings = new ArrayList<PGPKeyRing>(MIGRATION_BATCH_SIZE);
+        for (int i = 0; i < cursor.getCount(); i++) {
+            cursor.moveToPosition(i);
+            byte[] data = cursor.getBlob(0);
+            KeyRing keyRing = KeyRing.decode(data);
+            if (keyRing == null) {
+                continue;
+            }
+            keyRings.add(keyRing.isPublic() ? keyRing.getPublicKeyRing()
+                    : keyRing.getSecretKeyRing());
+            if (keyRings.size() == MIGRATION_BATCH_SIZE) {
+                providerHelper.saveKeyRings(keyRings);
+                keyRings.clear();
+            }
+        }
+        if (!keyRings.isEmpty()) {
+            providerHelper.saveKeyRings(keyRings);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.w(Constants.TAG, "Creating database...");
 
         db.execSQL("CREATE TABLE IF NOT EXISTS keyrings_public(" +
             "master_key_id INTEGER PRIMARY KEY," +
-            "key_ring_data BLOB);");
+            "key_ring_data BLOB," +
+            "content_hash BLOB);");
 
         db.execSQL("CREATE TABLE IF NOT EXISTS keyrings_secret(" +
             "master_key_id INTEGER PRIMARY KEY," +
@@ -210,6 +281,7 @@ public class ApgDatabase extends SQLiteOpenHelper {
         db.execSQL("CREATE TABLE IF NOT EXISTS user_ids(" +
             "master_key_id INTEGER, " +
             "user_id TEXT, " +
+            "email TEXT, " +
             "is_primary BOOLEAN, " +
             "is_revoked BOOLEAN, " +
             "rank INTEGER, " +
@@ -247,6 +319,117 @@ public class ApgDatabase extends SQLiteOpenHelper {
                     "keyrings_public(master_key_id) ON DELETE CASCADE," +
             "FOREIGN KEY(master_key_id, rank) REFERENCES " +
                     "user_ids(master_key_id, rank) ON DELETE CASCADE)");
+
+        createCertCache(db);
+        createKeyRingSummary(db);
+        createIndices(db);
+    }
+
+    /**
+     * One row per keyring with everything the key list and the lookups need, so they read a
+     * single table. It is updated by ApgProvider whenever the rows of a keyring change.
+     */
+    private static void createKeyRingSummary(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS key_ring_summary(" +
+            "master_key_id INTEGER PRIMARY KEY, " +
+            "key_id INTEGER, " +
+            "key_size INTEGER, " +
+            "algorithm INTEGER, " +
+            "fingerprint BLOB, " +
+            "can_certify BOOLEAN, " +
+            "can_sign BOOLEAN, " +
+            "can_encrypt BOOLEAN, " +
+            "is_revoked BOOLEAN, " +
+            "has_secret BOOLEAN, " +
+            "creation INTEGER, " +
+            "expiry INTEGER, " +
+            "user_id TEXT, " +
+            "verified INTEGER, " +
+            "has_any_secret BOOLEAN, " +
+            "any_encrypt BOOLEAN, " +
+            "encrypt_expiry INTEGER, " +
+            "any_sign BOOLEAN, " +
+            "sign_expiry INTEGER, " +
+            "FOREIGN KEY(master_key_id) REFERENCES " +
+                "keyrings_public(master_key_id) ON DELETE CASCADE)");
+    }
+
+    /**
+     * Recomputes the key_ring_summary rows of these keyrings, a keyring without user id or
+     * which has been deleted has no row.
+     */
+    static void updateKeyRingSummaries(SQLiteDatabase db, Collection<Long> masterKeyIds) {
+        SQLiteStatement delete =
+                db.compileStatement("DELETE FROM key_ring_summary WHERE master_key_id = ?");
+        SQLiteStatement insert =
+                db.compileStatement(INSERT_KEY_RING_SUMMARY + " AND keys.master_key_id = ?");
+        try {
+            for (long masterKeyId : masterKeyIds) {
+                delete.bindLong(1, masterKeyId);
+                delete.execute();
+                insert.bindLong(1, masterKeyId);
+                insert.execute();
+            }
+        } finally {
+            delete.close();
+            insert.close();
+        }
+    }
+
+    /**
+     * Results of certification verifications by hash of the signature, see ProviderHelper.
+     * They are deleted with the public keyring and saved again with each new version of it.
+     */
+    private static void createCertCache(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS cert_cache(" +
+            "master_key_id INTEGER, " +
+            "signature_hash BLOB, " +
+            "verified BOOLEAN, " +
+            "PRIMARY KEY(master_key_id, signature_hash), " +
+            "FOREIGN KEY(master_key_id) REFERENCES " +
+                "keyrings_public(master_key_id) ON DELETE CASCADE)");
+    }
+
+    /**
+     * Secondary indices for lookups by subkey id, by email and for the verified state of a
+     * keyring. Without them, each of these lookups scans the whole table.
+     */
+    private static void createIndices(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS keys_key_id ON keys(key_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS user_ids_email ON user_ids(email)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS certs_verified ON certs(master_key_id, verified)");
+    }
+
+    /**
+     * Fills the email column for user ids which have been saved before it existed.
+     */
+    private static void fillUserIdEmails(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT oid, user_id FROM user_ids", null);
+        try {
+            while (cursor.moveToNext()) {
+                String email = PgpKeyHelper.getEmailForLookup(cursor.getString(1));
+                if (email == null) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put("email", email);
+                db.update("user_ids", values, "oid = ?", new String[]{
+                        Long.toString(cursor.getLong(0))
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * With write-ahead logging, readers like the OpenPgpService and the ui loaders do not wait
+     * for a running import, SQLiteDatabase opens additional connections for them.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        // must be set before the database is opened
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -255,11 +438,54 @@ public class ApgDatabase extends SQLiteOpenHelper {
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+            configure(db);
         }
     }
 
+    /**
+     * Tunes the connection after opening, the pragmas apply to the primary connection, which
+     * does all writes.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void configure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA cache_size=" + CACHE_SIZE);
+
+        // write-ahead logging is not available before honeycomb
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        boolean writeAheadLogging;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // enabled by setWriteAheadLoggingEnabled before opening
+            writeAheadLogging = db.isWriteAheadLoggingEnabled();
+        } else {
+            writeAheadLogging = db.enableWriteAheadLogging();
+        }
+        if (writeAheadLogging) {
+            // the last commits may be lost on power failure, but the database stays consistent
+            // with the write-ahead log, so there is no need to sync on every commit
+            db.execSQL("PRAGMA synchronous=NORMAL");
+        }
+        db.setMaxSqlCacheSize(MAX_SQL_CACHE_SIZE);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.w(Constants.TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+        // no breaks, every step upgrades to the next version
+        switch (oldVersion) {
+            case 1:
+                db.execSQL("ALTER TABLE user_ids ADD COLUMN email TEXT");
+                fillUserIdEmails(db);
+                createIndices(db);
+            case 2:
+                // keyrings saved before have no content hash, they are processed fully once
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN content_hash BLOB");
+                createCertCache(db);
+            case 3:
+                createKeyRingSummary(db);
+                db.execSQL(INSERT_KEY_RING_SUMMARY);
+        }
     }
 }
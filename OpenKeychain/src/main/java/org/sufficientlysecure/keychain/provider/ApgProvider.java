@@ -19,13 +19,17 @@
 package org.thialfihar.android.apg.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 
@@ -33,16 +37,23 @@ import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.provider.ApgContract.ApiAccounts;
 import org.thialfihar.android.apg.provider.ApgContract.ApiApps;
 import org.thialfihar.android.apg.provider.ApgContract.Certs;
+import org.thialfihar.android.apg.provider.ApgContract.CertCache;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRingData;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRingSummary;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
 import org.thialfihar.android.apg.provider.ApgContract.Keys;
 import org.thialfihar.android.apg.provider.ApgContract.UserIds;
 import org.thialfihar.android.apg.provider.ApgDatabase.Tables;
 import org.thialfihar.android.apg.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
 
 public class ApgProvider extends ContentProvider {
 
@@ -57,6 +68,7 @@ public class ApgProvider extends ContentProvider {
     private static final int KEY_RING_SECRET = 204;
     private static final int KEY_RING_CERTS = 205;
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
+    private static final int KEY_RING_CERT_CACHE = 207;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 303;
@@ -65,6 +77,8 @@ public class ApgProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEY_RINGS_FIND_MASTER_KEY_ID_BY_SUBKEY = 402;
+    private static final int KEY_RINGS_FIND_MASTER_KEY_ID_BY_EMAIL = 403;
 
     protected UriMatcher mUriMatcher;
 
@@ -99,15 +113,25 @@ public class ApgProvider extends ContentProvider {
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
+         * key_rings/find/email/_/master_key_id
          * key_rings/find/subkey/_
+         * key_rings/find/subkey/_/master_key_id
          *
          */
         matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/"
                 + ApgContract.PATH_FIND + "/" + ApgContract.PATH_BY_EMAIL + "/*",
                 KEY_RINGS_FIND_BY_EMAIL);
+        matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/"
+                + ApgContract.PATH_FIND + "/" + ApgContract.PATH_BY_EMAIL + "/*/"
+                + ApgContract.PATH_MASTER_KEY_ID,
+                KEY_RINGS_FIND_MASTER_KEY_ID_BY_EMAIL);
         matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/"
                 + ApgContract.PATH_FIND + "/" + ApgContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/"
+                + ApgContract.PATH_FIND + "/" + ApgContract.PATH_BY_SUBKEY + "/*/"
+                + ApgContract.PATH_MASTER_KEY_ID,
+                KEY_RINGS_FIND_MASTER_KEY_ID_BY_SUBKEY);
 
         /**
          * legacy uri
@@ -126,6 +150,7 @@ public class ApgProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/cert_cache
          * </pre>
          */
         matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/*/"
@@ -149,6 +174,9 @@ public class ApgProvider extends ContentProvider {
         matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/*/"
                         + ApgContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, ApgContract.BASE_KEY_RINGS + "/*/"
+                + ApgContract.PATH_CERT_CACHE,
+                KEY_RING_CERT_CACHE);
 
         /**
          * API apps
@@ -174,6 +202,27 @@ public class ApgProvider extends ContentProvider {
 
     private ApgDatabase mKeychainDatabase;
 
+    /**
+     * State of the applyBatch() call running on a thread: the compiled insert statements, which
+     * are reused for all rows of the batch, the uris to notify and the keyrings to summarize at
+     * the end.
+     */
+    private static class Batch {
+        HashMap<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+        HashSet<Uri> mChangedUris = new HashSet<Uri>();
+        HashSet<Long> mChangedKeyRings = new HashSet<Long>();
+    }
+
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    private static final Comparator<Map.Entry<String, Object>> COLUMN_ORDER =
+            new Comparator<Map.Entry<String, Object>>() {
+                @Override
+                public int compare(Map.Entry<String, Object> a, Map.Entry<String, Object> b) {
+                    return a.getKey().compareTo(b.getKey());
+                }
+            };
+
     /**
      * {@inheritDoc}
      */
@@ -239,91 +288,68 @@ public class ApgProvider extends ContentProvider {
 
         // all query() parameters, for good measure
         String groupBy = null, having = null;
+        // values from the uri, bound to the ? in the where clause
+        ArrayList<String> whereArgs = new ArrayList<String>();
 
         switch (match) {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
             case KEY_RINGS_FIND_BY_SUBKEY: {
+                // all columns are kept up to date in key_ring_summary, see ApgDatabase
                 HashMap<String, String> projectionMap = new HashMap<String, String>();
-                projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
-                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
-                projectionMap.put(KeyRings.KEY_ID, Keys.KEY_ID);
-                projectionMap.put(KeyRings.KEY_SIZE, Keys.KEY_SIZE);
-                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
-                projectionMap.put(KeyRings.CAN_CERTIFY, Keys.CAN_CERTIFY);
-                projectionMap.put(KeyRings.CAN_ENCRYPT, Keys.CAN_ENCRYPT);
-                projectionMap.put(KeyRings.CAN_SIGN, Keys.CAN_SIGN);
-                projectionMap.put(KeyRings.CREATION, Tables.KEYS + "." + Keys.CREATION);
-                projectionMap.put(KeyRings.EXPIRY, Keys.EXPIRY);
-                projectionMap.put(KeyRings.ALGORITHM, Keys.ALGORITHM);
-                projectionMap.put(KeyRings.FINGERPRINT, Keys.FINGERPRINT);
-                projectionMap.put(KeyRings.USER_ID, UserIds.USER_ID);
+                projectionMap.put(KeyRings._ID, Tables.KEY_RING_SUMMARY + ".oid AS _id");
+                projectionMap.put(KeyRings.MASTER_KEY_ID, KeyRings.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.KEY_ID, KeyRings.KEY_ID);
+                projectionMap.put(KeyRings.KEY_SIZE, KeyRings.KEY_SIZE);
+                projectionMap.put(KeyRings.IS_REVOKED, KeyRings.IS_REVOKED);
+                projectionMap.put(KeyRings.CAN_CERTIFY, KeyRings.CAN_CERTIFY);
+                projectionMap.put(KeyRings.CAN_ENCRYPT, KeyRings.CAN_ENCRYPT);
+                projectionMap.put(KeyRings.CAN_SIGN, KeyRings.CAN_SIGN);
+                projectionMap.put(KeyRings.CREATION, KeyRings.CREATION);
+                projectionMap.put(KeyRings.EXPIRY, KeyRings.EXPIRY);
+                projectionMap.put(KeyRings.ALGORITHM, KeyRings.ALGORITHM);
+                projectionMap.put(KeyRings.FINGERPRINT, KeyRings.FINGERPRINT);
+                projectionMap.put(KeyRings.USER_ID, KeyRings.USER_ID);
                 projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
                 projectionMap.put(KeyRings.HAS_SECRET, KeyRings.HAS_SECRET);
-                projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                    "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
-                        + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + ")) AS " + KeyRings.HAS_ANY_SECRET);
+                projectionMap.put(KeyRings.HAS_ANY_SECRET, KeyRings.HAS_ANY_SECRET);
+                // only the expiry depends on the time of the query, it is taken by sqlite
+                // so the sql stays the same and compiled statements can be reused
+                String now = "CAST(strftime('%s', 'now') AS INTEGER)";
                 projectionMap.put(KeyRings.HAS_ENCRYPT,
-                    "(EXISTS (SELECT * FROM " + Tables.KEYS + " AS k"
-                        +" WHERE k." + Keys.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + " AND k." + Keys.IS_REVOKED + " = 0"
-                        + " AND k." + Keys.CAN_ENCRYPT + " = 1"
-                        + " AND ( k." + Keys.EXPIRY + " IS NULL OR k." + Keys.EXPIRY
-                            + " >= " + new Date().getTime() / 1000 + " )"
+                    "(" + KeyRingSummary.ANY_ENCRYPT + " AND ("
+                        + KeyRingSummary.ENCRYPT_EXPIRY + " IS NULL OR "
+                        + KeyRingSummary.ENCRYPT_EXPIRY + " >= " + now
                         + ")) AS " + KeyRings.HAS_ENCRYPT);
                 projectionMap.put(KeyRings.HAS_SIGN,
-                        "(EXISTS (SELECT * FROM " + Tables.KEYS + " AS k"
-                                +" WHERE k." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND k." + Keys.IS_REVOKED + " = 0"
-                                + " AND k." + Keys.HAS_SECRET + " = 1"
-                                + " AND k." + Keys.CAN_SIGN + " = 1"
-                                + " AND ( k." + Keys.EXPIRY + " IS NULL OR k." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
-                                + ")) AS " + KeyRings.HAS_SIGN);
+                    "(" + KeyRingSummary.ANY_SIGN + " AND ("
+                        + KeyRingSummary.SIGN_EXPIRY + " IS NULL OR "
+                        + KeyRingSummary.SIGN_EXPIRY + " >= " + now
+                        + ")) AS " + KeyRings.HAS_SIGN);
                 qb.setProjectionMap(projectionMap);
 
-                qb.setTables(
-                    Tables.KEYS
-                        + " INNER JOIN " + Tables.USER_IDS + " ON ("
-                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                                    + Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID
-                            + " AND " + Tables.USER_IDS + "." + UserIds.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
-                        + ")"
-                    );
-                qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
+                qb.setTables(Tables.KEY_RING_SUMMARY);
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
-                        qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = ");
-                        qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                        qb.appendWhere(KeyRings.MASTER_KEY_ID + " = ?");
+                        whereArgs.add(uri.getPathSegments().get(1));
                         break;
                     }
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserIds.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // uncorrelated subquery, resolved by a single lookup in keys_key_id
+                            qb.appendWhere(KeyRings.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID
+                                    + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = ?"
                                     + ")");
+                            whereArgs.add(subkey);
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
-                            qb.appendWhere(" AND 0");
+                            qb.appendWhere("0");
                         }
                         break;
                     }
@@ -336,32 +362,98 @@ public class ApgProvider extends ContentProvider {
                             if (chunks[i].length() == 0) {
                                 continue;
                             }
-                            if (i != 0) {
-                                emailWhere += " OR ";
+                            if (gotCondition) {
+                                emailWhere += ", ";
                             }
-                            emailWhere += "tmp." + UserIds.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+                            // the email column contains the '*<email>' part at the *end* of
+                            // the user id in lower case, see PgpKeyHelper.getEmailForLookup
+                            emailWhere += DatabaseUtils.sqlEscapeString(
+                                    chunks[i].toLowerCase(Locale.ENGLISH));
                             gotCondition = true;
                         }
                         if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_IDS + " AS tmp"
-                                    + " WHERE tmp." + UserIds.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
+                            qb.appendWhere(KeyRings.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserIds.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_IDS + " AS tmp"
+                                    + " WHERE tmp." + UserIds.EMAIL + " IN (" + emailWhere + ")"
                                 + ")");
                         } else {
                             // TODO better way to do this?
                             Log.e(Constants.TAG, "Malformed find by email query!");
-                            qb.appendWhere(" AND 0");
+                            qb.appendWhere("0");
                         }
                         break;
                     }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = Tables.USER_IDS + "." + UserIds.USER_ID + " ASC";
+                    sortOrder = KeyRings.USER_ID + " ASC";
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
+            case KEY_RINGS_FIND_MASTER_KEY_ID_BY_SUBKEY: {
+                HashMap<String, String> projectionMap = new HashMap<String, String>();
+                projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.KEY_ID, Keys.KEY_ID);
+                projectionMap.put(KeyRings.HAS_SECRET, Keys.HAS_SECRET);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.KEYS);
+                try {
+                    // one or more comma separated key ids
+                    StringBuilder subkeys = new StringBuilder();
+                    for (String subkey : uri.getPathSegments().get(3).split(",")) {
+                        if (subkeys.length() > 0) {
+                            subkeys.append(",");
+                        }
+                        subkeys.append(Long.valueOf(subkey));
+                    }
+                    qb.appendWhere(Keys.KEY_ID + " IN (" + subkeys + ")");
+                } catch(NumberFormatException e) {
+                    Log.e(Constants.TAG, "Malformed find by subkey query!", e);
+                    qb.appendWhere("0");
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
+            case KEY_RINGS_FIND_MASTER_KEY_ID_BY_EMAIL: {
+                HashMap<String, String> projectionMap = new HashMap<String, String>();
+                projectionMap.put(UserIds._ID, Tables.USER_IDS + ".oid AS _id");
+                projectionMap.put(UserIds.MASTER_KEY_ID, Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID);
+                projectionMap.put(UserIds.EMAIL, Tables.USER_IDS + "." + UserIds.EMAIL);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.USER_IDS);
+                // a keyring may have several user ids with the same email
+                qb.setDistinct(true);
+
+                // one or more comma separated emails
+                StringBuilder emailWhere = new StringBuilder();
+                for (String email : uri.getPathSegments().get(3).split(" *, *")) {
+                    if (email.length() == 0) {
+                        continue;
+                    }
+                    if (emailWhere.length() > 0) {
+                        emailWhere.append(", ");
+                    }
+                    emailWhere.append(DatabaseUtils.sqlEscapeString(
+                            email.toLowerCase(Locale.ENGLISH)));
+                }
+                if (emailWhere.length() > 0) {
+                    qb.appendWhere(UserIds.EMAIL + " IN (" + emailWhere + ")");
+                } else {
+                    Log.e(Constants.TAG, "Malformed find by email query!");
+                    qb.appendWhere("0");
                 }
 
                 // uri to watch is all /key_rings/
@@ -389,8 +481,8 @@ public class ApgProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                qb.appendWhere(Keys.MASTER_KEY_ID + " = ?");
+                whereArgs.add(uri.getPathSegments().get(1));
 
                 break;
             }
@@ -417,8 +509,8 @@ public class ApgProvider extends ContentProvider {
                         + ")");
                 groupBy = Tables.USER_IDS + "." + UserIds.RANK;
 
-                qb.appendWhere(Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                qb.appendWhere(Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID + " = ?");
+                whereArgs.add(uri.getPathSegments().get(1));
 
                 if (TextUtils.isEmpty(sortOrder)) {
                     sortOrder = Tables.USER_IDS + "." + UserIds.RANK + " ASC";
@@ -434,13 +526,14 @@ public class ApgProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.CONTENT_HASH, KeyRingData.CONTENT_HASH);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
 
                 if(match == KEY_RING_PUBLIC) {
-                    qb.appendWhere(KeyRings.MASTER_KEY_ID + " = ");
-                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                    qb.appendWhere(KeyRings.MASTER_KEY_ID + " = ?");
+                    whereArgs.add(uri.getPathSegments().get(1));
                 }
 
                 break;
@@ -457,8 +550,8 @@ public class ApgProvider extends ContentProvider {
                 qb.setTables(Tables.KEY_RINGS_SECRET);
 
                 if(match == KEY_RING_SECRET) {
-                    qb.appendWhere(KeyRings.MASTER_KEY_ID + " = ");
-                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                    qb.appendWhere(KeyRings.MASTER_KEY_ID + " = ?");
+                    whereArgs.add(uri.getPathSegments().get(1));
                 }
 
                 break;
@@ -496,41 +589,49 @@ public class ApgProvider extends ContentProvider {
                 groupBy = Tables.CERTS + "." + Certs.RANK + ", "
                         + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER;
 
-                qb.appendWhere(Tables.CERTS + "." + Certs.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                qb.appendWhere(Tables.CERTS + "." + Certs.MASTER_KEY_ID + " = ?");
+                whereArgs.add(uri.getPathSegments().get(1));
                 if(match == KEY_RING_CERTS_SPECIFIC) {
-                    qb.appendWhere(" AND " + Tables.CERTS + "." + Certs.RANK + " = ");
-                    qb.appendWhereEscapeString(uri.getPathSegments().get(3));
-                    qb.appendWhere(" AND " + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER+ " = ");
-                    qb.appendWhereEscapeString(uri.getPathSegments().get(4));
+                    qb.appendWhere(" AND " + Tables.CERTS + "." + Certs.RANK + " = ?");
+                    whereArgs.add(uri.getPathSegments().get(3));
+                    qb.appendWhere(" AND " + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER + " = ?");
+                    whereArgs.add(uri.getPathSegments().get(4));
                 }
 
                 break;
             }
 
+            case KEY_RING_CERT_CACHE: {
+                qb.setTables(Tables.CERT_CACHE);
+                qb.appendWhere(CertCache.MASTER_KEY_ID + " = ?");
+                whereArgs.add(uri.getPathSegments().get(1));
+
+                break;
+            }
+
             case API_APPS:
                 qb.setTables(Tables.API_APPS);
 
                 break;
             case API_APPS_BY_PACKAGE_NAME:
                 qb.setTables(Tables.API_APPS);
-                qb.appendWhere(ApiApps.PACKAGE_NAME + " = ");
-                qb.appendWhereEscapeString(uri.getLastPathSegment());
+                qb.appendWhere(ApiApps.PACKAGE_NAME + " = ?");
+                whereArgs.add(uri.getLastPathSegment());
 
                 break;
             case API_ACCOUNTS:
                 qb.setTables(Tables.API_ACCOUNTS);
-                qb.appendWhere(Tables.API_ACCOUNTS + "." + ApiAccounts.PACKAGE_NAME + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                qb.appendWhere(Tables.API_ACCOUNTS + "." + ApiAccounts.PACKAGE_NAME + " = ?");
+                whereArgs.add(uri.getPathSegments().get(1));
 
                 break;
             case API_ACCOUNTS_BY_ACCOUNT_NAME:
                 qb.setTables(Tables.API_ACCOUNTS);
-                qb.appendWhere(Tables.API_ACCOUNTS + "." + ApiAccounts.PACKAGE_NAME + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                qb.appendWhere(Tables.API_ACCOUNTS + "." + ApiAccounts.PACKAGE_NAME + " = ?");
+                whereArgs.add(uri.getPathSegments().get(1));
 
-                qb.appendWhere(" AND " + Tables.API_ACCOUNTS + "." + ApiAccounts.ACCOUNT_NAME + " = ");
-                qb.appendWhereEscapeString(uri.getLastPathSegment());
+                qb.appendWhere(" AND " + Tables.API_ACCOUNTS + "." + ApiAccounts.ACCOUNT_NAME + " = ?");
+                whereArgs.add(uri.getLastPathSegment());
 
                 break;
             default:
@@ -546,6 +647,15 @@ public class ApgProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
+        // values from the uri are bound instead of escaped into the sql, so the sql is the same
+        // for all keyrings and SQLite reuses the statement compiled for it from its cache
+        if (!whereArgs.isEmpty()) {
+            if (selectionArgs != null) {
+                whereArgs.addAll(Arrays.asList(selectionArgs));
+            }
+            selectionArgs = whereArgs.toArray(new String[whereArgs.size()]);
+        }
+
         SQLiteDatabase db = getDb().getReadableDatabase();
         Cursor c = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
 
@@ -579,32 +689,37 @@ public class ApgProvider extends ContentProvider {
 
             switch (match) {
                 case KEY_RING_PUBLIC:
-                    db.insertOrThrow(Tables.KEY_RINGS_PUBLIC, null, values);
+                    insertOrThrow(db, Tables.KEY_RINGS_PUBLIC, values, false);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
                     break;
 
                 case KEY_RING_SECRET:
-                    db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
+                    insertOrThrow(db, Tables.KEY_RINGS_SECRET, values, false);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
                     break;
 
                 case KEY_RING_KEYS:
-                    db.insertOrThrow(Tables.KEYS, null, values);
+                    insertOrThrow(db, Tables.KEYS, values, false);
                     keyId = values.getAsLong(Keys.MASTER_KEY_ID);
                     break;
 
                 case KEY_RING_USER_IDS:
-                    db.insertOrThrow(Tables.USER_IDS, null, values);
+                    insertOrThrow(db, Tables.USER_IDS, values, false);
                     keyId = values.getAsLong(UserIds.MASTER_KEY_ID);
                     break;
 
                 case KEY_RING_CERTS:
                     // we replace here, keeping only the latest signature
                     // TODO this would be better handled in saveKeyRing directly!
-                    db.replaceOrThrow(Tables.CERTS, null, values);
+                    insertOrThrow(db, Tables.CERTS, values, true);
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
 
+                case KEY_RING_CERT_CACHE:
+                    insertOrThrow(db, Tables.CERT_CACHE, values, true);
+                    keyId = values.getAsLong(CertCache.MASTER_KEY_ID);
+                    break;
+
                 case API_APPS:
                     db.insertOrThrow(Tables.API_APPS, null, values);
                     break;
@@ -623,12 +738,13 @@ public class ApgProvider extends ContentProvider {
             }
 
             if(keyId != null) {
+                keyRingChanged(db, keyId);
                 uri = KeyRings.buildGenericKeyRingUri(keyId.toString());
                 rowUri = uri;
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -668,6 +784,7 @@ public class ApgProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
+                keyRingChanged(db, Long.parseLong(uri.getPathSegments().get(1)));
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -685,7 +802,7 @@ public class ApgProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -715,6 +832,7 @@ public class ApgProvider extends ContentProvider {
                         actualSelection += " AND (" + selection + ")";
                     }
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
+                    keyRingChanged(db, mkid);
                     break;
                 }
                 case API_APPS_BY_PACKAGE_NAME:
@@ -730,7 +848,7 @@ public class ApgProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -739,6 +857,117 @@ public class ApgProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations in a single transaction, either all of them succeed or none. Change
+     * notifications are sent once at the end instead of once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        Batch batch = new Batch();
+        mBatch.set(batch);
+        db.beginTransaction();
+        boolean successful = false;
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            ApgDatabase.updateKeyRingSummaries(db, batch.mChangedKeyRings);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatch.remove();
+            for (SQLiteStatement statement : batch.mStatements.values()) {
+                statement.close();
+            }
+            if (successful) {
+                for (Uri uri : batch.mChangedUris) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the summary of a keyring after its rows have changed, inside of a batch only once
+     * at the end
+     */
+    private void keyRingChanged(SQLiteDatabase db, long masterKeyId) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.mChangedKeyRings.add(masterKeyId);
+            return;
+        }
+        db.beginTransaction();
+        try {
+            ApgDatabase.updateKeyRingSummaries(db, Collections.singleton(masterKeyId));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Notifies observers of uri, or of the whole tree of uri at the end of the current batch
+     */
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        } else if (uri.getPathSegments().isEmpty()) {
+            batch.mChangedUris.add(uri);
+        } else {
+            // observers of all descendants are notified, too
+            batch.mChangedUris.add(uri.buildUpon().path(uri.getPathSegments().get(0)).build());
+        }
+    }
+
+    /**
+     * Inserts a row, inside of a batch with a compiled statement which is reused for all rows
+     * with the same columns
+     *
+     * @param replace replace a row with the same primary key instead of failing
+     */
+    private void insertOrThrow(SQLiteDatabase db, String table, ContentValues values,
+                               boolean replace) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            if (replace) {
+                db.replaceOrThrow(table, null, values);
+            } else {
+                db.insertOrThrow(table, null, values);
+            }
+            return;
+        }
+
+        ArrayList<Map.Entry<String, Object>> columns =
+                new ArrayList<Map.Entry<String, Object>>(values.valueSet());
+        Collections.sort(columns, COLUMN_ORDER);
+
+        StringBuilder sql = new StringBuilder(replace ? "INSERT OR REPLACE INTO " : "INSERT INTO ");
+        sql.append(table).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns.get(i).getKey());
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        SQLiteStatement statement = batch.mStatements.get(sql.toString());
+        if (statement == null) {
+            statement = db.compileStatement(sql.toString());
+            batch.mStatements.put(sql.toString(), statement);
+        }
+        statement.clearBindings();
+        for (int i = 0; i < columns.size(); i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, columns.get(i).getValue());
+        }
+        statement.executeInsert();
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.util.LruCache;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+
+/**
+ * Per process LRU cache of parsed keyrings, used by ProviderHelper to avoid parsing the same
+ * keyring blobs over and over again. The cache is cleared whenever a change of /key_rings/ is
+ * notified by ApgProvider.
+ * <p/>
+ * Keyring objects are shared between all users of the cache and must not be modified.
+ * <p/>
+ * The master keys of the secret keyrings are kept apart from the keyrings and are not cleared on
+ * changes, ProviderHelper checks them against the ids of the secret keyrings before each use.
+ */
+public class KeyRingCache {
+    private static final int MAX_KEY_RINGS = 64;
+
+    private static KeyRingCache sInstance;
+
+    private LruCache<Long, PGPPublicKeyRing> mPublicKeyRings =
+            new LruCache<Long, PGPPublicKeyRing>(MAX_KEY_RINGS);
+    private LruCache<Long, PGPSecretKeyRing> mSecretKeyRings =
+            new LruCache<Long, PGPSecretKeyRing>(MAX_KEY_RINGS);
+
+    /**
+     * Incremented on every invalidation. Keyrings read from the database before an invalidation
+     * are not put into the cache afterwards.
+     */
+    private long mGeneration = 0;
+
+    private LongSparseArray<PGPPublicKey> mOwnedCertificationKeys =
+            new LongSparseArray<PGPPublicKey>();
+
+    public static synchronized KeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyRingCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private KeyRingCache(Context context) {
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    public PGPPublicKeyRing getPublicKeyRing(long masterKeyId) {
+        return mPublicKeyRings.get(masterKeyId);
+    }
+
+    public PGPSecretKeyRing getSecretKeyRing(long masterKeyId) {
+        return mSecretKeyRings.get(masterKeyId);
+    }
+
+    /**
+     * @param generation value of getGeneration() before the keyring was read from the database
+     */
+    public synchronized void putPublicKeyRing(long generation, PGPPublicKeyRing keyRing) {
+        if (generation == mGeneration) {
+            mPublicKeyRings.put(keyRing.getPublicKey().getKeyID(), keyRing);
+        }
+    }
+
+    /**
+     * @param generation value of getGeneration() before the keyring was read from the database
+     */
+    public synchronized void putSecretKeyRing(long generation, PGPSecretKeyRing keyRing) {
+        if (generation == mGeneration) {
+            mSecretKeyRings.put(keyRing.getPublicKey().getKeyID(), keyRing);
+        }
+    }
+
+    /**
+     * @return master keys of the secret keyrings by master key id, must not be modified
+     */
+    public synchronized LongSparseArray<PGPPublicKey> getOwnedCertificationKeys() {
+        return mOwnedCertificationKeys;
+    }
+
+    /**
+     * Replaces the master keys of the secret keyrings with a copy of keys
+     */
+    public synchronized void putOwnedCertificationKeys(LongSparseArray<PGPPublicKey> keys) {
+        LongSparseArray<PGPPublicKey> copy = new LongSparseArray<PGPPublicKey>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            copy.append(keys.keyAt(i), keys.valueAt(i));
+        }
+        mOwnedCertificationKeys = copy;
+    }
+
+    public synchronized void invalidate() {
+        mGeneration++;
+        mPublicKeyRings.evictAll();
+        mSecretKeyRings.evictAll();
+    }
+
+    public int getHitCount() {
+        return mPublicKeyRings.hitCount() + mSecretKeyRings.hitCount();
+    }
+
+    public int getMissCount() {
+        return mPublicKeyRings.missCount() + mSecretKeyRings.missCount();
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRingCache[public=" + mPublicKeyRings + ", secret=" + mSecretKeyRings + "]";
+    }
+}
@@ -30,6 +30,7 @@ import android.support.v4.util.LongSparseArray;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.S2K;
+import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPKeyRing;
 import org.spongycastle.openpgp.PGPPublicKey;
@@ -39,6 +40,7 @@ import org.spongycastle.openpgp.PGPSecretKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.spongycastle.util.Strings;
 
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.pgp.KeyRing;
@@ -47,6 +49,7 @@ import org.thialfihar.android.apg.pgp.PgpHelper;
 import org.thialfihar.android.apg.pgp.PgpKeyHelper;
 import org.thialfihar.android.apg.pgp.PublicKeyRing;
 import org.thialfihar.android.apg.provider.ApgContract.ApiApps;
+import org.thialfihar.android.apg.provider.ApgContract.CertCache;
 import org.thialfihar.android.apg.provider.ApgContract.Certs;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRingData;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
@@ -54,22 +57,36 @@ import org.thialfihar.android.apg.provider.ApgContract.Keys;
 import org.thialfihar.android.apg.provider.ApgContract.UserIds;
 import org.thialfihar.android.apg.remote.AccountSettings;
 import org.thialfihar.android.apg.remote.AppSettings;
+import org.thialfihar.android.apg.service.UnlockedKeyCache;
 import org.thialfihar.android.apg.util.IterableIterator;
 import org.thialfihar.android.apg.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SignatureException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ProviderHelper {
+    // keyrings are parsed on several threads if at least this many are read at once
+    private static final int PARALLEL_PARSE_MIN_KEY_RINGS = 4;
+
+    private static ExecutorService sParseExecutor;
+
     private Context mContext;
     private ContentResolver mContentResolver;
 
@@ -173,18 +190,110 @@ public class ProviderHelper {
         }
     }
 
+    /**
+     * Find the master key id of the keyring containing the (sub)key with this key id. This only
+     * does a single lookup in the keys table and should be preferred over querying
+     * buildUnifiedKeyRingsFindBySubkeyUri if no other data is needed.
+     */
+    public long getMasterKeyIdWithKeyId(long keyId) throws NotFoundException {
+        return getMasterKeyId(KeyRings.buildMasterKeyIdFindBySubkeyUri(Long.toString(keyId)));
+    }
+
+    /**
+     * Find the master key ids of the keyrings containing these (sub)keys with a single query.
+     *
+     * @return master key ids mapped by key id, key ids which are not found are missing
+     */
+    public LongSparseArray<Long> getMasterKeyIdsWithKeyIds(long[] keyIds) {
+        LongSparseArray<Long> result = new LongSparseArray<Long>(keyIds.length);
+        if (keyIds.length == 0) {
+            return result;
+        }
+
+        StringBuilder subkeys = new StringBuilder();
+        for (long keyId : keyIds) {
+            if (subkeys.length() > 0) {
+                subkeys.append(",");
+            }
+            subkeys.append(keyId);
+        }
+
+        Cursor cursor = mContentResolver.query(
+                KeyRings.buildMasterKeyIdFindBySubkeyUri(subkeys.toString()),
+                new String[]{KeyRings.KEY_ID, KeyRings.MASTER_KEY_ID}, null, null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) do {
+                result.put(cursor.getLong(0), cursor.getLong(1));
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the master key ids of the keyrings with user ids of these emails with a single query.
+     *
+     * @return master key ids mapped by email in lower case, emails which are not found are
+     * missing
+     */
+    public HashMap<String, ArrayList<Long>> getMasterKeyIdsWithEmails(String[] emails) {
+        HashMap<String, ArrayList<Long>> result = new HashMap<String, ArrayList<Long>>();
+        if (emails.length == 0) {
+            return result;
+        }
+
+        StringBuilder emailList = new StringBuilder();
+        for (String email : emails) {
+            if (emailList.length() > 0) {
+                emailList.append(",");
+            }
+            emailList.append(email);
+        }
+
+        Cursor cursor = mContentResolver.query(
+                KeyRings.buildMasterKeyIdFindByEmailUri(emailList.toString()),
+                new String[]{UserIds.EMAIL, UserIds.MASTER_KEY_ID}, null, null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) do {
+                String email = cursor.getString(0).toLowerCase(Locale.ENGLISH);
+                ArrayList<Long> masterKeyIds = result.get(email);
+                if (masterKeyIds == null) {
+                    masterKeyIds = new ArrayList<Long>();
+                    result.put(email, masterKeyIds);
+                }
+                masterKeyIds.add(cursor.getLong(1));
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
     public LongSparseArray<PGPKeyRing> getPGPKeyRings(Uri queryUri) {
+        return getPGPKeyRings(queryUri, null);
+    }
+
+    public LongSparseArray<PGPKeyRing> getPGPKeyRings(Uri queryUri, String selection) {
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{KeyRingData.MASTER_KEY_ID, KeyRingData.KEY_RING_DATA},
-                null, null, null);
+                selection, null, null);
 
-        LongSparseArray<PGPKeyRing> result = new LongSparseArray<PGPKeyRing>(cursor.getCount());
+        ArrayList<Long> masterKeyIds = new ArrayList<Long>();
+        ArrayList<byte[]> blobs = new ArrayList<byte[]>();
         try {
             if (cursor != null && cursor.moveToFirst()) do {
                 long masterKeyId = cursor.getLong(0);
                 byte[] data = cursor.getBlob(1);
                 if (data != null) {
-                    result.put(masterKeyId, PgpConversionHelper.BytesToPGPKeyRing(data));
+                    masterKeyIds.add(masterKeyId);
+                    blobs.add(data);
                 }
             } while (cursor.moveToNext());
         } finally {
@@ -193,9 +302,50 @@ public class ProviderHelper {
             }
         }
 
+        LongSparseArray<PGPKeyRing> result = new LongSparseArray<PGPKeyRing>(blobs.size());
+        if (blobs.size() < PARALLEL_PARSE_MIN_KEY_RINGS
+                || Runtime.getRuntime().availableProcessors() < 2) {
+            for (int i = 0; i < blobs.size(); i++) {
+                result.put(masterKeyIds.get(i), PgpConversionHelper.BytesToPGPKeyRing(blobs.get(i)));
+            }
+            return result;
+        }
+
+        // parsing the blobs is the expensive part, spread it over all cores
+        ArrayList<Future<PGPKeyRing>> keyRings = new ArrayList<Future<PGPKeyRing>>(blobs.size());
+        for (final byte[] data : blobs) {
+            keyRings.add(getParseExecutor().submit(new Callable<PGPKeyRing>() {
+                @Override
+                public PGPKeyRing call() {
+                    return PgpConversionHelper.BytesToPGPKeyRing(data);
+                }
+            }));
+        }
+        for (int i = 0; i < keyRings.size(); i++) {
+            PGPKeyRing keyRing;
+            try {
+                keyRing = keyRings.get(i).get();
+            } catch (InterruptedException e) {
+                // parse it here instead
+                Thread.currentThread().interrupt();
+                keyRing = PgpConversionHelper.BytesToPGPKeyRing(blobs.get(i));
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            result.put(masterKeyIds.get(i), keyRing);
+        }
+
         return result;
     }
 
+    private static synchronized ExecutorService getParseExecutor() {
+        if (sParseExecutor == null) {
+            sParseExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return sParseExecutor;
+    }
+
     public PGPKeyRing getPGPKeyRing(Uri queryUri) throws NotFoundException {
         LongSparseArray<PGPKeyRing> result = getPGPKeyRings(queryUri);
         if (result.size() == 0) {
@@ -207,32 +357,105 @@ public class ProviderHelper {
 
     public PGPPublicKeyRing getPGPPublicKeyRingWithKeyId(long keyId)
             throws NotFoundException {
-        Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId));
-        long masterKeyId = getMasterKeyId(uri);
+        long masterKeyId = getMasterKeyIdWithKeyId(keyId);
         return getPGPPublicKeyRing(masterKeyId);
     }
 
     public PGPSecretKeyRing getPGPSecretKeyRingWithKeyId(long keyId)
             throws NotFoundException {
-        Uri uri = KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId));
-        long masterKeyId = getMasterKeyId(uri);
+        long masterKeyId = getMasterKeyIdWithKeyId(keyId);
         return getPGPSecretKeyRing(masterKeyId);
     }
 
     /**
      * Retrieves the actual PGPPublicKeyRing object from the database blob based on the masterKeyId
+     * <p/>
+     * The returned object may be shared with other callers through the KeyRingCache.
      */
     public PGPPublicKeyRing getPGPPublicKeyRing(long masterKeyId) throws NotFoundException {
-        Uri queryUri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
-        return (PGPPublicKeyRing) getPGPKeyRing(queryUri);
+        KeyRingCache cache = KeyRingCache.getInstance(mContext);
+        PGPPublicKeyRing keyRing = cache.getPublicKeyRing(masterKeyId);
+        if (keyRing == null) {
+            long generation = cache.getGeneration();
+            Uri queryUri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
+            keyRing = (PGPPublicKeyRing) getPGPKeyRing(queryUri);
+            cache.putPublicKeyRing(generation, keyRing);
+        }
+        return keyRing;
+    }
+
+    /**
+     * Retrieves the PGPPublicKeyRing objects for all given master key ids. Keyrings from the
+     * KeyRingCache are used, all others are read with a single query. Master key ids which are
+     * not found in the database are missing in the result.
+     */
+    public LongSparseArray<PGPPublicKeyRing> getPGPPublicKeyRings(long[] masterKeyIds) {
+        KeyRingCache cache = KeyRingCache.getInstance(mContext);
+        LongSparseArray<PGPPublicKeyRing> result =
+                new LongSparseArray<PGPPublicKeyRing>(masterKeyIds.length);
+
+        StringBuilder missing = new StringBuilder();
+        for (long masterKeyId : masterKeyIds) {
+            PGPPublicKeyRing keyRing = cache.getPublicKeyRing(masterKeyId);
+            if (keyRing != null) {
+                result.put(masterKeyId, keyRing);
+            } else {
+                if (missing.length() > 0) {
+                    missing.append(",");
+                }
+                missing.append(masterKeyId);
+            }
+        }
+
+        if (missing.length() > 0) {
+            long generation = cache.getGeneration();
+            LongSparseArray<PGPKeyRing> keyRings = getPGPKeyRings(
+                    KeyRingData.buildPublicKeyRingUri(),
+                    KeyRingData.MASTER_KEY_ID + " IN (" + missing + ")");
+            for (int i = 0; i < keyRings.size(); i++) {
+                PGPPublicKeyRing keyRing = (PGPPublicKeyRing) keyRings.valueAt(i);
+                cache.putPublicKeyRing(generation, keyRing);
+                result.put(keyRings.keyAt(i), keyRing);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Retrieves the first usable encryption subkey of the keyrings of all given master key ids,
+     * see getPGPPublicKeyRings().
+     *
+     * @return encryption subkeys mapped by master key id, keyrings which are not found or have no
+     * usable encryption subkey are missing
+     */
+    public LongSparseArray<PGPPublicKey> getEncryptionSubkeys(long[] masterKeyIds) {
+        LongSparseArray<PGPPublicKeyRing> keyRings = getPGPPublicKeyRings(masterKeyIds);
+        LongSparseArray<PGPPublicKey> result = new LongSparseArray<PGPPublicKey>(keyRings.size());
+        for (int i = 0; i < keyRings.size(); i++) {
+            PGPPublicKey key = PgpKeyHelper.getFirstEncryptSubkey(keyRings.valueAt(i));
+            if (key != null) {
+                result.put(keyRings.keyAt(i), key);
+            }
+        }
+        return result;
     }
 
     /**
      * Retrieves the actual PGPSecretKeyRing object from the database blob based on the maserKeyId
+     * <p/>
+     * The returned object may be shared with other callers through the KeyRingCache.
      */
     public PGPSecretKeyRing getPGPSecretKeyRing(long masterKeyId) throws NotFoundException {
-        Uri queryUri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
-        return (PGPSecretKeyRing) getPGPKeyRing(queryUri);
+        KeyRingCache cache = KeyRingCache.getInstance(mContext);
+        PGPSecretKeyRing keyRing = cache.getSecretKeyRing(masterKeyId);
+        if (keyRing == null) {
+            long generation = cache.getGeneration();
+            Uri queryUri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
+            keyRing = (PGPSecretKeyRing) getPGPKeyRing(queryUri);
+            cache.putSecretKeyRing(generation, keyRing);
+        }
+        return keyRing;
     }
 
     @SuppressWarnings("unchecked")
@@ -247,48 +470,338 @@ public class ProviderHelper {
     /**
      * Saves PGPPublicKeyRing with its keys and userIds in DB
      */
-    @SuppressWarnings("unchecked")
     public void saveKeyRing(PGPPublicKeyRing keyRing) throws IOException {
-        PGPPublicKey masterKey = keyRing.getPublicKey();
-        long masterKeyId = masterKey.getKeyID();
+        saveKeyRings(Collections.singletonList(keyRing));
+    }
+
+    /**
+     * Saves a PGPSecretKeyRing in the DB. This will only work if a corresponding public keyring
+     * is already in the database!
+     */
+    public void saveKeyRing(PGPSecretKeyRing keyRing) throws IOException {
+        saveKeyRings(Collections.singletonList(keyRing));
+    }
+
+    /**
+     * Saves (or updates) a pair of public and secret KeyRings in the database
+     */
+    public void saveKeyRing(PGPPublicKeyRing pubRing, PGPSecretKeyRing privRing) throws IOException {
+        ArrayList<PGPKeyRing> keyRings = new ArrayList<PGPKeyRing>(2);
+        keyRings.add(pubRing);
+        // replaces the old secret keyring kept by the public keyring
+        keyRings.add(privRing);
+        saveKeyRings(keyRings);
+    }
+
+    /**
+     * Saves public and secret keyrings in a single transaction with a single change notification.
+     * A public keyring keeps the secret keyring stored for it, a secret keyring needs its public
+     * keyring in the database or earlier in the list. Secret keyrings certify the public keyrings
+     * following them in the list.
+     * <p/>
+     * If the transaction fails, the keyrings are saved one by one, so that a single broken
+     * keyring does not prevent saving the others.
+     */
+    public void saveKeyRings(List<? extends PGPKeyRing> keyRings) throws IOException {
+        // master keys of the owned secret keyrings, for verification filtering
+        LongSparseArray<PGPPublicKey> ownedKeys = getOwnedCertificationKeys();
+        // secret keyrings of this list, preserved when their public keyrings follow them
+        LongSparseArray<PGPSecretKeyRing> secretKeyRings = new LongSparseArray<PGPSecretKeyRing>();
+        // content hashes of the stored public keyrings, to skip those which are unchanged
+        LongSparseArray<byte[]> contentHashes = getContentHashes(keyRings);
 
-        // IF there is a secret key, preserve it!
-        PGPSecretKeyRing secretRing = null;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (PGPKeyRing keyRing : keyRings) {
+            buildKeyRingOperations(keyRing, ownedKeys, secretKeyRings, contentHashes, operations);
+        }
+        if (!applyBatch(operations) && keyRings.size() > 1) {
+            Log.e(Constants.TAG, "Saving " + keyRings.size() + " keyrings at once failed, "
+                    + "saving them one by one!");
+            for (PGPKeyRing keyRing : keyRings) {
+                operations.clear();
+                buildKeyRingOperations(keyRing, ownedKeys, secretKeyRings, contentHashes,
+                        operations);
+                applyBatch(operations);
+            }
+        }
+
+        // don't wait for the change notification, this process may read the keyring right away
+        KeyRingCache.getInstance(mContext).invalidate();
+    }
+
+    private boolean applyBatch(ArrayList<ContentProviderOperation> operations) {
         try {
-            secretRing = getPGPSecretKeyRing(masterKeyId);
-        } catch (NotFoundException e) {
-            Log.e(Constants.TAG, "key not found!");
+            mContentResolver.applyBatch(ApgContract.CONTENT_AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "applyBatch failed!", e);
         }
+        return false;
+    }
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+    /**
+     * Reads the content hashes of the stored versions of the public keyrings in keyRings
+     */
+    private LongSparseArray<byte[]> getContentHashes(List<? extends PGPKeyRing> keyRings) {
+        LongSparseArray<byte[]> result = new LongSparseArray<byte[]>(keyRings.size());
+
+        StringBuilder masterKeyIds = new StringBuilder();
+        for (PGPKeyRing keyRing : keyRings) {
+            if (keyRing instanceof PGPPublicKeyRing) {
+                if (masterKeyIds.length() > 0) {
+                    masterKeyIds.append(",");
+                }
+                masterKeyIds.append(keyRing.getPublicKey().getKeyID());
+            }
+        }
+        if (masterKeyIds.length() == 0) {
+            return result;
+        }
+
+        Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                new String[]{KeyRingData.MASTER_KEY_ID, KeyRingData.CONTENT_HASH},
+                KeyRingData.MASTER_KEY_ID + " IN (" + masterKeyIds + ")", null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) do {
+                byte[] contentHash = cursor.getBlob(1);
+                if (contentHash != null) {
+                    result.put(cursor.getLong(0), contentHash);
+                }
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * The rows saved for a public keyring depend on its encoding and on which of its
+     * certifications are made by owned secret keys, so the content hash covers both.
+     */
+    private static byte[] getContentHash(byte[] encoded, PGPPublicKey masterKey,
+                                         LongSparseArray<PGPPublicKey> ownedKeys) {
+        SHA256Digest digest = new SHA256Digest();
+        updateDigest(digest, encoded);
+        for (PGPSignature cert : new IterableIterator<PGPSignature>(masterKey.getSignatures())) {
+            long certId = cert.getKeyID();
+            if (ownedKeys.indexOfKey(certId) >= 0) {
+                for (int i = 56; i >= 0; i -= 8) {
+                    digest.update((byte) (certId >> i));
+                }
+            }
+        }
+        byte[] hash = new byte[digest.getDigestSize()];
+        digest.doFinal(hash, 0);
+        return hash;
+    }
+
+    /**
+     * Hash identifying a certification together with everything its verification depends on
+     */
+    private static byte[] getCertificationHash(PGPSignature cert, String userId,
+                                               PGPPublicKey masterKey, PGPPublicKey signingKey)
+            throws IOException {
+        SHA256Digest digest = new SHA256Digest();
+        updateDigest(digest, signingKey.getFingerprint());
+        updateDigest(digest, masterKey.getFingerprint());
+        updateDigest(digest, Strings.toUTF8ByteArray(userId));
+        updateDigest(digest, cert.getEncoded());
+        byte[] hash = new byte[digest.getDigestSize()];
+        digest.doFinal(hash, 0);
+        return hash;
+    }
+
+    /**
+     * Updates digest with the length and the content of data, so that fields can not be shifted
+     */
+    private static void updateDigest(SHA256Digest digest, byte[] data) {
+        for (int i = 24; i >= 0; i -= 8) {
+            digest.update((byte) (data.length >> i));
+        }
+        digest.update(data, 0, data.length);
+    }
+
+    /**
+     * Reads the verification results stored with the public keyring, by certification hash
+     */
+    private HashMap<ByteBuffer, Boolean> getCertCache(long masterKeyId) {
+        HashMap<ByteBuffer, Boolean> result = new HashMap<ByteBuffer, Boolean>();
+
+        Cursor cursor = mContentResolver.query(
+                CertCache.buildCertCacheUri(Long.toString(masterKeyId)),
+                new String[]{CertCache.SIGNATURE_HASH, CertCache.VERIFIED}, null, null, null);
         try {
-            mContentResolver.delete(KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)), null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
+            if (cursor != null && cursor.moveToFirst()) do {
+                result.put(ByteBuffer.wrap(cursor.getBlob(0)), cursor.getInt(1) == 1);
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
 
+        return result;
+    }
+
+    /**
+     * Verifies the certification of userId on masterKey made by signingKey. A result from the
+     * cache is used instead of verifying again. All results are collected in results.
+     */
+    private static boolean verifyCertification(PGPSignature cert, String userId,
+                                               PGPPublicKey masterKey, PGPPublicKey signingKey,
+                                               HashMap<ByteBuffer, Boolean> cache,
+                                               HashMap<ByteBuffer, Boolean> results)
+            throws IOException, PGPException, SignatureException {
+        ByteBuffer hash = ByteBuffer.wrap(
+                getCertificationHash(cert, userId, masterKey, signingKey));
+        Boolean verified = results.get(hash);
+        if (verified == null) {
+            verified = cache.get(hash);
+        }
+        if (verified == null) {
+            // signatures of keyrings from the KeyRingCache are shared between threads
+            synchronized (cert) {
+                cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
+                        Constants.BOUNCY_CASTLE_PROVIDER_NAME), signingKey);
+                verified = cert.verifyCertification(userId, masterKey);
+            }
+        }
+        results.put(hash, verified);
+        return verified;
+    }
+
+    /**
+     * Reads the master keys of all secret keyrings, which mark the certifications made by them
+     * as verified. They are kept in the KeyRingCache, a master key never changes for its key id,
+     * so only the ids are read and just the secret keyrings added since the last call are parsed.
+     *
+     * @return master keys by master key id, may be modified by the caller
+     */
+    private LongSparseArray<PGPPublicKey> getOwnedCertificationKeys() {
+        KeyRingCache cache = KeyRingCache.getInstance(mContext);
+        LongSparseArray<PGPPublicKey> cachedKeys = cache.getOwnedCertificationKeys();
+        LongSparseArray<PGPPublicKey> result = new LongSparseArray<PGPPublicKey>();
+
+        StringBuilder missing = new StringBuilder();
+        Cursor cursor = mContentResolver.query(KeyRingData.buildSecretKeyRingUri(),
+                new String[]{KeyRingData.MASTER_KEY_ID}, null, null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) do {
+                long masterKeyId = cursor.getLong(0);
+                PGPPublicKey key = cachedKeys.get(masterKeyId);
+                if (key != null) {
+                    result.put(masterKeyId, key);
+                } else {
+                    if (missing.length() > 0) {
+                        missing.append(",");
+                    }
+                    missing.append(masterKeyId);
+                }
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        if (missing.length() > 0) {
+            LongSparseArray<PGPKeyRing> keyRings = getPGPKeyRings(
+                    KeyRingData.buildSecretKeyRingUri(),
+                    KeyRingData.MASTER_KEY_ID + " IN (" + missing + ")");
+            for (int i = 0; i < keyRings.size(); i++) {
+                result.put(keyRings.keyAt(i), keyRings.valueAt(i).getPublicKey());
+            }
+        }
+
+        // keys of deleted secret keyrings are dropped from the cache here
+        cache.putOwnedCertificationKeys(result);
+        return result;
+    }
+
+    private void buildKeyRingOperations(PGPKeyRing keyRing,
+                                        LongSparseArray<PGPPublicKey> ownedKeys,
+                                        LongSparseArray<PGPSecretKeyRing> secretKeyRings,
+                                        LongSparseArray<byte[]> contentHashes,
+                                        ArrayList<ContentProviderOperation> operations)
+            throws IOException {
+        if (keyRing instanceof PGPSecretKeyRing) {
+            PGPSecretKeyRing secretRing = (PGPSecretKeyRing) keyRing;
+            long masterKeyId = secretRing.getPublicKey().getKeyID();
+            ownedKeys.put(masterKeyId, secretRing.getPublicKey());
+            secretKeyRings.put(masterKeyId, secretRing);
+            buildSecretKeyRingOperations(secretRing, operations);
+        } else {
+            PGPPublicKeyRing publicRing = (PGPPublicKeyRing) keyRing;
+            long masterKeyId = publicRing.getPublicKey().getKeyID();
+            byte[] encoded = publicRing.getEncoded();
+            byte[] contentHash = getContentHash(encoded, publicRing.getPublicKey(), ownedKeys);
+            if (Arrays.equals(contentHash, contentHashes.get(masterKeyId))) {
+                // the stored rows are up to date, including a preserved secret keyring
+                Log.d(Constants.TAG, "Keyring " + PgpKeyHelper.convertKeyIdToHex(masterKeyId)
+                        + " is unchanged, not saving it again");
+                return;
+            }
+            buildPublicKeyRingOperations(publicRing, encoded, contentHash, ownedKeys, operations);
+
+            // IF there is a secret key, preserve it!
+            if (ownedKeys.indexOfKey(masterKeyId) >= 0) {
+                PGPSecretKeyRing secretRing = secretKeyRings.get(masterKeyId);
+                try {
+                    if (secretRing == null) {
+                        secretRing = getPGPSecretKeyRing(masterKeyId);
+                    }
+                    buildSecretKeyRingOperations(secretRing, operations);
+                } catch (NotFoundException e) {
+                    Log.e(Constants.TAG, "Secret keyring to preserve not found!", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the operations to replace the public keyring with its keys, userIds and certs
+     *
+     * @param encoded     encoding of keyRing
+     * @param contentHash see getContentHash()
+     * @param ownedKeys   master keys of owned secret keyrings, their certifications are
+     *                    marked as verified
+     */
+    @SuppressWarnings("unchecked")
+    private void buildPublicKeyRingOperations(PGPPublicKeyRing keyRing, byte[] encoded,
+                                              byte[] contentHash,
+                                              LongSparseArray<PGPPublicKey> ownedKeys,
+                                              ArrayList<ContentProviderOperation> operations)
+            throws IOException {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+        Uri keyRingUri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
+
+        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+        operations.add(ContentProviderOperation.newDelete(keyRingUri).build());
+
         // insert new version of this keyRing
         ContentValues values = new ContentValues();
         values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
-        Uri uri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
-        mContentResolver.insert(uri, values);
+        values.put(KeyRingData.KEY_RING_DATA, encoded);
+        values.put(KeyRingData.CONTENT_HASH, contentHash);
+        operations.add(ContentProviderOperation.newInsert(keyRingUri).withValues(values).build());
 
-        // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        // verification results of the stored version, only new certifications are verified
+        HashMap<ByteBuffer, Boolean> certCache = getCertCache(masterKeyId);
+        HashMap<ByteBuffer, Boolean> certResults = new HashMap<ByteBuffer, Boolean>();
 
+        // save all keys and userIds included in keyRing object in database
         int rank = 0;
         for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
             operations.add(buildPublicKeyOperations(masterKeyId, key, rank));
             ++rank;
         }
 
-        // get a list of owned secret keys, for verification filtering
-        LongSparseArray<PGPKeyRing> allKeyRings = getPGPKeyRings(KeyRingData.buildSecretKeyRingUri());
-        // special case: available secret keys verify themselves!
-        if (secretRing != null)
-            allKeyRings.put(secretRing.getSecretKey().getKeyID(), secretRing);
-
         // classify and order user ids. primary are moved to the front, revoked to the back,
         // otherwise the order in the keyfile is preserved.
         List<UserIdItem> uids = new ArrayList<UserIdItem>();
@@ -305,9 +818,8 @@ public class ProviderHelper {
                 try {
                     // self signature
                     if (certId == masterKeyId) {
-                        cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
-                                Constants.BOUNCY_CASTLE_PROVIDER_NAME), masterKey);
-                        if (!cert.verifyCertification(userId, masterKey)) {
+                        if (!verifyCertification(cert, userId, masterKey, masterKey,
+                                certCache, certResults)) {
                             // not verified?! dang! TODO notify user? this is kinda serious...
                             Log.e(Constants.TAG, "Could not verify self signature for " + userId + "!");
                             continue;
@@ -322,12 +834,10 @@ public class ProviderHelper {
                         }
                     }
                     // verify signatures from known private keys
-                    if (allKeyRings.indexOfKey(certId) >= 0) {
+                    if (ownedKeys.indexOfKey(certId) >= 0) {
                         // mark them as verified
-                        cert.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
-                                Constants.BOUNCY_CASTLE_PROVIDER_NAME),
-                                allKeyRings.get(certId).getPublicKey());
-                        if (cert.verifyCertification(userId, masterKey)) {
+                        if (verifyCertification(cert, userId, masterKey, ownedKeys.get(certId),
+                                certCache, certResults)) {
                             item.trustedCerts.add(cert);
                         }
                     }
@@ -367,19 +877,14 @@ public class ProviderHelper {
             }
         }
 
-        try {
-            mContentResolver.applyBatch(ApgContract.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
-        } catch (OperationApplicationException e) {
-            Log.e(Constants.TAG, "applyBatch failed!", e);
+        // keep all verification results for the next version of this keyring
+        Uri certCacheUri = CertCache.buildCertCacheUri(Long.toString(masterKeyId));
+        for (Map.Entry<ByteBuffer, Boolean> result : certResults.entrySet()) {
+            operations.add(ContentProviderOperation.newInsert(certCacheUri)
+                    .withValue(CertCache.MASTER_KEY_ID, masterKeyId)
+                    .withValue(CertCache.SIGNATURE_HASH, result.getKey().array())
+                    .withValue(CertCache.VERIFIED, result.getValue()).build());
         }
-
-        // Save the saved keyring (if any)
-        if (secretRing != null) {
-            saveKeyRing(secretRing);
-        }
-
     }
 
     private static class UserIdItem implements Comparable<UserIdItem> {
@@ -404,29 +909,35 @@ public class ProviderHelper {
     }
 
     /**
-     * Saves a PGPSecretKeyRing in the DB. This will only work if a corresponding public keyring
-     * is already in the database!
+     * Builds the operations to replace the secret keyring and to mark its keys as available
      */
-    public void saveKeyRing(PGPSecretKeyRing keyRing) throws IOException {
+    private void buildSecretKeyRingOperations(PGPSecretKeyRing keyRing,
+                                              ArrayList<ContentProviderOperation> operations) {
         long masterKeyId = keyRing.getPublicKey().getKeyID();
 
+        // keys unlocked from the old version of this keyring must not be used anymore
+        UnlockedKeyCache unlockedKeyCache = UnlockedKeyCache.getInstance(mContext);
+        for (PGPSecretKey sub : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+            unlockedKeyCache.remove(sub.getKeyID());
+        }
+
         {
             Uri uri = Keys.buildKeysUri(Long.toString(masterKeyId));
 
             // first, mark all keys as not available
-            ContentValues values = new ContentValues();
-            values.put(Keys.HAS_SECRET, 0);
-            mContentResolver.update(uri, values, null, null);
+            operations.add(ContentProviderOperation.newUpdate(uri)
+                    .withValue(Keys.HAS_SECRET, 0).build());
 
-            values.put(Keys.HAS_SECRET, 1);
             // then, mark exactly the keys we have available
             for (PGPSecretKey sub : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
                 S2K s2k = sub.getS2K();
                 // Set to 1, except if the encryption type is GNU_DUMMY_S2K
                 if(s2k == null || s2k.getType() != S2K.GNU_DUMMY_S2K) {
-                    mContentResolver.update(uri, values, Keys.KEY_ID + " = ?", new String[]{
-                            Long.toString(sub.getKeyID())
-                    });
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(Keys.HAS_SECRET, 1)
+                            .withSelection(Keys.KEY_ID + " = ?", new String[]{
+                                    Long.toString(sub.getKeyID())
+                            }).build());
                 }
             }
             // this implicitly leaves all keys which were not in the secret key ring
@@ -438,25 +949,11 @@ public class ProviderHelper {
             ContentValues values = new ContentValues();
             values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
             values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
-            // insert new version of this keyRing
+            // replace an old version of this keyRing
             Uri uri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
-            mContentResolver.insert(uri, values);
+            operations.add(ContentProviderOperation.newDelete(uri).build());
+            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
         }
-
-    }
-
-    /**
-     * Saves (or updates) a pair of public and secret KeyRings in the database
-     */
-    public void saveKeyRing(PGPPublicKeyRing pubRing, PGPSecretKeyRing privRing) throws IOException {
-        long masterKeyId = pubRing.getPublicKey().getKeyID();
-
-        // delete secret keyring (so it isn't unnecessarily saved by public-saveKeyRing below)
-        mContentResolver.delete(KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId)), null, null);
-
-        // save public keyring
-        saveKeyRing(pubRing);
-        saveKeyRing(privRing);
     }
 
     /**
@@ -517,6 +1014,7 @@ public class ProviderHelper {
         ContentValues values = new ContentValues();
         values.put(UserIds.MASTER_KEY_ID, masterKeyId);
         values.put(UserIds.USER_ID, item.userId);
+        values.put(UserIds.EMAIL, PgpKeyHelper.getEmailForLookup(item.userId));
         values.put(UserIds.IS_PRIMARY, item.isPrimary);
         values.put(UserIds.IS_REVOKED, item.isRevoked);
         values.put(UserIds.RANK, rank);
@@ -40,7 +40,7 @@ public class AccountSettings {
         // defaults:
         this.mEncryptionAlgorithm = PGPEncryptedData.AES_256;
         this.mHashAlgorithm = HashAlgorithmTags.SHA512;
-        this.mCompression = Constants.choice.compression.zlib;
+        this.mCompression = Constants.choice.compression.auto;
     }
 
     public String getAccountName() {
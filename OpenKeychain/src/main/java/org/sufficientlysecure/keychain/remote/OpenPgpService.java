@@ -19,16 +19,21 @@ package org.thialfihar.android.apg.remote;
 
 import android.app.PendingIntent;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.support.v4.util.LongSparseArray;
 
 import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.openintents.openpgp.util.OpenPgpApi;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.util.Arrays;
+import org.spongycastle.util.io.TeeInputStream;
 import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.R;
@@ -36,24 +41,60 @@ import org.thialfihar.android.apg.pgp.PgpDecryptVerify;
 import org.thialfihar.android.apg.pgp.PgpDecryptVerifyResult;
 import org.thialfihar.android.apg.pgp.PgpHelper;
 import org.thialfihar.android.apg.pgp.PgpSignEncrypt;
+import org.thialfihar.android.apg.pgp.PgpSignEncryptResult;
+import org.thialfihar.android.apg.pgp.PgpSigningSession;
 import org.thialfihar.android.apg.pgp.exception.PgpGeneralException;
 import org.thialfihar.android.apg.provider.ApgContract.ApiAccounts;
 import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
 import org.thialfihar.android.apg.provider.ProviderHelper;
 import org.thialfihar.android.apg.remote.ui.RemoteServiceActivity;
 import org.thialfihar.android.apg.service.PassphraseCacheService;
+import org.thialfihar.android.apg.service.UnlockedKeyCache;
 import org.thialfihar.android.apg.ui.ImportKeysActivity;
 import org.thialfihar.android.apg.ui.ViewKeyActivity;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class OpenPgpService extends RemoteService {
 
+    /* batch decrypt/verify, not (yet) part of OpenPgpApi */
+    public static final String ACTION_DECRYPT_VERIFY_BATCH = Constants.INTENT_PREFIX
+            + "DECRYPT_VERIFY_BATCH";
+
+    /* ArrayList<ParcelFileDescriptor> */
+    public static final String EXTRA_INPUTS = "inputs";
+    /* ArrayList<ParcelFileDescriptor> */
+    public static final String EXTRA_OUTPUTS = "outputs";
+
+    /* int[], RESULT_CODE of each message */
+    public static final String RESULT_CODES = "result_codes";
+    /* ArrayList<OpenPgpSignatureResult>, null entries for messages without signature */
+    public static final String RESULT_SIGNATURES = "signatures";
+    /* ArrayList<OpenPgpError>, null entries for messages without error */
+    public static final String RESULT_ERRORS = "errors";
+
+    /* int, compression algorithm used by encrypt, not (yet) part of OpenPgpApi */
+    public static final String RESULT_COMPRESSION = "compression";
+
+    /* shared by all batch calls */
+    private static ExecutorService sBatchExecutor;
+
     /**
      * Search database for key ids based on emails.
      *
@@ -69,27 +110,22 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingUserIds = new ArrayList<String>();
         ArrayList<String> duplicateUserIds = new ArrayList<String>();
 
+        // look up all emails at once
+        HashMap<String, ArrayList<Long>> masterKeyIds =
+                mProviderHelper.getMasterKeyIdsWithEmails(encryptionUserIds);
         for (String email : encryptionUserIds) {
-            Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-            Cursor cursor = getContentResolver().query(uri, null, null, null, null);
-            try {
-                if (cursor != null && cursor.moveToFirst()) {
-                    long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                    keyIds.add(id);
-                } else {
-                    missingUserIdsCheck = true;
-                    missingUserIds.add(email);
-                    Log.d(Constants.TAG, "user id missing");
-                }
-                if (cursor != null && cursor.moveToNext()) {
-                    duplicateUserIdsCheck = true;
-                    duplicateUserIds.add(email);
-                    Log.d(Constants.TAG, "more than one user id with the same email");
-                }
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            ArrayList<Long> ids = masterKeyIds.get(email.toLowerCase(Locale.ENGLISH));
+            if (ids != null) {
+                keyIds.add(ids.get(0));
+            } else {
+                missingUserIdsCheck = true;
+                missingUserIds.add(email);
+                Log.d(Constants.TAG, "user id missing");
+            }
+            if (ids != null && ids.size() > 1) {
+                duplicateUserIdsCheck = true;
+                duplicateUserIds.add(email);
+                Log.d(Constants.TAG, "more than one user id with the same email");
             }
         }
 
@@ -153,17 +189,23 @@ public class OpenPgpService extends RemoteService {
         try {
             boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
 
-            // get passphrase from cache, if key has "no" passphrase, this returns an empty String
-            String passphrase;
+            ProviderHelper providerHelper = new ProviderHelper(getContext());
+            UnlockedKeyCache unlockedKeyCache = UnlockedKeyCache.getInstance(getContext());
+
+            // no passphrase is needed if the signing key has already been unlocked
+            String passphrase = null;
             if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
                 passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-            } else {
-                passphrase = PassphraseCacheService.getCachedPassphrase(getContext(), accSettings.getKeyId());
-            }
-            if (passphrase == null) {
-                // get PendingIntent for passphrase input, add it to given params and return to client
-                Intent passphraseBundle = getPassphraseBundleIntent(data, accSettings.getKeyId());
-                return passphraseBundle;
+            } else if (!PgpSigningSession.isUnlocked(providerHelper, accSettings.getKeyId(),
+                    accSettings.getHashAlgorithm(), unlockedKeyCache)) {
+                // get passphrase from cache, if key has "no" passphrase, this returns an empty String
+                passphrase = PassphraseCacheService.getCachedPassphrase(getContext(),
+                        accSettings.getKeyId());
+                if (passphrase == null) {
+                    // get PendingIntent for passphrase input, add it to given params and return to client
+                    Intent passphraseBundle = getPassphraseBundleIntent(data, accSettings.getKeyId());
+                    return passphraseBundle;
+                }
             }
 
             // Get Input- and OutputStream from ParcelFileDescriptor
@@ -175,14 +217,15 @@ public class OpenPgpService extends RemoteService {
 
                 // sign-only
                 PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
-                        new ProviderHelper(getContext()),
+                        providerHelper,
                         PgpHelper.getFullVersion(getContext()),
                         inputData, os);
                 builder.setEnableAsciiArmorOutput(asciiArmor)
                         .setSignatureHashAlgorithm(accSettings.getHashAlgorithm())
                         .setSignatureForceV3(false)
                         .setSignatureMasterKeyId(accSettings.getKeyId())
-                        .setSignaturePassphrase(passphrase);
+                        .setSignaturePassphrase(passphrase)
+                        .setUnlockedKeyCache(unlockedKeyCache);
 
                 // TODO: currently always assume cleartext input, no sign-only of binary currently!
                 builder.setCleartextInput(true);
@@ -194,9 +237,12 @@ public class OpenPgpService extends RemoteService {
                 } catch (PgpSignEncrypt.KeyExtractionException e) {
                     throw new Exception(getString(R.string.error_could_not_extract_private_key));
                 } catch (PgpSignEncrypt.NoPassphraseException e) {
-                    throw new Exception(getString(R.string.error_no_signature_passphrase));
+                    // unlocked key has timed out in the meantime
+                    return getPassphraseBundleIntent(data, accSettings.getKeyId());
                 } catch (PgpSignEncrypt.NoSigningKeyException e) {
                     throw new Exception(getString(R.string.error_no_signature_key));
+                } catch (PgpSignEncrypt.NoEncryptionKeyException e) {
+                    throw new Exception(getString(R.string.error_no_encrypt_subkey));
                 }
             } finally {
                 is.close();
@@ -254,38 +300,46 @@ public class OpenPgpService extends RemoteService {
             // Get Input- and OutputStream from ParcelFileDescriptor
             InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
             OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            PgpSignEncryptResult signEncryptResult;
             try {
                 long inputLength = is.available();
                 InputData inputData = new InputData(is, inputLength);
 
+                ProviderHelper providerHelper = new ProviderHelper(getContext());
                 PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
-                        new ProviderHelper(getContext()),
+                        providerHelper,
                         PgpHelper.getFullVersion(getContext()),
                         inputData, os);
                 builder.setEnableAsciiArmorOutput(asciiArmor)
                         .setCompressionId(accSettings.getCompression())
                         .setSymmetricEncryptionAlgorithm(accSettings.getEncryptionAlgorithm())
-                        .setEncryptionMasterKeyIds(keyIds);
+                        .setEncryptionMasterKeyIds(keyIds)
+                        .setParallelKeyEncryption(true);
 
                 if (sign) {
-                    String passphrase;
+                    UnlockedKeyCache unlockedKeyCache = UnlockedKeyCache.getInstance(getContext());
+
+                    // no passphrase is needed if the signing key has already been unlocked
+                    String passphrase = null;
                     if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
                         passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-                    } else {
+                    } else if (!PgpSigningSession.isUnlocked(providerHelper, accSettings.getKeyId(),
+                            accSettings.getHashAlgorithm(), unlockedKeyCache)) {
                         passphrase = PassphraseCacheService.getCachedPassphrase(getContext(),
                                 accSettings.getKeyId());
-                    }
-                    if (passphrase == null) {
-                        // get PendingIntent for passphrase input, add it to given params and return to client
-                        Intent passphraseBundle = getPassphraseBundleIntent(data, accSettings.getKeyId());
-                        return passphraseBundle;
+                        if (passphrase == null) {
+                            // get PendingIntent for passphrase input, add it to given params and return to client
+                            Intent passphraseBundle = getPassphraseBundleIntent(data, accSettings.getKeyId());
+                            return passphraseBundle;
+                        }
                     }
 
                     // sign and encrypt
                     builder.setSignatureHashAlgorithm(accSettings.getHashAlgorithm())
                             .setSignatureForceV3(false)
                             .setSignatureMasterKeyId(accSettings.getKeyId())
-                            .setSignaturePassphrase(passphrase);
+                            .setSignaturePassphrase(passphrase)
+                            .setUnlockedKeyCache(unlockedKeyCache);
                 } else {
                     // encrypt only
                     builder.setSignatureMasterKeyId(Constants.key.none);
@@ -293,15 +347,18 @@ public class OpenPgpService extends RemoteService {
 
                 try {
                     // execute PGP operation!
-                    builder.build().execute();
+                    signEncryptResult = builder.build().execute();
 
                     // throw exceptions upwards to client with meaningful messages
                 } catch (PgpSignEncrypt.KeyExtractionException e) {
                     throw new Exception(getString(R.string.error_could_not_extract_private_key));
                 } catch (PgpSignEncrypt.NoPassphraseException e) {
-                    throw new Exception(getString(R.string.error_no_signature_passphrase));
+                    // unlocked key has timed out in the meantime
+                    return getPassphraseBundleIntent(data, accSettings.getKeyId());
                 } catch (PgpSignEncrypt.NoSigningKeyException e) {
                     throw new Exception(getString(R.string.error_no_signature_key));
+                } catch (PgpSignEncrypt.NoEncryptionKeyException e) {
+                    throw new Exception(getString(R.string.error_no_encrypt_subkey));
                 }
             } finally {
                 is.close();
@@ -309,6 +366,7 @@ public class OpenPgpService extends RemoteService {
             }
 
             Intent result = new Intent();
+            result.putExtra(RESULT_COMPRESSION, signEncryptResult.getCompressionId());
             result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
             return result;
         } catch (Exception e) {
@@ -331,41 +389,14 @@ public class OpenPgpService extends RemoteService {
             try {
 
                 String passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-                long inputLength = is.available();
-                InputData inputData = new InputData(is, inputLength);
-
-                PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(
-                        new ProviderHelper(this),
-                        new PgpDecryptVerify.PassphraseCache() {
+                PgpDecryptVerifyResult decryptVerifyResult = decryptAndVerify(is, os, passphrase,
+                        allowedKeyIds, new PgpDecryptVerify.PassphraseCache() {
                             @Override
                             public String getCachedPassphrase(long masterKeyId) {
                                 return PassphraseCacheService.getCachedPassphrase(
                                         OpenPgpService.this, masterKeyId);
                             }
-                        },
-                        inputData, os);
-                builder.setAllowSymmetricDecryption(false)
-                        // allow only the private key for this app for decryption
-                        .setAllowedKeyIds(allowedKeyIds)
-                        .setPassphrase(passphrase);
-
-                PgpDecryptVerifyResult decryptVerifyResult;
-                try {
-                    // TODO: currently does not support binary signed-only content
-                    decryptVerifyResult = builder.build().execute();
-
-                    // throw exceptions upwards to client with meaningful messages
-                } catch (PgpDecryptVerify.InvalidDataException e) {
-                    throw new Exception(getString(R.string.error_invalid_data));
-                } catch (PgpDecryptVerify.KeyExtractionException e) {
-                    throw new Exception(getString(R.string.error_could_not_extract_private_key));
-                } catch (PgpDecryptVerify.WrongPassphraseException e) {
-                    throw new Exception(getString(R.string.error_wrong_passphrase));
-                } catch (PgpDecryptVerify.NoSecretKeyException e) {
-                    throw new Exception(getString(R.string.error_no_secret_key_found));
-                } catch (PgpDecryptVerify.IntegrityCheckFailedException e) {
-                    throw new Exception(getString(R.string.error_integrity_check_failed));
-                }
+                        });
 
                 if (PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED == decryptVerifyResult.getStatus()) {
                     // get PendingIntent for passphrase input, add it to given params and return to client
@@ -413,6 +444,244 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Decrypts and verifies a single message, throws exceptions with meaningful messages for the
+     * client.
+     */
+    private PgpDecryptVerifyResult decryptAndVerify(InputStream is, OutputStream os,
+                                                    String passphrase, Set<Long> allowedKeyIds,
+                                                    PgpDecryptVerify.PassphraseCache passphraseCache)
+            throws Exception {
+        long inputLength = is.available();
+        InputData inputData = new InputData(is, inputLength);
+
+        PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(
+                new ProviderHelper(this), passphraseCache, inputData, os);
+        builder.setAllowSymmetricDecryption(false)
+                // allow only the private key for this app for decryption
+                .setAllowedKeyIds(allowedKeyIds)
+                .setPassphrase(passphrase)
+                .setUnlockedKeyCache(UnlockedKeyCache.getInstance(getContext()));
+
+        try {
+            // TODO: currently does not support binary signed-only content
+            return builder.build().execute();
+
+            // throw exceptions upwards to client with meaningful messages
+        } catch (PgpDecryptVerify.InvalidDataException e) {
+            throw new Exception(getString(R.string.error_invalid_data));
+        } catch (PgpDecryptVerify.KeyExtractionException e) {
+            throw new Exception(getString(R.string.error_could_not_extract_private_key));
+        } catch (PgpDecryptVerify.WrongPassphraseException e) {
+            throw new Exception(getString(R.string.error_wrong_passphrase));
+        } catch (PgpDecryptVerify.NoSecretKeyException e) {
+            throw new Exception(getString(R.string.error_no_secret_key_found));
+        } catch (PgpDecryptVerify.IntegrityCheckFailedException e) {
+            throw new Exception(getString(R.string.error_integrity_check_failed));
+        }
+    }
+
+    /**
+     * Passphrases requested during a batch operation, every passphrase is only requested once
+     * from PassphraseCacheService (which is a blocking round trip to another process).
+     */
+    private class BatchPassphraseCache implements PgpDecryptVerify.PassphraseCache {
+        private HashMap<Long, String> mPassphrases = new HashMap<Long, String>();
+
+        @Override
+        public synchronized String getCachedPassphrase(long masterKeyId) {
+            if (!mPassphrases.containsKey(masterKeyId)) {
+                mPassphrases.put(masterKeyId, PassphraseCacheService.getCachedPassphrase(
+                        OpenPgpService.this, masterKeyId));
+            }
+            return mPassphrases.get(masterKeyId);
+        }
+    }
+
+    private static synchronized ExecutorService getBatchExecutor() {
+        if (sBatchExecutor == null) {
+            sBatchExecutor = Executors.newFixedThreadPool(
+                    Math.max(1, Runtime.getRuntime().availableProcessors()));
+        }
+        return sBatchExecutor;
+    }
+
+    /**
+     * Unlocks every distinct key which is used in a batch once and puts it into UnlockedKeyCache,
+     * so that the workers do not repeat the expensive S2K of the same key in parallel.
+     * Keys without a cached passphrase are unlocked with the given passphrase if it matches,
+     * all others are left to the workers, which return KEY_PASSHRASE_NEEDED as before.
+     */
+    private void unlockKeys(Set<Long> keyIds, String passphrase, Set<Long> allowedKeyIds,
+                            PgpDecryptVerify.PassphraseCache passphraseCache) {
+        UnlockedKeyCache unlockedKeyCache = UnlockedKeyCache.getInstance(getContext());
+
+        long[] ids = new long[keyIds.size()];
+        int i = 0;
+        for (long keyId : keyIds) {
+            ids[i++] = keyId;
+        }
+        LongSparseArray<Long> masterKeyIds = mProviderHelper.getMasterKeyIdsWithKeyIds(ids);
+
+        for (long keyId : ids) {
+            Long masterKeyId = masterKeyIds.get(keyId);
+            if (masterKeyId == null
+                    || (allowedKeyIds != null && !allowedKeyIds.contains(masterKeyId))
+                    || unlockedKeyCache.get(keyId) != null) {
+                continue;
+            }
+
+            PGPSecretKey secretKey;
+            try {
+                secretKey = mProviderHelper.getPGPSecretKeyRing(masterKeyId).getSecretKey(keyId);
+            } catch (ProviderHelper.NotFoundException e) {
+                continue;
+            }
+            if (secretKey == null) {
+                continue;
+            }
+
+            // returns "" if key has no passphrase
+            String keyPassphrase = passphraseCache.getCachedPassphrase(masterKeyId);
+            if (keyPassphrase == null) {
+                keyPassphrase = passphrase;
+            }
+            if (keyPassphrase == null) {
+                continue;
+            }
+
+            char[] passphraseChars = keyPassphrase.toCharArray();
+            try {
+                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphraseChars);
+                PGPPrivateKey privateKey = secretKey.extractPrivateKey(keyDecryptor);
+                if (privateKey != null) {
+                    unlockedKeyCache.put(masterKeyId, privateKey);
+                }
+            } catch (PGPException e) {
+                // wrong passphrase, the worker reports it for the affected messages
+                Log.d(Constants.TAG, "could not unlock key " + keyId + " for batch", e);
+            } finally {
+                Arrays.fill(passphraseChars, '\0');
+            }
+        }
+    }
+
+    /**
+     * Decrypts and verifies a list of messages in one call, the messages are processed on a
+     * worker pool. Results are returned per message in the order of the given descriptors.
+     * If any message needs a passphrase, a PendingIntent to cache it is returned in addition,
+     * the client can repeat the call for the affected messages afterwards.
+     * The session key packets at the start of all inputs are read before any message is
+     * decrypted, so the client has to write the inputs independently of each other.
+     */
+    private Intent batchDecryptAndVerifyImpl(final Intent data, final Set<Long> allowedKeyIds) {
+        ArrayList<ParcelFileDescriptor> inputs = data.getParcelableArrayListExtra(EXTRA_INPUTS);
+        ArrayList<ParcelFileDescriptor> outputs = data.getParcelableArrayListExtra(EXTRA_OUTPUTS);
+        if (inputs == null || outputs == null || inputs.size() != outputs.size()) {
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR,
+                    "Same number of input and output descriptors required!"));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        }
+
+        final String passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
+        final BatchPassphraseCache passphraseCache = new BatchPassphraseCache();
+
+        int count = inputs.size();
+
+        // read the session key packets of all messages first, the bytes read are replayed
+        // in front of the rest of the input for decryption
+        ArrayList<InputStream> inputStreams = new ArrayList<InputStream>(count);
+        HashSet<Long> keyIds = new HashSet<Long>();
+        for (int i = 0; i < count; i++) {
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(inputs.get(i));
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            try {
+                for (long keyId : PgpDecryptVerify.getEncryptionKeyIds(
+                        new TeeInputStream(is, header))) {
+                    keyIds.add(keyId);
+                }
+            } catch (Exception e) {
+                // not decryptable, the worker reports the error for this message
+                Log.d(Constants.TAG, "could not read session key packets of message " + i, e);
+            }
+            inputStreams.add(new SequenceInputStream(
+                    new ByteArrayInputStream(header.toByteArray()), is));
+        }
+        unlockKeys(keyIds, passphrase, allowedKeyIds, passphraseCache);
+
+        ExecutorService executor = getBatchExecutor();
+
+        ArrayList<Future<PgpDecryptVerifyResult>> futures =
+                new ArrayList<Future<PgpDecryptVerifyResult>>(count);
+        for (int i = 0; i < count; i++) {
+            final InputStream is = inputStreams.get(i);
+            final ParcelFileDescriptor output = outputs.get(i);
+            futures.add(executor.submit(new Callable<PgpDecryptVerifyResult>() {
+                @Override
+                public PgpDecryptVerifyResult call() throws Exception {
+                    OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+                    try {
+                        return decryptAndVerify(is, os, passphrase, allowedKeyIds,
+                                passphraseCache);
+                    } finally {
+                        is.close();
+                        os.close();
+                    }
+                }
+            }));
+        }
+
+        int[] resultCodes = new int[count];
+        ArrayList<OpenPgpSignatureResult> signatureResults =
+                new ArrayList<OpenPgpSignatureResult>(count);
+        ArrayList<OpenPgpError> errors = new ArrayList<OpenPgpError>(count);
+        Long keyIdPassphraseNeeded = null;
+        for (int i = 0; i < count; i++) {
+            OpenPgpSignatureResult signatureResult = null;
+            OpenPgpError error = null;
+            try {
+                PgpDecryptVerifyResult decryptVerifyResult = futures.get(i).get();
+                if (PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED == decryptVerifyResult.getStatus()) {
+                    if (keyIdPassphraseNeeded == null) {
+                        keyIdPassphraseNeeded = decryptVerifyResult.getKeyIdPassphraseNeeded();
+                    }
+                    resultCodes[i] = OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED;
+                } else if (PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED ==
+                        decryptVerifyResult.getStatus()) {
+                    error = new OpenPgpError(OpenPgpError.GENERIC_ERROR,
+                            "Decryption of symmetric content not supported by API!");
+                    resultCodes[i] = OpenPgpApi.RESULT_CODE_ERROR;
+                } else {
+                    signatureResult = decryptVerifyResult.getSignatureResult();
+                    resultCodes[i] = OpenPgpApi.RESULT_CODE_SUCCESS;
+                }
+            } catch (ExecutionException e) {
+                error = new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getCause().getMessage());
+                resultCodes[i] = OpenPgpApi.RESULT_CODE_ERROR;
+            } catch (InterruptedException e) {
+                error = new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage());
+                resultCodes[i] = OpenPgpApi.RESULT_CODE_ERROR;
+            }
+            signatureResults.add(signatureResult);
+            errors.add(error);
+        }
+
+        Intent result;
+        if (keyIdPassphraseNeeded != null) {
+            result = getPassphraseBundleIntent(data, keyIdPassphraseNeeded);
+        } else {
+            result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+        }
+        result.putExtra(RESULT_CODES, resultCodes);
+        result.putParcelableArrayListExtra(RESULT_SIGNATURES, signatureResults);
+        result.putParcelableArrayListExtra(RESULT_ERRORS, errors);
+        return result;
+    }
+
     private Intent getKeyImpl(Intent data) {
         try {
             long masterKeyId = data.getLongExtra(OpenPgpApi.EXTRA_KEY_ID, 0);
@@ -553,6 +822,12 @@ public class OpenPgpService extends RemoteService {
                         mProviderHelper.getAllKeyIdsForApp(
                                 ApiAccounts.buildBaseUri(currentPkg));
                 return decryptAndVerifyImpl(data, input, output, allowedKeyIds);
+            } else if (ACTION_DECRYPT_VERIFY_BATCH.equals(action)) {
+                String currentPkg = getCurrentCallingPackage();
+                Set<Long> allowedKeyIds =
+                        mProviderHelper.getAllKeyIdsForApp(
+                                ApiAccounts.buildBaseUri(currentPkg));
+                return batchDecryptAndVerifyImpl(data, allowedKeyIds);
             } else if (OpenPgpApi.ACTION_GET_KEY.equals(action)) {
                 return getKeyImpl(data);
             } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
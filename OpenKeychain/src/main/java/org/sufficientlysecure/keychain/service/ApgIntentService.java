@@ -47,6 +47,7 @@ import org.thialfihar.android.apg.pgp.PgpImportExport;
 import org.thialfihar.android.apg.pgp.PgpKeyHelper;
 import org.thialfihar.android.apg.pgp.PgpKeyOperation;
 import org.thialfihar.android.apg.pgp.PgpSignEncrypt;
+import org.thialfihar.android.apg.pgp.PgpSignEncryptResult;
 import org.thialfihar.android.apg.pgp.Progressable;
 import org.thialfihar.android.apg.pgp.exception.PgpGeneralException;
 import org.thialfihar.android.apg.pgp.exception.PgpGeneralMsgIdException;
@@ -55,6 +56,7 @@ import org.thialfihar.android.apg.provider.ApgDatabase;
 import org.thialfihar.android.apg.provider.ProviderHelper;
 import org.thialfihar.android.apg.keyimport.ImportKeysListEntry;
 import org.thialfihar.android.apg.keyimport.HkpKeyserver;
+import org.thialfihar.android.apg.util.ChannelOutputStream;
 import org.thialfihar.android.apg.util.InputData;
 import org.thialfihar.android.apg.keyimport.KeybaseKeyserver;
 import org.thialfihar.android.apg.util.Log;
@@ -64,7 +66,6 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -128,6 +129,7 @@ public class ApgIntentService extends IntentService
     // decrypt/verify
     public static final String DECRYPT_CIPHERTEXT_BYTES = "ciphertext_bytes";
     public static final String DECRYPT_PASSPHRASE = "passphrase";
+    public static final String DECRYPT_DETACHED_SIGNATURE_BYTES = "detached_signature_bytes";
 
     // save keyring
     public static final String SAVE_KEYRING_PARCEL = "save_parcel";
@@ -174,6 +176,7 @@ public class ApgIntentService extends IntentService
 
     // encrypt
     public static final String RESULT_BYTES = "encrypted_data";
+    public static final String RESULT_SIGN_ENCRYPT_RESULT = "sign_encrypt_result";
 
     // decrypt/verify
     public static final String RESULT_DECRYPTED_BYTES = "decrypted_data";
@@ -190,6 +193,8 @@ public class ApgIntentService extends IntentService
     Messenger mMessenger;
 
     private boolean mIsCanceled;
+    // throughput of the current operation, sent with the next progress update
+    private Bundle mTransferProgress;
 
     public ApgIntentService() {
         super("ApgIntentService");
@@ -269,12 +274,10 @@ public class ApgIntentService extends IntentService
                                     getString(R.string.error_external_storage_not_ready));
                         }
 
-                        inStream = new FileInputStream(inputFile);
-                        File file = new File(inputFile);
-                        inLength = file.length();
-                        inputData = new InputData(inStream, inLength);
-
-                        outStream = new FileOutputStream(outputFile);
+                        // read through a memory mapped channel, write through a direct buffer
+                        inputData = new InputData(new File(inputFile));
+                        outStream = new ChannelOutputStream(
+                                new FileOutputStream(outputFile).getChannel());
 
                         break;
 
@@ -322,26 +325,37 @@ public class ApgIntentService extends IntentService
                                 Preferences.getPreferences(this).getDefaultEncryptionAlgorithm())
                         .setSignatureForceV3(Preferences.getPreferences(this).getForceV3Signatures())
                         .setEncryptionMasterKeyIds(encryptionKeyIds)
+                        .setParallelKeyEncryption(true)
                         .setSymmetricPassphrase(symmetricPassphrase)
                         .setSignatureMasterKeyId(signatureKeyId)
                         .setEncryptToSigner(true)
                         .setSignatureHashAlgorithm(
                                 Preferences.getPreferences(this).getDefaultHashAlgorithm())
                         .setSignaturePassphrase(
-                                PassphraseCacheService.getCachedPassphrase(this, signatureKeyId));
+                                PassphraseCacheService.getCachedPassphrase(this, signatureKeyId))
+                        .setUnlockedKeyCache(UnlockedKeyCache.getInstance(this));
 
                 // this assumes that the bytes are cleartext (valid for current implementation!)
                 if (target == TARGET_BYTES) {
                     builder.setCleartextInput(true);
                 }
+                // files can be large, compress and encrypt on separate threads
+                if (target == TARGET_URI) {
+                    builder.setPipelined(true);
+                }
 
-                builder.build().execute();
-
-                outStream.close();
+                PgpSignEncryptResult signEncryptResult;
+                try {
+                    signEncryptResult = builder.build().execute();
+                } finally {
+                    outStream.close();
+                    inputData.close();
+                }
 
                 /* Output */
 
                 Bundle resultData = new Bundle();
+                resultData.putParcelable(RESULT_SIGN_ENCRYPT_RESULT, signEncryptResult);
 
                 switch (target) {
                     case TARGET_BYTES:
@@ -374,6 +388,8 @@ public class ApgIntentService extends IntentService
 
                 byte[] bytes = data.getByteArray(DECRYPT_CIPHERTEXT_BYTES);
                 String passphrase = data.getString(DECRYPT_PASSPHRASE);
+                // if given, the input is verified against it instead of decrypted
+                byte[] detachedSignature = data.getByteArray(DECRYPT_DETACHED_SIGNATURE_BYTES);
 
                 InputStream inStream;
                 long inLength;
@@ -396,20 +412,21 @@ public class ApgIntentService extends IntentService
 
                         // check if storage is ready
                         if (!FileHelper.isStorageMounted(inputFile)
-                                || !FileHelper.isStorageMounted(outputFile)) {
+                                || (detachedSignature == null
+                                        && !FileHelper.isStorageMounted(outputFile))) {
                             throw new PgpGeneralException(
                                     getString(R.string.error_external_storage_not_ready));
                         }
 
-                        // InputStream
-                        inLength = -1;
-                        inStream = new FileInputStream(inputFile);
-                        File file = new File(inputFile);
-                        inLength = file.length();
-                        inputData = new InputData(inStream, inLength);
-
-                        // OutputStream
-                        outStream = new FileOutputStream(outputFile);
+                        // read through a memory mapped channel, write through a direct buffer
+                        inputData = new InputData(new File(inputFile));
+                        if (detachedSignature != null) {
+                            // verification only, nothing is written
+                            outStream = new ByteArrayOutputStream();
+                        } else {
+                            outStream = new ChannelOutputStream(
+                                    new FileOutputStream(outputFile).getChannel());
+                        }
 
                         break;
 
@@ -462,11 +479,19 @@ public class ApgIntentService extends IntentService
                 builder.setProgressable(this);
 
                 builder.setAllowSymmetricDecryption(true)
-                        .setPassphrase(passphrase);
-
-                PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
+                        .setPassphrase(passphrase)
+                        .setUnlockedKeyCache(UnlockedKeyCache.getInstance(this))
+                        .setDetachedSignature(detachedSignature)
+                        // files can be large, decrypt and decompress on separate threads
+                        .setPipelined(target == TARGET_URI);
 
-                outStream.close();
+                PgpDecryptVerifyResult decryptVerifyResult;
+                try {
+                    decryptVerifyResult = builder.build().execute();
+                } finally {
+                    outStream.close();
+                    inputData.close();
+                }
 
                 resultData.putParcelable(RESULT_DECRYPT_VERIFY_RESULT, decryptVerifyResult);
 
@@ -679,7 +704,7 @@ public class ApgIntentService extends IntentService
 
                 String selection = null;
                 if (!exportAll) {
-                    selection = ApgDatabase.Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN( ";
+                    selection = ApgDatabase.Tables.KEY_RING_SUMMARY + "." + KeyRings.MASTER_KEY_ID + " IN( ";
                     for (long l : masterKeyIds) {
                         selection += Long.toString(l) + ",";
                     }
@@ -923,6 +948,8 @@ public class ApgIntentService extends IntentService
             message = getString(R.string.error_no_signature_passphrase);
         } else if (e instanceof PgpSignEncrypt.NoSigningKeyException) {
             message = getString(R.string.error_no_signature_key);
+        } else if (e instanceof PgpSignEncrypt.NoEncryptionKeyException) {
+            message = getString(R.string.error_no_encrypt_subkey);
         } else if (e instanceof PgpDecryptVerify.InvalidDataException) {
             message = getString(R.string.error_invalid_data);
         } else if (e instanceof PgpDecryptVerify.KeyExtractionException) {
@@ -988,6 +1015,10 @@ public class ApgIntentService extends IntentService
         }
         data.putInt(ApgIntentServiceHandler.DATA_PROGRESS, progress);
         data.putInt(ApgIntentServiceHandler.DATA_PROGRESS_MAX, max);
+        if (mTransferProgress != null) {
+            data.putAll(mTransferProgress);
+            mTransferProgress = null;
+        }
 
         sendMessageToHandler(ApgIntentServiceHandler.MESSAGE_UPDATE_PROGRESS, null, data);
     }
@@ -1000,6 +1031,17 @@ public class ApgIntentService extends IntentService
         setProgress(null, progress, max);
     }
 
+    public void setTransferProgress(long bytes, long totalBytes, long bytesPerSecond,
+                                    long etaSeconds) {
+        // sent with the following progress update
+        Bundle data = new Bundle();
+        data.putLong(ApgIntentServiceHandler.DATA_BYTES, bytes);
+        data.putLong(ApgIntentServiceHandler.DATA_BYTES_TOTAL, totalBytes);
+        data.putLong(ApgIntentServiceHandler.DATA_BYTES_PER_SECOND, bytesPerSecond);
+        data.putLong(ApgIntentServiceHandler.DATA_ETA_SECONDS, etaSeconds);
+        mTransferProgress = data;
+    }
+
     @Override
     public boolean hasServiceStopped() {
         return mIsCanceled;
@@ -44,6 +44,11 @@ public class ApgIntentServiceHandler extends Handler {
     public static final String DATA_PROGRESS_MAX = "max";
     public static final String DATA_MESSAGE = "message";
     public static final String DATA_MESSAGE_ID = "message_id";
+    // optional for byte oriented operations
+    public static final String DATA_BYTES = "bytes";
+    public static final String DATA_BYTES_TOTAL = "bytes_total";
+    public static final String DATA_BYTES_PER_SECOND = "bytes_per_second";
+    public static final String DATA_ETA_SECONDS = "eta_seconds";
 
     Activity mActivity;
     ProgressDialogFragment mProgressDialogFragment;
@@ -138,6 +143,13 @@ public class ApgIntentServiceHandler extends Handler {
                     }
                 }
 
+                // byte oriented operations also report throughput and remaining time
+                if (data.containsKey(DATA_BYTES)) {
+                    mProgressDialogFragment.setTransferProgress(data.getLong(DATA_BYTES),
+                            data.getLong(DATA_BYTES_TOTAL), data.getLong(DATA_BYTES_PER_SECOND),
+                            data.getLong(DATA_ETA_SECONDS));
+                }
+
                 break;
 
             default:
@@ -45,7 +45,6 @@ import org.thialfihar.android.apg.Constants;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.helper.Preferences;
 import org.thialfihar.android.apg.pgp.PgpKeyHelper;
-import org.thialfihar.android.apg.provider.ApgContract;
 import org.thialfihar.android.apg.provider.ProviderHelper;
 import org.thialfihar.android.apg.util.Log;
 
@@ -173,8 +172,7 @@ public class PassphraseCacheService extends Service {
         long masterKeyId = keyId;
         if (masterKeyId != Constants.key.symmetric) {
             try {
-                masterKeyId = new ProviderHelper(this).getMasterKeyId(
-                        ApgContract.KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(Long.toString(keyId)));
+                masterKeyId = new ProviderHelper(this).getMasterKeyIdWithKeyId(keyId);
             } catch (ProviderHelper.NotFoundException e) {
                 return null;
             }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.spongycastle.openpgp.PGPPrivateKey;
+
+import org.thialfihar.android.apg.helper.Preferences;
+import org.thialfihar.android.apg.pgp.PgpSigningSession;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+import org.thialfihar.android.apg.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Companion of PassphraseCacheService which caches unlocked private keys, so that the expensive
+ * S2K derivation and unwrapping of a secret key is only done once per passphrase cache lifetime.
+ * <p/>
+ * PGPPrivateKey objects can not be transferred to the separate process of
+ * PassphraseCacheService, so there is one instance of this cache per process. Entries are keyed
+ * by the id of the (sub)key. Every entry expires after the passphrase cache ttl, also if the key
+ * has been unlocked with a passphrase which never was in PassphraseCacheService. Entries are
+ * removed earlier together with the passphrase of their keyring, when the timeout broadcast of
+ * PassphraseCacheService is received, and as soon as any keyring is changed in the database.
+ * Signing sessions hold an unlocked key as well and are cached with the same rules.
+ */
+public class UnlockedKeyCache {
+    public static final String TAG = PassphraseCacheService.TAG;
+
+    private static UnlockedKeyCache sInstance;
+
+    private Context mContext;
+    private LongSparseArray<CachedKey> mCache = new LongSparseArray<CachedKey>();
+    private HashMap<String, CachedSession> mSessions = new HashMap<String, CachedSession>();
+
+    private static class CachedKey {
+        long mMasterKeyId;
+        PGPPrivateKey mPrivateKey;
+        long mExpiry;
+
+        CachedKey(long masterKeyId, PGPPrivateKey privateKey, long expiry) {
+            mMasterKeyId = masterKeyId;
+            mPrivateKey = privateKey;
+            mExpiry = expiry;
+        }
+    }
+
+    private static class CachedSession {
+        PgpSigningSession mSession;
+        long mExpiry;
+
+        CachedSession(PgpSigningSession session, long expiry) {
+            mSession = session;
+            mExpiry = expiry;
+        }
+    }
+
+    public static synchronized UnlockedKeyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UnlockedKeyCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UnlockedKeyCache(Context context) {
+        mContext = context;
+
+        // passphrases are timed out by an alarm of PassphraseCacheService, unlocked keys of the
+        // same keyring are removed by the same broadcast
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                long masterKeyId = intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, -1);
+                Log.d(TAG, "Timeout of unlocked keys of " + masterKeyId + ", removed from memory!");
+                removeKeyRing(masterKeyId);
+            }
+        }, filter);
+
+        // keyrings are also saved by other processes, we get notified about these changes here
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+    }
+
+    /**
+     * Returns the unlocked private key for this key id.
+     *
+     * @param keyId
+     * @return unlocked key or null (if no unlocked key is cached for this keyId)
+     */
+    public synchronized PGPPrivateKey get(long keyId) {
+        CachedKey cachedKey = mCache.get(keyId);
+        if (cachedKey == null) {
+            return null;
+        }
+        if (cachedKey.mExpiry < SystemClock.elapsedRealtime()) {
+            Log.d(TAG, "Timeout of unlocked key " + keyId + ", removed from memory!");
+            remove(keyId);
+            return null;
+        }
+        return cachedKey.mPrivateKey;
+    }
+
+    private long getExpiry() {
+        long ttl = Preferences.getPreferences(mContext).getPassphraseCacheTtl();
+        return SystemClock.elapsedRealtime() + ttl * 1000;
+    }
+
+    /**
+     * Caches an unlocked private key for the passphrase cache ttl or until the passphrase of its
+     * keyring times out.
+     *
+     * @param masterKeyId master key id of the keyring, the passphrase cache is keyed by it
+     * @param privateKey
+     */
+    public synchronized void put(long masterKeyId, PGPPrivateKey privateKey) {
+        remove(privateKey.getKeyID());
+        mCache.put(privateKey.getKeyID(), new CachedKey(masterKeyId, privateKey, getExpiry()));
+    }
+
+    public synchronized void remove(long keyId) {
+        CachedKey cachedKey = mCache.get(keyId);
+        if (cachedKey != null) {
+            // drop the reference, the key material itself is immutable and can not be overwritten
+            cachedKey.mPrivateKey = null;
+            mCache.remove(keyId);
+        }
+
+        Iterator<CachedSession> it = mSessions.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mSession.getKeyId() == keyId) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all unlocked keys and signing sessions of this keyring.
+     *
+     * @param masterKeyId
+     */
+    public synchronized void removeKeyRing(long masterKeyId) {
+        for (int i = mCache.size() - 1; i >= 0; i--) {
+            CachedKey cachedKey = mCache.valueAt(i);
+            if (cachedKey.mMasterKeyId == masterKeyId) {
+                cachedKey.mPrivateKey = null;
+                mCache.removeAt(i);
+            }
+        }
+
+        Iterator<CachedSession> it = mSessions.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mSession.getMasterKeyId() == masterKeyId) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mCache.size(); i++) {
+            mCache.valueAt(i).mPrivateKey = null;
+        }
+        mCache.clear();
+        mSessions.clear();
+    }
+
+    private static String getSessionKey(long masterKeyId, int hashAlgorithm) {
+        return masterKeyId + "/" + hashAlgorithm;
+    }
+
+    /**
+     * Returns the signing session for this master key and hash algorithm.
+     *
+     * @param masterKeyId
+     * @param hashAlgorithm
+     * @return session or null (if no session is cached)
+     */
+    public synchronized PgpSigningSession getSigningSession(long masterKeyId, int hashAlgorithm) {
+        String key = getSessionKey(masterKeyId, hashAlgorithm);
+        CachedSession cachedSession = mSessions.get(key);
+        if (cachedSession == null) {
+            return null;
+        }
+        if (cachedSession.mExpiry < SystemClock.elapsedRealtime()) {
+            Log.d(TAG, "Timeout of signing session " + key + ", removed from memory!");
+            mSessions.remove(key);
+            return null;
+        }
+        return cachedSession.mSession;
+    }
+
+    /**
+     * Caches a signing session as long as its unlocked key, a session does not extend the
+     * lifetime of the key.
+     *
+     * @param session
+     */
+    public synchronized void putSigningSession(PgpSigningSession session) {
+        CachedKey cachedKey = mCache.get(session.getKeyId());
+        long expiry = cachedKey != null ? cachedKey.mExpiry : getExpiry();
+        mSessions.put(getSessionKey(session.getMasterKeyId(), session.getHashAlgorithm()),
+                new CachedSession(session, expiry));
+    }
+}
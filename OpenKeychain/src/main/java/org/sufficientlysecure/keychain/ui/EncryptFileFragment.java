@@ -114,6 +114,8 @@ public class EncryptFileFragment extends Fragment {
         Choice[] choices = new Choice[]{
                 new Choice(Constants.choice.compression.none, getString(R.string.choice_none) + " ("
                         + getString(R.string.compression_fast) + ")"),
+                new Choice(Constants.choice.compression.auto, getString(R.string.choice_auto) + " ("
+                        + getString(R.string.compression_auto) + ")"),
                 new Choice(Constants.choice.compression.zip, "ZIP ("
                         + getString(R.string.compression_fast) + ")"),
                 new Choice(Constants.choice.compression.zlib, "ZLIB ("
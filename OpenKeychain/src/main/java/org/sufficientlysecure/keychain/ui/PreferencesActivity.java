@@ -90,12 +90,14 @@ public class PreferencesActivity extends PreferenceActivity {
 
             int[] valueIds = new int[]{
                     Constants.choice.compression.none,
+                    Constants.choice.compression.auto,
                     Constants.choice.compression.zip,
                     Constants.choice.compression.zlib,
                     Constants.choice.compression.bzip2,
             };
             String[] entries = new String[]{
                     getString(R.string.choice_none) + " (" + getString(R.string.compression_fast) + ")",
+                    getString(R.string.choice_auto) + " (" + getString(R.string.compression_auto) + ")",
                     "ZIP (" + getString(R.string.compression_fast) + ")",
                     "ZLIB (" + getString(R.string.compression_fast) + ")",
                     "BZIP2 (" + getString(R.string.compression_very_slow) + ")",};
@@ -227,6 +229,7 @@ public class PreferencesActivity extends PreferenceActivity {
 
             int[] valueIds = new int[]{
                     Constants.choice.compression.none,
+                    Constants.choice.compression.auto,
                     Constants.choice.compression.zip,
                     Constants.choice.compression.zlib,
                     Constants.choice.compression.bzip2,
@@ -234,6 +237,7 @@ public class PreferencesActivity extends PreferenceActivity {
 
             String[] entries = new String[]{
                     getString(R.string.choice_none) + " (" + getString(R.string.compression_fast) + ")",
+                    getString(R.string.choice_auto) + " (" + getString(R.string.compression_auto) + ")",
                     "ZIP (" + getString(R.string.compression_fast) + ")",
                     "ZLIB (" + getString(R.string.compression_fast) + ")",
                     "BZIP2 (" + getString(R.string.compression_very_slow) + ")",
@@ -268,7 +268,7 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
 
         String inMasterKeyList = null;
         if (mSelectedMasterKeyIds != null && mSelectedMasterKeyIds.length > 0) {
-            inMasterKeyList = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN (";
+            inMasterKeyList = Tables.KEY_RING_SUMMARY + "." + KeyRings.MASTER_KEY_ID + " IN (";
             for (int i = 0; i < mSelectedMasterKeyIds.length; ++i) {
                 if (i != 0) {
                     inMasterKeyList += ", ";
@@ -25,6 +25,8 @@ import android.content.DialogInterface.OnCancelListener;
 import android.content.DialogInterface.OnKeyListener;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.view.KeyEvent;
 
 import org.thialfihar.android.apg.R;
@@ -35,6 +37,7 @@ public class ProgressDialogFragment extends DialogFragment {
     private static final String ARG_CANCELABLE = "cancelable";
 
     private OnCancelListener mOnCancelListener;
+    private String mMessage;
 
     /**
      * Creates new instance of this fragment
@@ -92,11 +95,40 @@ public class ProgressDialogFragment extends DialogFragment {
     public void setProgress(String message, int progress, int max) {
         ProgressDialog dialog = (ProgressDialog) getDialog();
 
+        mMessage = message;
         dialog.setMessage(message);
         dialog.setProgress(progress);
         dialog.setMax(max);
     }
 
+    /**
+     * Shows the processed bytes, the throughput and the remaining time below the message
+     *
+     * @param bytes
+     * @param totalBytes     total bytes or -1 if unknown
+     * @param bytesPerSecond
+     * @param etaSeconds     remaining time or -1 if unknown
+     */
+    public void setTransferProgress(long bytes, long totalBytes, long bytesPerSecond,
+                                    long etaSeconds) {
+        ProgressDialog dialog = (ProgressDialog) getDialog();
+        Activity activity = getActivity();
+
+        String transfer;
+        if (totalBytes >= 0 && etaSeconds >= 0) {
+            transfer = getString(R.string.progress_transfer,
+                    Formatter.formatFileSize(activity, bytes),
+                    Formatter.formatFileSize(activity, totalBytes),
+                    Formatter.formatFileSize(activity, bytesPerSecond),
+                    DateUtils.formatElapsedTime(etaSeconds));
+        } else {
+            transfer = getString(R.string.progress_transfer_unknown_size,
+                    Formatter.formatFileSize(activity, bytes),
+                    Formatter.formatFileSize(activity, bytesPerSecond));
+        }
+        dialog.setMessage(mMessage + "\n" + transfer);
+    }
+
     @Override
     public void onCancel(DialogInterface dialog) {
         super.onCancel(dialog);
@@ -122,6 +154,7 @@ public class ProgressDialogFragment extends DialogFragment {
         int style = getArguments().getInt(ARG_STYLE);
         boolean cancelable = getArguments().getBoolean(ARG_CANCELABLE);
 
+        mMessage = message;
         dialog.setMessage(message);
         dialog.setProgressStyle(style);
 
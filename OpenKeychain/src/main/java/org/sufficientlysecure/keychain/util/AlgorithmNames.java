@@ -60,6 +60,9 @@ public class AlgorithmNames {
 
         mCompressionNames.put(Constants.choice.compression.none, mActivity.getString(R.string.choice_none)
                 + " (" + mActivity.getString(R.string.compression_fast) + ")");
+        mCompressionNames.put(Constants.choice.compression.auto,
+                mActivity.getString(R.string.choice_auto) + " ("
+                        + mActivity.getString(R.string.compression_auto) + ")");
         mCompressionNames.put(Constants.choice.compression.zip,
                 "ZIP (" + mActivity.getString(R.string.compression_fast) + ")");
         mCompressionNames.put(Constants.choice.compression.zlib,
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Pool of the 64 KiB buffers used for streaming data through the crypto operations, so that
+ * every operation on a small message does not allocate several large arrays. Buffers are only
+ * given back when the operation has completed, a buffer still referenced by a stream must not
+ * be recycled.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    // keep at most 1 MiB
+    private static final int MAX_POOLED = 16;
+
+    private static final ArrayList<byte[]> sPool = new ArrayList<byte[]>(MAX_POOLED);
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return buffer of BUFFER_SIZE bytes, its content is undefined
+     */
+    public static byte[] obtain() {
+        synchronized (sPool) {
+            if (!sPool.isEmpty()) {
+                return sPool.remove(sPool.size() - 1);
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Gives the buffer back to the pool.
+     *
+     * @param buffer            buffer from obtain(), may be null
+     * @param containsPlaintext if true, the buffer is zeroed before anyone else can obtain it
+     */
+    public static void recycle(byte[] buffer, boolean containsPlaintext) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        if (containsPlaintext) {
+            Arrays.fill(buffer, (byte) 0);
+        }
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED) {
+                sPool.add(buffer);
+            }
+        }
+    }
+}
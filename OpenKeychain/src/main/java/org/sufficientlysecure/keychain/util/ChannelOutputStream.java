@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes to a FileChannel through a direct buffer. Writing a heap buffer to a channel copies it
+ * into a temporary direct buffer first, small writes are collected in the direct buffer instead
+ * and written to the channel in large blocks.
+ */
+public class ChannelOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private FileChannel mChannel;
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    public ChannelOutputStream(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mBuffer.put((byte) b);
+        if (!mBuffer.hasRemaining()) {
+            writeBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, mBuffer.remaining());
+            mBuffer.put(b, offset, n);
+            offset += n;
+            length -= n;
+            if (!mBuffer.hasRemaining()) {
+                writeBuffer();
+            }
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel.isOpen()) {
+            flush();
+            mChannel.close();
+        }
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public long position() throws IOException {
+        return mChannel.position() + mBuffer.position();
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects two stages of a stream pipeline running on different threads. Data written to
+ * getOutputStream() is collected in chunks, which are passed to the reading side through a
+ * bounded queue and given back to the writing side after they have been read. The writer blocks
+ * when all chunks are in use, so a slow stage limits the memory used by the pipe.
+ * <p/>
+ * If one side fails, abort() lets the other side fail with an IOException instead of blocking
+ * forever.
+ */
+public class ChunkPipe {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    public static final int DEFAULT_CAPACITY = 8;
+
+    // interval for checking if the pipe has been aborted while waiting
+    private static final long POLL_INTERVAL = 100;
+
+    private static ExecutorService sExecutor;
+
+    private static class Chunk {
+        byte[] mData;
+        int mLength;
+
+        Chunk(byte[] data) {
+            mData = data;
+        }
+    }
+
+    // marks the end of the stream
+    private static final Chunk EOF = new Chunk(new byte[0]);
+
+    private final int mChunkSize;
+    private final int mCapacity;
+    private int mAllocated = 0;
+
+    private final ArrayBlockingQueue<Chunk> mFree;
+    private final ArrayBlockingQueue<Chunk> mFull;
+
+    private volatile boolean mAborted = false;
+
+    private final PipeOutputStream mOutputStream = new PipeOutputStream();
+    private final PipeInputStream mInputStream = new PipeInputStream();
+
+    public ChunkPipe() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param chunkSize size of a chunk in bytes
+     * @param capacity  maximum number of chunks
+     */
+    public ChunkPipe(int chunkSize, int capacity) {
+        mChunkSize = chunkSize;
+        mCapacity = capacity;
+        mFree = new ArrayBlockingQueue<Chunk>(capacity);
+        // one more for EOF
+        mFull = new ArrayBlockingQueue<Chunk>(capacity + 1);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newCachedThreadPool();
+        }
+        return sExecutor;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * Lets both sides of the pipe fail.
+     */
+    public void abort() {
+        mAborted = true;
+    }
+
+    /**
+     * Copies everything from this pipe to target on a separate thread and closes target at the
+     * end of the stream.
+     *
+     * @param target
+     * @return future to wait for the end of the copy, see waitFor()
+     */
+    public Future<Void> drainTo(final OutputStream target) {
+        return getExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    Chunk chunk;
+                    while ((chunk = mInputStream.takeChunk()) != EOF) {
+                        target.write(chunk.mData, 0, chunk.mLength);
+                        mInputStream.releaseChunk(chunk);
+                    }
+                    target.close();
+                    return null;
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                } catch (RuntimeException e) {
+                    abort();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies everything from source into this pipe on a separate thread and closes the pipe at
+     * the end of source.
+     *
+     * @param source
+     * @return future to wait for the end of the copy, see waitFor()
+     */
+    public Future<Void> fillFrom(final InputStream source) {
+        return getExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                byte[] buffer = newBuffer();
+                try {
+                    int n;
+                    while ((n = source.read(buffer)) >= 0) {
+                        mOutputStream.write(buffer, 0, n);
+                    }
+                    mOutputStream.close();
+                    return null;
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                } catch (RuntimeException e) {
+                    abort();
+                    throw e;
+                } finally {
+                    BufferPool.recycle(buffer, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads and discards the rest of the data in this pipe, so that a stage filling it can
+     * finish.
+     */
+    public void skipRemaining() throws IOException {
+        Chunk chunk;
+        if (mInputStream.mChunk != null) {
+            if (mInputStream.mChunk == EOF) {
+                return;
+            }
+            mInputStream.releaseChunk(mInputStream.mChunk);
+        }
+        while ((chunk = mInputStream.takeChunk()) != EOF) {
+            mInputStream.releaseChunk(chunk);
+        }
+        mInputStream.mChunk = EOF;
+    }
+
+    /**
+     * Waits for a stage started by drainTo() or fillFrom() and rethrows its IOException.
+     *
+     * @param future
+     */
+    public static void waitFor(Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("pipeline stage failed: " + e.getCause());
+        }
+    }
+
+    private byte[] newBuffer() {
+        if (mChunkSize == BufferPool.BUFFER_SIZE) {
+            return BufferPool.obtain();
+        }
+        return new byte[mChunkSize];
+    }
+
+    /**
+     * Zeroes the queued chunks and gives them back to the BufferPool, after both sides are done
+     * or the pipe has been aborted.
+     */
+    private void recycleChunks() {
+        recycleChunks(mFree);
+        recycleChunks(mFull);
+    }
+
+    private static void recycleChunks(ArrayBlockingQueue<Chunk> queue) {
+        Chunk chunk;
+        while ((chunk = queue.poll()) != null) {
+            // chunks of other sizes are not pooled, but must not keep the plaintext either
+            Arrays.fill(chunk.mData, (byte) 0);
+            BufferPool.recycle(chunk.mData, false);
+        }
+    }
+
+    private Chunk poll(ArrayBlockingQueue<Chunk> queue) throws IOException {
+        try {
+            Chunk chunk;
+            do {
+                if (mAborted) {
+                    recycleChunks();
+                    throw new IOException("pipe aborted");
+                }
+                chunk = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } while (chunk == null);
+            return chunk;
+        } catch (InterruptedException e) {
+            abort();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private Chunk mChunk;
+        private boolean mClosed = false;
+
+        private Chunk freeChunk() throws IOException {
+            Chunk chunk = mFree.poll();
+            if (chunk == null) {
+                if (mAllocated < mCapacity) {
+                    mAllocated++;
+                    chunk = new Chunk(newBuffer());
+                } else {
+                    chunk = poll(mFree);
+                }
+            }
+            chunk.mLength = 0;
+            return chunk;
+        }
+
+        private void sendChunk() {
+            // can not block, the queue has room for all chunks
+            mFull.add(mChunk);
+            mChunk = null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mClosed) {
+                throw new IOException("pipe closed");
+            }
+            if (mChunk == null) {
+                mChunk = freeChunk();
+            }
+            mChunk.mData[mChunk.mLength++] = (byte) b;
+            if (mChunk.mLength == mChunkSize) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("pipe closed");
+            }
+            if (mAborted) {
+                throw new IOException("pipe aborted");
+            }
+            while (length > 0) {
+                if (mChunk == null) {
+                    mChunk = freeChunk();
+                }
+                int n = Math.min(length, mChunkSize - mChunk.mLength);
+                System.arraycopy(b, offset, mChunk.mData, mChunk.mLength, n);
+                mChunk.mLength += n;
+                offset += n;
+                length -= n;
+                if (mChunk.mLength == mChunkSize) {
+                    sendChunk();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mChunk != null && mChunk.mLength > 0) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            flush();
+            mFull.add(EOF);
+            mClosed = true;
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private Chunk mChunk;
+        private int mPosition;
+
+        Chunk takeChunk() throws IOException {
+            Chunk chunk = poll(mFull);
+            if (chunk == EOF) {
+                // the writing side is closed, all other chunks have been read
+                recycleChunks();
+            }
+            return chunk;
+        }
+
+        void releaseChunk(Chunk chunk) {
+            mFree.add(chunk);
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        private boolean ensureChunk() throws IOException {
+            while (mChunk == null) {
+                mChunk = takeChunk();
+                mPosition = 0;
+                if (mChunk != EOF && mChunk.mLength == 0) {
+                    releaseChunk(mChunk);
+                    mChunk = null;
+                }
+            }
+            // keep EOF for further calls
+            return mChunk != EOF;
+        }
+
+        @Override
+        public int read() throws IOException {
+            // read directly from the chunk, this is called byte by byte by some streams
+            if (!ensureChunk()) {
+                return -1;
+            }
+            int b = mChunk.mData[mPosition++] & 0xff;
+            if (mPosition == mChunk.mLength) {
+                releaseChunk(mChunk);
+                mChunk = null;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureChunk()) {
+                return -1;
+            }
+            int n = Math.min(length, mChunk.mLength - mPosition);
+            System.arraycopy(mChunk.mData, mPosition, b, offset, n);
+            mPosition += n;
+            if (mPosition == mChunk.mLength) {
+                releaseChunk(mChunk);
+                mChunk = null;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // the writing side must not wait for a reader which is gone
+            abort();
+        }
+    }
+}
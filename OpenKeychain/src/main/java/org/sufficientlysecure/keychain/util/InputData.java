@@ -17,21 +17,38 @@
 
 package org.thialfihar.android.apg.util;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * Wrapper to include size besides an InputStream
  */
 public class InputData {
+    private InputStream mRawInputStream;
     private PositionAwareInputStream mInputStream;
+    private MappedFileInputStream mMappedInputStream;
     private long mSize;
 
     public InputData(InputStream inputStream, long size) {
+        mRawInputStream = inputStream;
         mInputStream = new PositionAwareInputStream(inputStream);
         mSize = size;
     }
 
+    /**
+     * Reads the file through a memory mapped FileChannel, the position is taken from the channel.
+     */
+    public InputData(File file) throws IOException {
+        mMappedInputStream = new MappedFileInputStream(file);
+        mSize = mMappedInputStream.size();
+    }
+
     public InputStream getInputStream() {
+        if (mMappedInputStream != null) {
+            return mMappedInputStream;
+        }
         return mInputStream;
     }
 
@@ -39,7 +56,57 @@ public class InputData {
         return mSize;
     }
 
+    /**
+     * Reads up to length bytes from the current position without consuming them.
+     *
+     * @param length
+     * @return the bytes read, shorter than length only at the end of the stream
+     */
+    public byte[] peek(int length) throws IOException {
+        InputStream in = getInputStream();
+        if (!in.markSupported()) {
+            // nothing has been read yet, so the position is kept when buffering the stream
+            if (mInputStream.position() != 0) {
+                throw new IOException("stream does not support peeking");
+            }
+            mInputStream = new PositionAwareInputStream(
+                    new BufferedInputStream(mRawInputStream, length));
+            in = mInputStream;
+        }
+
+        byte[] buffer = new byte[length];
+        int n = 0;
+        in.mark(length);
+        try {
+            int read;
+            while (n < length && (read = in.read(buffer, n, length - n)) >= 0) {
+                n += read;
+            }
+        } finally {
+            in.reset();
+        }
+
+        if (n == length) {
+            return buffer;
+        }
+        byte[] result = new byte[n];
+        System.arraycopy(buffer, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Closes the file opened by InputData(File), a stream given by the caller is left open.
+     */
+    public void close() throws IOException {
+        if (mMappedInputStream != null) {
+            mMappedInputStream.close();
+        }
+    }
+
     public long getStreamPosition() {
+        if (mMappedInputStream != null) {
+            return mMappedInputStream.position();
+        }
         return mInputStream.position();
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file through memory mapped windows of its FileChannel instead of read() calls, which
+ * saves the copy from the kernel into an intermediate buffer. Windows are limited in size to
+ * keep the address space usage low on 32 bit devices.
+ */
+public class MappedFileInputStream extends InputStream {
+    private static final long WINDOW_SIZE = 16 << 20;
+
+    private FileChannel mChannel;
+    private long mSize;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart = 0;
+    private long mMark = 0;
+
+    public MappedFileInputStream(File file) throws IOException {
+        mChannel = new RandomAccessFile(file, "r").getChannel();
+        mSize = mChannel.size();
+    }
+
+    /**
+     * @return false if the end of the file has been reached
+     */
+    private boolean ensureWindow() throws IOException {
+        if (mWindow != null && mWindow.hasRemaining()) {
+            return true;
+        }
+
+        long start = position();
+        if (start >= mSize) {
+            return false;
+        }
+        mWindowStart = start;
+        mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, start,
+                Math.min(WINDOW_SIZE, mSize - start));
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureWindow()) {
+            return -1;
+        }
+        return mWindow.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureWindow()) {
+            return -1;
+        }
+        int n = Math.min(length, mWindow.remaining());
+        mWindow.get(b, offset, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long position = position();
+        long skipped = Math.min(n, mSize - position);
+        if (mWindow != null && skipped <= mWindow.remaining()) {
+            mWindow.position(mWindow.position() + (int) skipped);
+        } else {
+            mWindow = null;
+            mWindowStart = position + skipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, mSize - position());
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = position();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (mWindow != null && mMark >= mWindowStart && mMark <= position()) {
+            mWindow.position((int) (mMark - mWindowStart));
+        } else {
+            mWindow = null;
+            mWindowStart = mMark;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWindow = null;
+        mChannel.close();
+    }
+
+    /**
+     * @return current position in the file
+     */
+    public long position() {
+        if (mWindow == null) {
+            return mWindowStart;
+        }
+        return mWindowStart + mWindow.position();
+    }
+
+    public long size() {
+        return mSize;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import android.os.SystemClock;
+
+import org.thialfihar.android.apg.pgp.Progressable;
+
+/**
+ * Wraps a Progressable and limits the number of progress updates passed on to it, every update
+ * of ApgIntentService is a message to the UI thread. Updates with a message and the final update
+ * are always passed on. For byte oriented operations the throughput and the remaining time are
+ * calculated by setBytes().
+ */
+public class ProgressReporter implements Progressable {
+    public static final long DEFAULT_INTERVAL = 250;
+
+    final Progressable mWrapped;
+    final long mInterval;
+
+    private long mLastUpdate = 0;
+
+    private long mStartTime = -1;
+    private long mStartBytes;
+
+    public ProgressReporter(Progressable wrapped) {
+        this(wrapped, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param wrapped
+     * @param interval minimal time between two updates in milliseconds
+     */
+    public ProgressReporter(Progressable wrapped, long interval) {
+        this.mWrapped = wrapped;
+        this.mInterval = interval;
+    }
+
+    /**
+     * Limits the number of progress updates of an operation, used by all operations taking a
+     * Progressable
+     *
+     * @param progressable may be null
+     * @return reporter passing updates on to progressable, or null if progressable is null
+     */
+    public static ProgressReporter wrap(Progressable progressable) {
+        if (progressable == null || progressable instanceof ProgressReporter) {
+            return (ProgressReporter) progressable;
+        }
+        return new ProgressReporter(progressable);
+    }
+
+    private boolean isDue(long current, long total) {
+        long now = SystemClock.elapsedRealtime();
+        if (current >= total || now - mLastUpdate >= mInterval) {
+            mLastUpdate = now;
+            return true;
+        }
+        return false;
+    }
+
+    public void setProgress(String message, int progress, int max) {
+        mLastUpdate = SystemClock.elapsedRealtime();
+        mWrapped.setProgress(message, progress, max);
+    }
+
+    public void setProgress(int resourceId, int progress, int max) {
+        mLastUpdate = SystemClock.elapsedRealtime();
+        mWrapped.setProgress(resourceId, progress, max);
+    }
+
+    public void setProgress(int progress, int max) {
+        if (isDue(progress, max)) {
+            mWrapped.setProgress(progress, max);
+        }
+    }
+
+    public void setTransferProgress(long bytes, long totalBytes, long bytesPerSecond,
+                                    long etaSeconds) {
+        mWrapped.setTransferProgress(bytes, totalBytes, bytesPerSecond, etaSeconds);
+    }
+
+    /**
+     * Progress of a byte oriented operation
+     *
+     * @param progress   progress to report
+     * @param max        maximum of progress
+     * @param bytes      bytes processed so far
+     * @param totalBytes total bytes or -1 if unknown
+     */
+    public void setBytes(int progress, int max, long bytes, long totalBytes) {
+        long now = SystemClock.elapsedRealtime();
+        if (mStartTime < 0) {
+            mStartTime = now;
+            mStartBytes = bytes;
+        }
+        if (!isDue(totalBytes >= 0 ? bytes : progress, totalBytes >= 0 ? totalBytes : max)) {
+            return;
+        }
+
+        long bytesPerSecond = 0;
+        if (now > mStartTime) {
+            bytesPerSecond = (bytes - mStartBytes) * 1000 / (now - mStartTime);
+        }
+        long etaSeconds = -1;
+        if (totalBytes >= 0 && bytesPerSecond > 0) {
+            etaSeconds = Math.max(0, totalBytes - bytes) / bytesPerSecond;
+        }
+
+        mWrapped.setTransferProgress(bytes, totalBytes, bytesPerSecond, etaSeconds);
+        mWrapped.setProgress(progress, max);
+    }
+}
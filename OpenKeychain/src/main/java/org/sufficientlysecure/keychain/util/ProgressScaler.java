@@ -52,4 +52,9 @@ public class ProgressScaler implements Progressable {
         mWrapped.setProgress(progress, max);
     }
 
+    public void setTransferProgress(long bytes, long totalBytes, long bytesPerSecond,
+                                    long etaSeconds) {
+        mWrapped.setTransferProgress(bytes, totalBytes, bytesPerSecond, etaSeconds);
+    }
+
 }
@@ -7,7 +7,7 @@ import org.robolectric.annotation.Config;
 import org.robolectric.res.Fs;
 import org.robolectric.res.FsFile;
 
-import org.thialfihar.android.apg.KeychainApplication;
+import org.thialfihar.android.apg.ApgApplication;
 
 public class RobolectricGradleTestRunner extends RobolectricTestRunner {
     public RobolectricGradleTestRunner(Class<?> testClass) throws InitializationError {
@@ -15,7 +15,7 @@ public class RobolectricGradleTestRunner extends RobolectricTestRunner {
     }
 
     @Override protected AndroidManifest getAppManifest(Config config) {
-        String myAppPath = KeychainApplication.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+        String myAppPath = ApgApplication.class.getProtectionDomain().getCodeSource().getLocation().getPath();
         String manifestPath = myAppPath + "../../../src/main/AndroidManifest.xml";
         return createAppManifest(Fs.fileFromPath(manifestPath));
     }
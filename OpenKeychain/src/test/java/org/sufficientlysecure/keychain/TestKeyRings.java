@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg;
+
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+
+import org.thialfihar.android.apg.provider.ApgContract;
+import org.thialfihar.android.apg.provider.ApgProvider;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Date;
+
+/**
+ * Creates small RSA keyrings with a signing master key and an encryption subkey for tests
+ */
+public class TestKeyRings {
+    private static final int KEY_SIZE = 1024;
+
+    /**
+     * Registers ApgProvider with the content resolver of Robolectric
+     *
+     * @return ProviderHelper using the registered provider
+     */
+    public static ProviderHelper setUpProvider() {
+        ApgProvider provider = new ApgProvider();
+        provider.onCreate();
+        ShadowContentResolver.registerProvider(ApgContract.CONTENT_AUTHORITY, provider);
+        return new ProviderHelper(Robolectric.application);
+    }
+
+    /**
+     * Generates a keyring without saving it
+     *
+     * @return generator of the keyring, holding both parts
+     */
+    public static PGPKeyRingGenerator create(String userId, String passphrase) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA",
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        keyGen.initialize(KEY_SIZE, new SecureRandom());
+        PGPKeyPair masterKeyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL,
+                keyGen.generateKeyPair(), new Date());
+        PGPKeyPair subKeyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL,
+                keyGen.generateKeyPair(), new Date());
+
+        PGPSignatureSubpacketGenerator masterFlags = new PGPSignatureSubpacketGenerator();
+        masterFlags.setKeyFlags(true, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA);
+        PGPSignatureSubpacketGenerator subFlags = new PGPSignatureSubpacketGenerator();
+        subFlags.setKeyFlags(true, KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build()
+                .get(HashAlgorithmTags.SHA1);
+        PGPKeyRingGenerator generator = new PGPKeyRingGenerator(
+                PGPSignature.POSITIVE_CERTIFICATION, masterKeyPair, userId, sha1Calc,
+                masterFlags.generate(), null,
+                new JcaPGPContentSignerBuilder(PGPPublicKey.RSA_GENERAL, HashAlgorithmTags.SHA256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1Calc)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(passphrase.toCharArray()));
+        generator.addSubKey(subKeyPair, subFlags.generate(), null);
+        return generator;
+    }
+
+    /**
+     * Generates a keyring and saves its public and secret part
+     *
+     * @return master key id
+     */
+    public static long save(ProviderHelper providerHelper, String userId, String passphrase)
+            throws Exception {
+        PGPKeyRingGenerator generator = create(userId, passphrase);
+        providerHelper.saveKeyRing(generator.generatePublicKeyRing(),
+                generator.generateSecretKeyRing());
+        return generator.generatePublicKeyRing().getPublicKey().getKeyID();
+    }
+}
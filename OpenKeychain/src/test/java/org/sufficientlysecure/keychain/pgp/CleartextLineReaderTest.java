@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Test;
+import org.spongycastle.bcpg.ArmoredInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class CleartextLineReaderTest {
+
+    private static ArrayList<String> readLines(CleartextLineReader reader) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        int length;
+        while ((length = reader.readLine()) >= 0) {
+            lines.add(new String(reader.getLine(), 0, length, "US-ASCII"));
+        }
+        return lines;
+    }
+
+    private static ArrayList<String> readLines(String input) throws IOException {
+        return readLines(new CleartextLineReader(
+                new ByteArrayInputStream(input.getBytes("US-ASCII"))));
+    }
+
+    private static ArrayList<String> lines(String... lines) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String line : lines) {
+            list.add(line);
+        }
+        return list;
+    }
+
+    @Test
+    public void lineEndings() throws Exception {
+        assertEquals(lines("a", "b", "c"), readLines("a\nb\nc\n"));
+        assertEquals(lines("a", "b", "c"), readLines("a\r\nb\r\nc\r\n"));
+        assertEquals(lines("a", "b", "c"), readLines("a\rb\rc\r"));
+        assertEquals(lines("a", "b", "c", "d"), readLines("a\nb\r\nc\rd"));
+    }
+
+    @Test
+    public void emptyLines() throws Exception {
+        assertEquals(lines("a", "", "b"), readLines("a\n\nb"));
+        // CR LF is one line ending, LF CR are two
+        assertEquals(lines("a", "b"), readLines("a\r\nb"));
+        assertEquals(lines("a", "", "b"), readLines("a\n\rb"));
+        assertEquals(lines("a", "", "b"), readLines("a\r\rb"));
+        assertEquals(lines(), readLines(""));
+    }
+
+    @Test
+    public void trailingWhitespace() throws Exception {
+        CleartextLineReader reader = new CleartextLineReader(
+                new ByteArrayInputStream("a b \t \r\n\t c".getBytes("US-ASCII")));
+        assertEquals(3, reader.readLine());
+        assertEquals(6, reader.getLineLengthWithWhitespace());
+        assertEquals(3, reader.readLine());
+        assertEquals(3, reader.getLineLengthWithWhitespace());
+        assertEquals(-1, reader.readLine());
+
+        // only spaces and tabs are whitespace
+        assertEquals(lines("a\u000b", "b\f"), readLines("a\u000b \nb\f\t"));
+    }
+
+    @Test
+    public void lineCrossingBuffers() throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        assertEquals(lines(line.toString(), "end"), readLines(line + "\r\nend"));
+    }
+
+    @Test
+    public void stopsAtSignature() throws Exception {
+        String message = "-----BEGIN PGP SIGNED MESSAGE-----\n"
+                + "Hash: SHA256\n"
+                + "\n"
+                + "first line  \n"
+                + "- -dash escaped\n"
+                + "-----BEGIN PGP SIGNATURE-----\n"
+                + "\n"
+                + "iQEcBAEBCAAGBQJTAAAAAAoJEAAAAAAAAAAA\n"
+                + "=AAAA\n"
+                + "-----END PGP SIGNATURE-----\n";
+        ArmoredInputStream in = new ArmoredInputStream(
+                new ByteArrayInputStream(message.getBytes("US-ASCII")));
+
+        assertEquals(lines("first line", "-dash escaped"), readLines(new CleartextLineReader(in)));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark of cleartext signing of large text bodies, the text is read line by line to strip
+ * trailing whitespace and to canonicalize line endings. The signature of the last message is
+ * verified, the throughput is only printed.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class CleartextSignThroughputTest {
+    private static final int TEXT_SIZE = 4 * 1024 * 1024;
+    private static final int MESSAGES = 3;
+    private static final String PASSPHRASE = "passphrase";
+
+    private ProviderHelper mProviderHelper;
+    private long mMasterKeyId;
+    private byte[] mText;
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = TestKeyRings.setUpProvider();
+        mMasterKeyId = TestKeyRings.save(mProviderHelper, "signer <s@example.com>", PASSPHRASE);
+
+        // mail like lines of 72 characters, some with trailing whitespace or CR LF
+        StringBuilder text = new StringBuilder(TEXT_SIZE + 80);
+        int line = 0;
+        while (text.length() < TEXT_SIZE) {
+            text.append("Line ").append(line).append(" of a long text body, ");
+            while (text.length() % 80 < 72) {
+                text.append('x');
+            }
+            if (line % 7 == 0) {
+                text.append(" \t");
+            }
+            text.append(line % 3 == 0 ? "\r\n" : "\n");
+            line++;
+        }
+        mText = text.toString().getBytes("US-ASCII");
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        // warm up, so that class loading is not measured
+        sign();
+
+        byte[] signed = null;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGES; i++) {
+            signed = sign();
+        }
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        System.err.println("cleartext signing: " + (long) MESSAGES * mText.length * 1000 / time
+                / 1024 + " KiB/s");
+
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(mProviderHelper,
+                new PgpDecryptVerify.PassphraseCache() {
+                    @Override
+                    public String getCachedPassphrase(long masterKeyId) {
+                        return null;
+                    }
+                },
+                new InputData(new ByteArrayInputStream(signed), signed.length),
+                new ByteArrayOutputStream(mText.length))
+                .build().execute();
+        int status = result.getSignatureResult().getStatus();
+        assertTrue(status == OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED
+                || status == OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED);
+        assertEquals(mMasterKeyId, result.getSignatureResult().getKeyId());
+    }
+
+    private byte[] sign() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mText.length + 1024);
+        new PgpSignEncrypt.Builder(mProviderHelper, "test",
+                new InputData(new ByteArrayInputStream(mText), mText.length), out)
+                .setEnableAsciiArmorOutput(true)
+                .setCleartextInput(true)
+                .setSignatureMasterKeyId(mMasterKeyId)
+                .setSignatureHashAlgorithm(HashAlgorithmTags.SHA256)
+                .setSignaturePassphrase(PASSPHRASE)
+                .build().execute();
+        return out.toByteArray();
+    }
+}
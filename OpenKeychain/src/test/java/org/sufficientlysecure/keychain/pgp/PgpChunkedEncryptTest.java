@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encrypts into a container and reads random ranges of it back
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpChunkedEncryptTest {
+    private static final String PASSPHRASE = "passphrase";
+    private static final int CHUNK_SIZE = 1000;
+    // not a multiple of the chunk size, so the last chunk is shorter
+    private static final int SIZE = 20 * CHUNK_SIZE + 123;
+    private static final int READS = 50;
+
+    private ProviderHelper mProviderHelper;
+    private byte[] mPlaintext;
+    private File mFile;
+
+    private static class FixedPassphraseCache implements PgpDecryptVerify.PassphraseCache {
+        private final long mMasterKeyId;
+
+        FixedPassphraseCache(long masterKeyId) {
+            mMasterKeyId = masterKeyId;
+        }
+
+        public String getCachedPassphrase(long masterKeyId) {
+            return masterKeyId == mMasterKeyId ? PASSPHRASE : null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = TestKeyRings.setUpProvider();
+        mPlaintext = new byte[SIZE];
+        new Random(1).nextBytes(mPlaintext);
+        mFile = File.createTempFile("chunked", ".apgc");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private void encrypt(PgpChunkedEncrypt.Builder builder) throws Exception {
+        builder.setChunkSize(CHUNK_SIZE)
+                .setParallelism(3)
+                .build().execute();
+    }
+
+    private PgpChunkedEncrypt.Builder builder(FileOutputStream out) {
+        return new PgpChunkedEncrypt.Builder(mProviderHelper, "test",
+                new InputData(new ByteArrayInputStream(mPlaintext), mPlaintext.length), out);
+    }
+
+    private void assertRandomReads(PgpChunkedDecrypt decrypt) throws Exception {
+        assertEquals(SIZE, decrypt.getSize());
+
+        Random random = new Random(2);
+        for (int i = 0; i < READS; i++) {
+            int position = random.nextInt(SIZE);
+            int length = random.nextInt(Math.min(SIZE - position, 3 * CHUNK_SIZE) + 1);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            decrypt.read(position, length, out);
+            assertArrayEquals("range " + position + "+" + length,
+                    Arrays.copyOfRange(mPlaintext, position, position + length),
+                    out.toByteArray());
+        }
+
+        // whole plaintext and the end
+        byte[] all = new byte[SIZE + 10];
+        assertEquals(SIZE, decrypt.read(0, all, 0, all.length));
+        assertArrayEquals(mPlaintext, Arrays.copyOf(all, SIZE));
+        assertEquals(-1, decrypt.read(SIZE, all, 0, all.length));
+    }
+
+    @Test
+    public void symmetricRoundTrip() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            encrypt(builder(out).setSymmetricPassphrase(PASSPHRASE));
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            PgpChunkedDecrypt decrypt = new PgpChunkedDecrypt.Builder(mProviderHelper,
+                    new FixedPassphraseCache(0), file).build();
+            assertEquals(PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED,
+                    decrypt.open().getStatus());
+
+            decrypt = new PgpChunkedDecrypt.Builder(mProviderHelper,
+                    new FixedPassphraseCache(0), file).setPassphrase(PASSPHRASE).build();
+            assertEquals(PgpDecryptVerifyResult.SUCCESS, decrypt.open().getStatus());
+            assertRandomReads(decrypt);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void publicKeyRoundTrip() throws Exception {
+        long masterKeyId = TestKeyRings.save(mProviderHelper, "chunked <c@example.com>",
+                PASSPHRASE);
+
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            encrypt(builder(out).setEncryptionMasterKeyIds(new long[]{masterKeyId}));
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            PgpChunkedDecrypt decrypt = new PgpChunkedDecrypt.Builder(mProviderHelper,
+                    new FixedPassphraseCache(masterKeyId), file).build();
+            assertEquals(PgpDecryptVerifyResult.SUCCESS, decrypt.open().getStatus());
+            assertRandomReads(decrypt);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        mPlaintext = new byte[0];
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            encrypt(builder(out).setSymmetricPassphrase(PASSPHRASE));
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            PgpChunkedDecrypt decrypt = new PgpChunkedDecrypt.Builder(mProviderHelper,
+                    new FixedPassphraseCache(0), file).setPassphrase(PASSPHRASE).build();
+            assertEquals(PgpDecryptVerifyResult.SUCCESS, decrypt.open().getStatus());
+            assertEquals(0, decrypt.getSize());
+            assertEquals(-1, decrypt.read(0, new byte[1], 0, 1));
+        } finally {
+            file.close();
+        }
+    }
+}
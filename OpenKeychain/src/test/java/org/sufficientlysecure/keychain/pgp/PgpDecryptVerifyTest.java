@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPEncryptedDataGenerator;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
+import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpDecryptVerifyTest {
+    private static final String KEY_PASSPHRASE = "key passphrase";
+    private static final String SYMMETRIC_PASSPHRASE = "symmetric passphrase";
+
+    private static final PgpDecryptVerify.PassphraseCache NO_CACHED_PASSPHRASES =
+            new PgpDecryptVerify.PassphraseCache() {
+                @Override
+                public String getCachedPassphrase(long masterKeyId) {
+                    return null;
+                }
+            };
+
+    private ProviderHelper mProviderHelper;
+    private long mMasterKeyId;
+    private PGPPublicKey mEncryptionKey;
+    private byte[] mPlaintext = "mixed session key packets".getBytes();
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = TestKeyRings.setUpProvider();
+        PGPKeyRingGenerator generator = TestKeyRings.create("mixed <m@example.com>",
+                KEY_PASSPHRASE);
+        mProviderHelper.saveKeyRing(generator.generatePublicKeyRing(),
+                generator.generateSecretKeyRing());
+
+        Iterator<PGPPublicKey> keys = generator.generatePublicKeyRing().getPublicKeys();
+        mMasterKeyId = keys.next().getKeyID();
+        mEncryptionKey = keys.next();
+    }
+
+    @Test
+    public void keyPacketBeforeSymmetricPacket() throws Exception {
+        byte[] ciphertext = encrypt(true);
+
+        PgpDecryptVerifyResult result = decrypt(ciphertext, null, null);
+        assertEquals(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED, result.getStatus());
+        assertEquals(mMasterKeyId, result.getKeyIdPassphraseNeeded());
+
+        // the passphrase entered for the prompt unlocks the key
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result = decrypt(ciphertext, KEY_PASSPHRASE, out);
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        assertArrayEquals(mPlaintext, out.toByteArray());
+    }
+
+    @Test
+    public void symmetricPacketBeforeKeyPacket() throws Exception {
+        byte[] ciphertext = encrypt(false);
+
+        PgpDecryptVerifyResult result = decrypt(ciphertext, null, null);
+        assertEquals(PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED, result.getStatus());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result = decrypt(ciphertext, SYMMETRIC_PASSPHRASE, out);
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        assertArrayEquals(mPlaintext, out.toByteArray());
+    }
+
+    @Test
+    public void pipelinedDecryption() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 1 << 20; i++) {
+            text.append("line ").append(i).append(" of a compressed text\n");
+        }
+        byte[] plaintext = text.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        new PgpSignEncrypt.Builder(mProviderHelper, "test",
+                new InputData(new ByteArrayInputStream(plaintext), plaintext.length), ciphertext)
+                .setSymmetricPassphrase(SYMMETRIC_PASSPHRASE)
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .setCompressionId(Constants.choice.compression.zlib)
+                .build().execute();
+        byte[] encrypted = ciphertext.toByteArray();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(mProviderHelper,
+                NO_CACHED_PASSPHRASES,
+                new InputData(new ByteArrayInputStream(encrypted), encrypted.length), out)
+                .setPassphrase(SYMMETRIC_PASSPHRASE)
+                .setPipelined(true)
+                .build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        assertArrayEquals(plaintext, out.toByteArray());
+    }
+
+    /**
+     * Encrypts to the key and the symmetric passphrase, PgpSignEncrypt always writes the
+     * symmetric packet first, so the message is built here to control the order
+     */
+    private byte[] encrypt(boolean keyPacketFirst) throws Exception {
+        PGPEncryptedDataGenerator generator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .setWithIntegrityPacket(true));
+        JcePublicKeyKeyEncryptionMethodGenerator keyMethod =
+                new JcePublicKeyKeyEncryptionMethodGenerator(mEncryptionKey);
+        JcePBEKeyEncryptionMethodGenerator symmetricMethod =
+                new JcePBEKeyEncryptionMethodGenerator(SYMMETRIC_PASSPHRASE.toCharArray());
+        if (keyPacketFirst) {
+            generator.addMethod(keyMethod);
+            generator.addMethod(symmetricMethod);
+        } else {
+            generator.addMethod(symmetricMethod);
+            generator.addMethod(keyMethod);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encryptedOut = generator.open(out, new byte[1 << 12]);
+        OutputStream literalOut = new PGPLiteralDataGenerator().open(encryptedOut,
+                PGPLiteralData.BINARY, "", new Date(), new byte[1 << 12]);
+        literalOut.write(mPlaintext);
+        literalOut.close();
+        encryptedOut.close();
+        return out.toByteArray();
+    }
+
+    private PgpDecryptVerifyResult decrypt(byte[] ciphertext, String passphrase,
+                                           OutputStream out) throws Exception {
+        return new PgpDecryptVerify.Builder(mProviderHelper, NO_CACHED_PASSPHRASES,
+                new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length),
+                out != null ? out : new ByteArrayOutputStream())
+                .setAllowSymmetricDecryption(true)
+                .setPassphrase(passphrase)
+                .build().execute();
+    }
+}
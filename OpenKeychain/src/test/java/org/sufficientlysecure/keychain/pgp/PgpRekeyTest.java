@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.openpgp.PGPEncryptedData;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Encrypts to one key, rekeys to another one and decrypts with the other one
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpRekeyTest {
+    private static final String PASSPHRASE = "passphrase";
+
+    private ProviderHelper mProviderHelper;
+    private long mOldMasterKeyId;
+    private long mNewMasterKeyId;
+    private byte[] mPlaintext;
+    private byte[] mCiphertext;
+
+    private static class FixedPassphraseCache implements PgpDecryptVerify.PassphraseCache {
+        private final long mMasterKeyId;
+
+        FixedPassphraseCache(long masterKeyId) {
+            mMasterKeyId = masterKeyId;
+        }
+
+        public String getCachedPassphrase(long masterKeyId) {
+            return masterKeyId == mMasterKeyId ? PASSPHRASE : null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = TestKeyRings.setUpProvider();
+        mOldMasterKeyId = TestKeyRings.save(mProviderHelper, "old <old@example.com>",
+                PASSPHRASE);
+        mNewMasterKeyId = TestKeyRings.save(mProviderHelper, "new <new@example.com>",
+                PASSPHRASE);
+
+        mPlaintext = new byte[100000];
+        new Random(1).nextBytes(mPlaintext);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PgpSignEncrypt.Builder(mProviderHelper, "test",
+                new InputData(new ByteArrayInputStream(mPlaintext), mPlaintext.length), out)
+                .setEncryptionMasterKeyIds(new long[]{mOldMasterKeyId})
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .build().execute();
+        mCiphertext = out.toByteArray();
+    }
+
+    private PgpRekey.Builder rekey(long passphraseMasterKeyId, long[] recipients,
+                                   ByteArrayOutputStream out) {
+        return new PgpRekey.Builder(mProviderHelper,
+                new FixedPassphraseCache(passphraseMasterKeyId), "test",
+                new InputData(new ByteArrayInputStream(mCiphertext), mCiphertext.length), out)
+                .setEncryptionMasterKeyIds(recipients);
+    }
+
+    private PgpDecryptVerify.Builder decrypt(byte[] ciphertext, long masterKeyId,
+                                             ByteArrayOutputStream out) {
+        return new PgpDecryptVerify.Builder(mProviderHelper,
+                new FixedPassphraseCache(masterKeyId),
+                new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length), out)
+                .setAllowedKeyIds(Collections.singleton(masterKeyId));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ByteArrayOutputStream rekeyed = new ByteArrayOutputStream();
+        PgpDecryptVerifyResult result = rekey(mOldMasterKeyId, new long[]{mNewMasterKeyId},
+                rekeyed).build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result = decrypt(rekeyed.toByteArray(), mNewMasterKeyId, out).build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        assertArrayEquals(mPlaintext, out.toByteArray());
+
+        // the old recipient has been replaced
+        try {
+            decrypt(rekeyed.toByteArray(), mOldMasterKeyId, new ByteArrayOutputStream())
+                    .build().execute();
+            fail("old key must not decrypt the rekeyed message");
+        } catch (PgpDecryptVerify.NoSecretKeyException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void passphraseNeeded() throws Exception {
+        // no passphrase cached for the old key
+        PgpDecryptVerifyResult result = rekey(mNewMasterKeyId, new long[]{mNewMasterKeyId},
+                new ByteArrayOutputStream()).build().execute();
+        assertEquals(PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED, result.getStatus());
+        assertEquals(mOldMasterKeyId, result.getKeyIdPassphraseNeeded());
+
+        ByteArrayOutputStream rekeyed = new ByteArrayOutputStream();
+        result = rekey(mNewMasterKeyId, new long[]{mNewMasterKeyId}, rekeyed)
+                .setPassphrase(PASSPHRASE).build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+    }
+
+    @Test
+    public void unknownRecipient() throws Exception {
+        try {
+            rekey(mOldMasterKeyId, new long[]{mNewMasterKeyId, 0x1234L},
+                    new ByteArrayOutputStream()).build().execute();
+            fail("rekeying to an unknown key must fail");
+        } catch (PgpSignEncrypt.NoEncryptionKeyException e) {
+            assertEquals(0x1234L, e.getMasterKeyId());
+        }
+    }
+
+    @Test
+    public void noRecipients() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            rekey(mOldMasterKeyId, null, out).build().execute();
+            fail("rekeying without recipients must fail");
+        } catch (PgpRekey.NoRecipientsException e) {
+            // expected
+        }
+        assertEquals(0, out.size());
+    }
+}
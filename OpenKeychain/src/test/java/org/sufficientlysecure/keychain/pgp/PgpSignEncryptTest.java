@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.openpgp.PGPEncryptedData;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compression choices, tested with symmetric encryption, so no keys are needed
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class PgpSignEncryptTest {
+    private static final String PASSPHRASE = "passphrase";
+
+    private ProviderHelper mProviderHelper;
+
+    @Before
+    public void setUp() {
+        mProviderHelper = TestKeyRings.setUpProvider();
+    }
+
+    private PgpSignEncryptResult encrypt(byte[] plaintext, int compressionId,
+                                         ByteArrayOutputStream out) throws Exception {
+        return new PgpSignEncrypt.Builder(mProviderHelper, "test",
+                new InputData(new ByteArrayInputStream(plaintext), plaintext.length), out)
+                .setSymmetricPassphrase(PASSPHRASE)
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .setCompressionId(compressionId)
+                .build().execute();
+    }
+
+    private byte[] decrypt(byte[] ciphertext) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(mProviderHelper, null,
+                new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length), out)
+                .setPassphrase(PASSPHRASE)
+                .build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void randomDataIsNotCompressed() throws Exception {
+        byte[] plaintext = new byte[200000];
+        new Random(1).nextBytes(plaintext);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptResult result = encrypt(plaintext, Constants.choice.compression.auto, out);
+
+        assertTrue(result.getCompressionSampleRatio() > 90);
+        assertEquals(Constants.choice.compression.none, result.getCompressionId());
+        assertArrayEquals(plaintext, decrypt(out.toByteArray()));
+    }
+
+    @Test
+    public void textIsCompressed() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 200000; i++) {
+            text.append("line ").append(i).append(" of a compressible text\n");
+        }
+        byte[] plaintext = text.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptResult result = encrypt(plaintext, Constants.choice.compression.auto, out);
+
+        assertTrue(result.getCompressionSampleRatio() <= 90);
+        assertEquals(Constants.choice.compression.zlib, result.getCompressionId());
+        assertTrue(out.size() < plaintext.length / 2);
+        assertArrayEquals(plaintext, decrypt(out.toByteArray()));
+    }
+
+    @Test
+    public void emptyInputIsNotCompressed() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptResult result = encrypt(new byte[0], Constants.choice.compression.auto, out);
+
+        assertEquals(100, result.getCompressionSampleRatio());
+        assertEquals(Constants.choice.compression.none, result.getCompressionId());
+        assertArrayEquals(new byte[0], decrypt(out.toByteArray()));
+    }
+
+    @Test
+    public void chosenAlgorithmIsAlwaysUsed() throws Exception {
+        byte[] plaintext = new byte[200000];
+        new Random(1).nextBytes(plaintext);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptResult result = encrypt(plaintext, Constants.choice.compression.zlib, out);
+
+        assertEquals(Constants.choice.compression.zlib, result.getCompressionId());
+        assertArrayEquals(plaintext, decrypt(out.toByteArray()));
+    }
+
+    @Test
+    public void pipelinedEncryptionIsDecryptable() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 1 << 20; i++) {
+            text.append("line ").append(i).append(" of a pipelined text\n");
+        }
+        byte[] plaintext = text.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptResult result = new PgpSignEncrypt.Builder(mProviderHelper, "test",
+                new InputData(new ByteArrayInputStream(plaintext), plaintext.length), out)
+                .setSymmetricPassphrase(PASSPHRASE)
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .setCompressionId(Constants.choice.compression.zlib)
+                .setPipelined(true)
+                .build().execute();
+
+        assertEquals(Constants.choice.compression.zlib, result.getCompressionId());
+        assertArrayEquals(plaintext, decrypt(out.toByteArray()));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.pgp;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
+import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.spongycastle.openpgp.PGPEncryptedData;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class SessionKeyDataDecryptorFactoryTest {
+    private static final String PASSPHRASE = "passphrase";
+
+    @Test
+    public void sessionInfoChecksum() throws Exception {
+        byte[] sessionKey = new byte[32];
+        Arrays.fill(sessionKey, (byte) 0xff);
+        SessionKeyDataDecryptorFactory factory = new SessionKeyDataDecryptorFactory(
+                SymmetricKeyAlgorithmTags.AES_256, sessionKey);
+
+        byte[] sessionInfo = factory.recoverSessionData(PublicKeyAlgorithmTags.RSA_GENERAL, null);
+        assertEquals(sessionKey.length + 3, sessionInfo.length);
+        assertEquals(SymmetricKeyAlgorithmTags.AES_256, sessionInfo[0]);
+        // sum of the key bytes modulo 65536, 32 * 0xff = 0x1fe0
+        assertEquals(0x1f, sessionInfo[sessionInfo.length - 2] & 0xff);
+        assertEquals(0xe0, sessionInfo[sessionInfo.length - 1] & 0xff);
+
+        assertEquals(SymmetricKeyAlgorithmTags.AES_256, factory.getAlgorithm());
+        assertArrayEquals(sessionKey, factory.getSessionKey());
+
+        // a copy is returned, so the caller can clear it
+        sessionInfo[1] = 0;
+        assertArrayEquals(sessionKey, factory.getSessionKey());
+    }
+
+    @Test
+    public void checksumOverflow() throws Exception {
+        // more than 65535, only the low 16 bits are kept
+        byte[] sessionKey = new byte[300];
+        Arrays.fill(sessionKey, (byte) 0xff);
+        byte[] sessionInfo = new SessionKeyDataDecryptorFactory(
+                SymmetricKeyAlgorithmTags.AES_256, sessionKey).recoverSessionData(
+                PublicKeyAlgorithmTags.RSA_GENERAL, null);
+
+        int checksum = (300 * 0xff) & 0xffff;
+        assertEquals(checksum >> 8, sessionInfo[sessionInfo.length - 2] & 0xff);
+        assertEquals(checksum & 0xff, sessionInfo[sessionInfo.length - 1] & 0xff);
+    }
+
+    @Test
+    public void notRecoveredYet() {
+        SessionKeyDataDecryptorFactory factory = new SessionKeyDataDecryptorFactory(null);
+        assertEquals(-1, factory.getAlgorithm());
+        assertNull(factory.getSessionKey());
+    }
+
+    /**
+     * The checksum is verified by Spongy Castle when decrypting, so a message can only be
+     * decrypted with an exported session key if it is right.
+     */
+    @Test
+    public void exportedSessionKeyDecrypts() throws Exception {
+        ProviderHelper providerHelper = TestKeyRings.setUpProvider();
+        final long masterKeyId = TestKeyRings.save(providerHelper, "session <s@example.com>",
+                PASSPHRASE);
+        PgpDecryptVerify.PassphraseCache passphraseCache = new PgpDecryptVerify.PassphraseCache() {
+            public String getCachedPassphrase(long keyId) {
+                return keyId == masterKeyId ? PASSPHRASE : null;
+            }
+        };
+
+        byte[] plaintext = "session key test".getBytes("UTF-8");
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        new PgpSignEncrypt.Builder(providerHelper, "test",
+                new InputData(new ByteArrayInputStream(plaintext), plaintext.length), encrypted)
+                .setEncryptionMasterKeyIds(new long[]{masterKeyId})
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .build().execute();
+        byte[] ciphertext = encrypted.toByteArray();
+
+        PgpDecryptVerifyResult exported = new PgpDecryptVerify.Builder(providerHelper,
+                passphraseCache, new InputData(new ByteArrayInputStream(ciphertext),
+                ciphertext.length), new ByteArrayOutputStream())
+                .setExportSessionKey(true)
+                .build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, exported.getStatus());
+        assertEquals(PGPEncryptedData.AES_256, exported.getSessionKeyAlgorithm());
+        assertEquals(32, exported.getSessionKey().length);
+
+        // no passphrase available, only the session key
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(providerHelper,
+                new PgpDecryptVerify.PassphraseCache() {
+                    public String getCachedPassphrase(long keyId) {
+                        return null;
+                    }
+                }, new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length), out)
+                .setSessionKey(exported.getSessionKeyAlgorithm(), exported.getSessionKey())
+                .build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        assertArrayEquals(plaintext, out.toByteArray());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.provider.ApgContract.KeyRings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Benchmark of the key lookups done by OpenPgpService and the UI loaders, once alone and once
+ * while a writer imports keyrings. The lookups must return the right results in both runs, the
+ * times are only printed. Robolectric does not use the sqlite of Android, so the numbers of a
+ * device can be very different, especially for write-ahead logging.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class ApgDatabaseConcurrencyTest {
+    private static final int KEY_RINGS = 4;
+    private static final int IMPORTED_KEY_RINGS = 8;
+    private static final int READERS = 4;
+    private static final int LOOKUPS = 200;
+
+    private ProviderHelper mProviderHelper;
+    private long[] mMasterKeyIds = new long[KEY_RINGS];
+    private long[] mSubKeyIds = new long[KEY_RINGS];
+    private ArrayList<PGPKeyRing> mImportedKeyRings = new ArrayList<PGPKeyRing>();
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = TestKeyRings.setUpProvider();
+
+        for (int i = 0; i < KEY_RINGS; i++) {
+            PGPKeyRingGenerator generator = TestKeyRings.create("reader " + i + " <r@example.com>",
+                    "passphrase");
+            mProviderHelper.saveKeyRing(generator.generatePublicKeyRing(),
+                    generator.generateSecretKeyRing());
+
+            Iterator<PGPPublicKey> keys = generator.generatePublicKeyRing().getPublicKeys();
+            mMasterKeyIds[i] = keys.next().getKeyID();
+            mSubKeyIds[i] = keys.next().getKeyID();
+        }
+
+        // generated before, so that the writer only measures the import
+        for (int i = 0; i < IMPORTED_KEY_RINGS; i++) {
+            mImportedKeyRings.add(TestKeyRings.create("writer " + i + " <w@example.com>",
+                    "passphrase").generatePublicKeyRing());
+        }
+    }
+
+    @Test
+    public void readersWithAndWithoutWriter() throws Exception {
+        long alone = runReaders(null);
+        System.err.println("lookups without writer: " + alone + " ms");
+
+        final AtomicReference<Throwable> writerError = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // one transaction per keyring, like an import of single keys
+                    for (PGPKeyRing keyRing : mImportedKeyRings) {
+                        mProviderHelper.saveKeyRings(Collections.singletonList(keyRing));
+                    }
+                } catch (Throwable e) {
+                    writerError.set(e);
+                }
+            }
+        };
+        long withWriter = runReaders(writer);
+        System.err.println("lookups with writer: " + withWriter + " ms");
+
+        assertNull(writerError.get());
+        for (PGPKeyRing keyRing : mImportedKeyRings) {
+            long masterKeyId = keyRing.getPublicKey().getKeyID();
+            assertEquals(masterKeyId, mProviderHelper.getMasterKeyIdWithKeyId(masterKeyId));
+        }
+    }
+
+    /**
+     * Runs all readers until each has done its lookups, the writer is started with them
+     *
+     * @return time in milliseconds
+     */
+    private long runReaders(Thread writer) throws Exception {
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicInteger lookups = new AtomicInteger(0);
+
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < LOOKUPS; i++) {
+                            int k = i % KEY_RINGS;
+                            // subkey lookup of decryption and the summary of the key list
+                            long masterKeyId = mProviderHelper.getMasterKeyIdWithKeyId(
+                                    mSubKeyIds[k]);
+                            Object hasEncrypt = mProviderHelper.getUnifiedData(masterKeyId,
+                                    KeyRings.HAS_ENCRYPT, ProviderHelper.FIELD_TYPE_INTEGER);
+                            if (masterKeyId != mMasterKeyIds[k] || (Long) hasEncrypt == 0) {
+                                failed.set(true);
+                            }
+                            lookups.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                        failed.set(true);
+                    }
+                }
+            };
+        }
+
+        long start = System.currentTimeMillis();
+        if (writer != null) {
+            writer.start();
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        long time = System.currentTimeMillis() - start;
+        if (writer != null) {
+            writer.join();
+        }
+
+        assertEquals(false, failed.get());
+        assertEquals(READERS * LOOKUPS, lookups.get());
+        return time;
+    }
+}
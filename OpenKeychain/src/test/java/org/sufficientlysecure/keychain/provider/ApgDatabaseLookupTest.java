@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmark of the subkey lookup on a database with 50000 keyrings, before and after the
+ * keys_key_id index. Before is the correlated EXISTS query of KEY_RINGS_FIND_BY_SUBKEY without
+ * the index, after is ProviderHelper.getMasterKeyIdWithKeyId with it. The rows are inserted
+ * directly, every keyring has a master key, one subkey and one user id. The times are only
+ * printed, the lookups must return the right master key id in both runs.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class ApgDatabaseLookupTest {
+    private static final int KEY_RINGS = 50000;
+    private static final int LOOKUPS = 100;
+
+    // KEY_RINGS_FIND_BY_SUBKEY before the index, reduced to the tables used for the lookup
+    private static final String CORRELATED_QUERY = "SELECT keys.master_key_id FROM keys"
+            + " INNER JOIN user_ids ON (keys.master_key_id = user_ids.master_key_id"
+            + " AND user_ids.rank = 0)"
+            + " WHERE keys.rank = 0 AND EXISTS (SELECT 1 FROM keys AS tmp"
+            + " WHERE tmp.master_key_id = keys.master_key_id AND tmp.key_id = ?)";
+
+    private ApgProvider mProvider;
+    private ProviderHelper mProviderHelper;
+    private long[] mSubKeyIds = new long[LOOKUPS];
+    private long[] mMasterKeyIds = new long[LOOKUPS];
+
+    @Before
+    public void setUp() {
+        mProvider = new ApgProvider();
+        mProvider.onCreate();
+        ShadowContentResolver.registerProvider(ApgContract.CONTENT_AUTHORITY, mProvider);
+        mProviderHelper = new ProviderHelper(Robolectric.application);
+
+        SQLiteDatabase db = mProvider.getDb().getWritableDatabase();
+        SQLiteStatement insertKeyRing = db.compileStatement(
+                "INSERT INTO keyrings_public (master_key_id) VALUES (?)");
+        SQLiteStatement insertKey = db.compileStatement(
+                "INSERT INTO keys (master_key_id, rank, key_id) VALUES (?, ?, ?)");
+        SQLiteStatement insertUserId = db.compileStatement(
+                "INSERT INTO user_ids (master_key_id, user_id, email, rank) VALUES (?, ?, ?, 0)");
+        Random random = new Random(1);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < KEY_RINGS; i++) {
+                long masterKeyId = random.nextLong();
+                long subKeyId = random.nextLong();
+                insertKeyRing.bindLong(1, masterKeyId);
+                insertKeyRing.executeInsert();
+                insertKey.bindLong(1, masterKeyId);
+                insertKey.bindLong(2, 0);
+                insertKey.bindLong(3, masterKeyId);
+                insertKey.executeInsert();
+                insertKey.bindLong(1, masterKeyId);
+                insertKey.bindLong(2, 1);
+                insertKey.bindLong(3, subKeyId);
+                insertKey.executeInsert();
+                insertUserId.bindLong(1, masterKeyId);
+                insertUserId.bindString(2, "user " + i + " <user" + i + "@example.com>");
+                insertUserId.bindString(3, "user" + i + "@example.com");
+                insertUserId.executeInsert();
+
+                // spread the looked up keys over the whole table
+                if (i % (KEY_RINGS / LOOKUPS) == 0) {
+                    mMasterKeyIds[i / (KEY_RINGS / LOOKUPS)] = masterKeyId;
+                    mSubKeyIds[i / (KEY_RINGS / LOOKUPS)] = subKeyId;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertKeyRing.close();
+            insertKey.close();
+            insertUserId.close();
+        }
+    }
+
+    @Test
+    public void subkeyLookupBeforeAndAfter() throws Exception {
+        SQLiteDatabase db = mProvider.getDb().getWritableDatabase();
+
+        db.execSQL("DROP INDEX keys_key_id");
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < LOOKUPS; i++) {
+            Cursor cursor = db.rawQuery(CORRELATED_QUERY,
+                    new String[]{Long.toString(mSubKeyIds[i])});
+            try {
+                assertEquals(true, cursor.moveToFirst());
+                assertEquals(mMasterKeyIds[i], cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+        }
+        long before = System.currentTimeMillis() - start;
+
+        // the migration of ApgDatabase.onUpgrade
+        start = System.currentTimeMillis();
+        db.execSQL("CREATE INDEX IF NOT EXISTS keys_key_id ON keys(key_id)");
+        long migration = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertEquals(mMasterKeyIds[i], mProviderHelper.getMasterKeyIdWithKeyId(mSubKeyIds[i]));
+        }
+        long after = System.currentTimeMillis() - start;
+
+        System.err.println(KEY_RINGS + " keyrings, " + LOOKUPS + " subkey lookups");
+        System.err.println("correlated query without index: " + before + " ms");
+        System.err.println("creating the index: " + migration + " ms");
+        System.err.println("getMasterKeyIdWithKeyId with index: " + after + " ms");
+    }
+}
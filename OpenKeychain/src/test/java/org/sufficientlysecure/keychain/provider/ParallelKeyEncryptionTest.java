@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.openpgp.PGPEncryptedData;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.pgp.PgpDecryptVerify;
+import org.thialfihar.android.apg.pgp.PgpDecryptVerifyResult;
+import org.thialfihar.android.apg.pgp.PgpSignEncrypt;
+import org.thialfihar.android.apg.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmark of encrypting the session key for a growing number of recipients, once one
+ * recipient after the other and once with ParallelKeyEncryptionMethodGenerators. Every message
+ * must contain a session key packet per recipient and be decryptable, the times are only printed.
+ * Robolectric runs on the cores of the build machine, a device has fewer and slower ones.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class ParallelKeyEncryptionTest {
+    private static final int[] RECIPIENTS = {1, 8, 32, 64};
+    private static final int MESSAGES = 5;
+    private static final String PASSPHRASE = "passphrase";
+
+    private ProviderHelper mProviderHelper;
+    private long[] mMasterKeyIds = new long[RECIPIENTS[RECIPIENTS.length - 1]];
+    private byte[] mPlaintext = new byte[1024];
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = TestKeyRings.setUpProvider();
+        for (int i = 0; i < mMasterKeyIds.length; i++) {
+            mMasterKeyIds[i] = TestKeyRings.save(mProviderHelper,
+                    "recipient " + i + " <r@example.com>", PASSPHRASE);
+        }
+        Arrays.fill(mPlaintext, (byte) 'x');
+    }
+
+    @Test
+    public void sequentialAndParallel() throws Exception {
+        // warm up, so that class loading and the thread pool are not measured
+        encrypt(mMasterKeyIds, false);
+        encrypt(mMasterKeyIds, true);
+
+        for (int recipients : RECIPIENTS) {
+            long[] masterKeyIds = Arrays.copyOf(mMasterKeyIds, recipients);
+
+            byte[][] ciphertexts = new byte[2 * MESSAGES][];
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < MESSAGES; i++) {
+                ciphertexts[i] = encrypt(masterKeyIds, false);
+            }
+            long sequential = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < MESSAGES; i++) {
+                ciphertexts[MESSAGES + i] = encrypt(masterKeyIds, true);
+            }
+            long parallel = System.currentTimeMillis() - start;
+
+            for (byte[] ciphertext : ciphertexts) {
+                assertDecryptable(ciphertext, recipients);
+            }
+            System.err.println(recipients + " recipients: " + sequential / MESSAGES
+                    + " ms sequential, " + parallel / MESSAGES + " ms parallel per message");
+        }
+    }
+
+    private byte[] encrypt(long[] masterKeyIds, boolean parallel) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PgpSignEncrypt.Builder(mProviderHelper, "test",
+                new InputData(new ByteArrayInputStream(mPlaintext), mPlaintext.length), out)
+                .setEncryptionMasterKeyIds(masterKeyIds)
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .setParallelKeyEncryption(parallel)
+                .build().execute();
+        return out.toByteArray();
+    }
+
+    /**
+     * Checks the number of session key packets and decrypts with the key of the first recipient
+     */
+    private void assertDecryptable(byte[] ciphertext, int recipients) throws Exception {
+        assertEquals(recipients, PgpDecryptVerify.getEncryptionKeyIds(
+                new ByteArrayInputStream(ciphertext)).length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(mProviderHelper,
+                new PgpDecryptVerify.PassphraseCache() {
+                    @Override
+                    public String getCachedPassphrase(long masterKeyId) {
+                        return null;
+                    }
+                },
+                new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length), out)
+                .setPassphrase(PASSPHRASE)
+                .build().execute();
+        assertEquals(PgpDecryptVerifyResult.SUCCESS, result.getStatus());
+        assertArrayEquals(mPlaintext, out.toByteArray());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.service;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+import org.thialfihar.android.apg.Constants;
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.helper.Preferences;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricGradleTestRunner.class)
+public class UnlockedKeyCacheTest {
+    private static final int TTL = 60;
+
+    private UnlockedKeyCache mCache;
+    private PGPPrivateKey mPrivateKey;
+    private long mMasterKeyId;
+
+    @Before
+    public void setUp() throws Exception {
+        Preferences.getPreferences(Robolectric.application).setPassphraseCacheTtl(TTL);
+        mCache = UnlockedKeyCache.getInstance(Robolectric.application);
+        mCache.clear();
+
+        PGPSecretKey secretKey = TestKeyRings.create("cache <c@example.com>", "passphrase")
+                .generateSecretKeyRing().getSecretKey();
+        mMasterKeyId = secretKey.getKeyID();
+        mPrivateKey = secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                .build("passphrase".toCharArray()));
+    }
+
+    @Test
+    public void entryExpiresWithoutBroadcast() {
+        mCache.put(mMasterKeyId, mPrivateKey);
+        assertSame(mPrivateKey, mCache.get(mPrivateKey.getKeyID()));
+
+        SystemClock.sleep(TTL * 1000 - 1);
+        assertSame(mPrivateKey, mCache.get(mPrivateKey.getKeyID()));
+
+        SystemClock.sleep(2);
+        assertNull(mCache.get(mPrivateKey.getKeyID()));
+    }
+
+    @Test
+    public void keyRingIsRemoved() {
+        mCache.put(mMasterKeyId, mPrivateKey);
+        mCache.removeKeyRing(mMasterKeyId);
+        assertNull(mCache.get(mPrivateKey.getKeyID()));
+    }
+}
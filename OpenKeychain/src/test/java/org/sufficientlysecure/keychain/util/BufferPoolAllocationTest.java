@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.spongycastle.openpgp.PGPEncryptedData;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.TestKeyRings;
+import org.thialfihar.android.apg.pgp.PgpSignEncrypt;
+import org.thialfihar.android.apg.provider.ProviderHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmark of the bytes allocated per message, measured with the allocation counter of the
+ * HotSpot VM for the current thread. The scratch buffers are measured alone, once allocated per
+ * message like before the pool and once taken from the pool, and as part of encrypting a small
+ * message. Only the pooled buffers are asserted, the numbers are printed.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class BufferPoolAllocationTest {
+    private static final int MESSAGES = 200;
+    // PgpSignEncrypt used three buffers per message
+    private static final int BUFFERS_PER_MESSAGE = 3;
+
+    private ProviderHelper mProviderHelper;
+    private long mMasterKeyId;
+    private byte[] mPlaintext = new byte[1024];
+    private com.sun.management.ThreadMXBean mThreadBean;
+
+    @Before
+    public void setUp() throws Exception {
+        mProviderHelper = TestKeyRings.setUpProvider();
+        mMasterKeyId = TestKeyRings.save(mProviderHelper, "alloc <a@example.com>", "passphrase");
+        mThreadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private long allocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void allocationPerMessage() throws Exception {
+        // warm up, so that class loading and the first pooled buffers are not counted
+        allocateBuffers(MESSAGES);
+        obtainBuffers(MESSAGES);
+        encrypt(MESSAGES / 10);
+
+        long start = allocatedBytes();
+        int sum = allocateBuffers(MESSAGES);
+        long unpooled = (allocatedBytes() - start) / MESSAGES;
+
+        start = allocatedBytes();
+        sum += obtainBuffers(MESSAGES);
+        long pooled = (allocatedBytes() - start) / MESSAGES;
+
+        start = allocatedBytes();
+        encrypt(MESSAGES);
+        long encrypt = (allocatedBytes() - start) / MESSAGES;
+
+        System.err.println("buffers without pool: " + unpooled + " bytes per message");
+        System.err.println("buffers from pool: " + pooled + " bytes per message");
+        System.err.println("encrypting 1 KiB: " + encrypt + " bytes per message");
+
+        assertTrue(sum >= 0);
+        assertTrue(unpooled >= BUFFERS_PER_MESSAGE * BufferPool.BUFFER_SIZE);
+        assertTrue(pooled < BufferPool.BUFFER_SIZE);
+    }
+
+    /**
+     * @return something depending on the buffers, so they can not be optimized away
+     */
+    private static int allocateBuffers(int messages) {
+        int sum = 0;
+        for (int i = 0; i < messages; i++) {
+            for (int b = 0; b < BUFFERS_PER_MESSAGE; b++) {
+                byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+                buffer[i % buffer.length] = (byte) i;
+                sum += buffer[(i + 1) % buffer.length];
+            }
+        }
+        return sum;
+    }
+
+    private static int obtainBuffers(int messages) {
+        int sum = 0;
+        byte[][] buffers = new byte[BUFFERS_PER_MESSAGE][];
+        for (int i = 0; i < messages; i++) {
+            for (int b = 0; b < BUFFERS_PER_MESSAGE; b++) {
+                buffers[b] = BufferPool.obtain();
+                buffers[b][i % BufferPool.BUFFER_SIZE] = (byte) i;
+            }
+            for (int b = 0; b < BUFFERS_PER_MESSAGE; b++) {
+                sum += buffers[b][(i + 1) % BufferPool.BUFFER_SIZE];
+                BufferPool.recycle(buffers[b], true);
+            }
+        }
+        return sum;
+    }
+
+    private void encrypt(int messages) throws Exception {
+        for (int i = 0; i < messages; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+            new PgpSignEncrypt.Builder(mProviderHelper, "test",
+                    new InputData(new ByteArrayInputStream(mPlaintext), mPlaintext.length), out)
+                    .setEncryptionMasterKeyIds(new long[]{mMasterKeyId})
+                    .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                    .build().execute();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void plaintextIsZeroed() {
+        byte[] buffer = BufferPool.obtain();
+        assertEquals(BufferPool.BUFFER_SIZE, buffer.length);
+        Arrays.fill(buffer, (byte) 0x42);
+
+        BufferPool.recycle(buffer, true);
+        assertArrayEquals(new byte[BufferPool.BUFFER_SIZE], buffer);
+
+        // the pool returns the last recycled buffer first
+        assertSame(buffer, BufferPool.obtain());
+    }
+
+    @Test
+    public void ciphertextIsKept() {
+        byte[] buffer = BufferPool.obtain();
+        Arrays.fill(buffer, (byte) 0x42);
+
+        BufferPool.recycle(buffer, false);
+        byte[] obtained = BufferPool.obtain();
+        assertSame(buffer, obtained);
+        assertEquals(0x42, obtained[BufferPool.BUFFER_SIZE - 1]);
+    }
+
+    @Test
+    public void foreignBuffersAreIgnored() {
+        byte[] small = new byte[16];
+        Arrays.fill(small, (byte) 0x42);
+        BufferPool.recycle(small, true);
+        BufferPool.recycle(null, true);
+
+        // neither zeroed nor pooled
+        assertEquals(0x42, small[0]);
+        assertNotSame(small, BufferPool.obtain());
+    }
+}
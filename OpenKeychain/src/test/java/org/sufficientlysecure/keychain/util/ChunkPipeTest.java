@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkPipeTest {
+    private static final int CHUNK_SIZE = 16;
+    private static final int CAPACITY = 2;
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void copyUntilEof() throws Exception {
+        byte[] data = randomBytes(1000);
+        ChunkPipe pipe = new ChunkPipe(CHUNK_SIZE, CAPACITY);
+        Future<Void> fill = pipe.fillFrom(new ByteArrayInputStream(data));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = pipe.getInputStream();
+        byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        ChunkPipe.waitFor(fill);
+
+        assertArrayEquals(data, out.toByteArray());
+        // the end of the stream stays the end
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void singleBytes() throws Exception {
+        byte[] data = randomBytes(100);
+        ChunkPipe pipe = new ChunkPipe(CHUNK_SIZE, CAPACITY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Future<Void> drain = pipe.drainTo(out);
+
+        OutputStream pipeOut = pipe.getOutputStream();
+        for (byte b : data) {
+            pipeOut.write(b);
+        }
+        // empty chunk in between
+        pipeOut.flush();
+        pipeOut.flush();
+        pipeOut.close();
+        ChunkPipe.waitFor(drain);
+
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void emptyStream() throws Exception {
+        ChunkPipe pipe = new ChunkPipe(CHUNK_SIZE, CAPACITY);
+        pipe.getOutputStream().close();
+        assertEquals(-1, pipe.getInputStream().read());
+        assertEquals(-1, pipe.getInputStream().read());
+    }
+
+    @Test
+    public void abortBlockedWriter() throws Exception {
+        final ChunkPipe pipe = new ChunkPipe(CHUNK_SIZE, CAPACITY);
+        // nobody reads, so the writer blocks when all chunks are full
+        Future<Void> writer = runLater(new Callable<Void>() {
+            public Void call() throws IOException {
+                pipe.getOutputStream().write(new byte[CHUNK_SIZE * (CAPACITY + 1)]);
+                return null;
+            }
+        });
+        assertBlocked(writer);
+
+        pipe.abort();
+        assertFailed(writer);
+    }
+
+    @Test
+    public void abortBlockedReader() throws Exception {
+        final ChunkPipe pipe = new ChunkPipe(CHUNK_SIZE, CAPACITY);
+        // nobody writes, so the reader blocks
+        Future<Void> reader = runLater(new Callable<Void>() {
+            public Void call() throws IOException {
+                pipe.getInputStream().read();
+                return null;
+            }
+        });
+        assertBlocked(reader);
+
+        pipe.abort();
+        assertFailed(reader);
+    }
+
+    @Test
+    public void closedReaderAbortsWriter() throws Exception {
+        ChunkPipe pipe = new ChunkPipe(CHUNK_SIZE, CAPACITY);
+        pipe.getInputStream().close();
+        try {
+            pipe.getOutputStream().write(new byte[CHUNK_SIZE * (CAPACITY + 1)]);
+            fail("write after the reader is gone must fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static Future<Void> runLater(Callable<Void> callable) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Void> future = executor.submit(callable);
+        executor.shutdown();
+        return future;
+    }
+
+    private static void assertBlocked(Future<Void> future) throws Exception {
+        Thread.sleep(300);
+        assertTrue(!future.isDone());
+    }
+
+    private static void assertFailed(Future<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("aborted pipe must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
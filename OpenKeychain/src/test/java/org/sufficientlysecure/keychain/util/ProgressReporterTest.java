@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thialfihar.android.apg.util;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.thialfihar.android.apg.RobolectricGradleTestRunner;
+import org.thialfihar.android.apg.pgp.Progressable;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * SystemClock of Robolectric only advances with SystemClock.sleep(), so the times are exact.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+public class ProgressReporterTest {
+    private static final long INTERVAL = 100;
+
+    private RecordingProgressable mRecorder;
+    private ProgressReporter mReporter;
+
+    private static class RecordingProgressable implements Progressable {
+        int mMessages = 0;
+        int mUpdates = 0;
+        int mLastProgress = -1;
+        int mTransfers = 0;
+        long mBytesPerSecond = -1;
+        long mEtaSeconds = -1;
+
+        public void setProgress(String message, int current, int total) {
+            mMessages++;
+        }
+
+        public void setProgress(int resourceId, int current, int total) {
+            mMessages++;
+        }
+
+        public void setProgress(int current, int total) {
+            mUpdates++;
+            mLastProgress = current;
+        }
+
+        public void setTransferProgress(long bytes, long totalBytes, long bytesPerSecond,
+                                        long etaSeconds) {
+            mTransfers++;
+            mBytesPerSecond = bytesPerSecond;
+            mEtaSeconds = etaSeconds;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mRecorder = new RecordingProgressable();
+        mReporter = new ProgressReporter(mRecorder, INTERVAL);
+    }
+
+    @Test
+    public void progressIsThrottled() {
+        mReporter.setProgress("start", 0, 100);
+
+        for (int i = 1; i < 50; i++) {
+            mReporter.setProgress(i, 100);
+        }
+        assertEquals(0, mRecorder.mUpdates);
+
+        SystemClock.sleep(INTERVAL);
+        mReporter.setProgress(50, 100);
+        mReporter.setProgress(51, 100);
+        assertEquals(1, mRecorder.mUpdates);
+        assertEquals(50, mRecorder.mLastProgress);
+
+        // the final update is never dropped
+        mReporter.setProgress(100, 100);
+        assertEquals(2, mRecorder.mUpdates);
+        assertEquals(100, mRecorder.mLastProgress);
+    }
+
+    @Test
+    public void messagesAreNotThrottled() {
+        mReporter.setProgress("first", 0, 100);
+        mReporter.setProgress("second", 0, 100);
+        mReporter.setProgress(0, 0, 100);
+        assertEquals(3, mRecorder.mMessages);
+    }
+
+    @Test
+    public void transferRate() {
+        mReporter.setProgress("start", 0, 100);
+        mReporter.setBytes(0, 100, 0, 10000);
+
+        // 1000 bytes per second
+        SystemClock.sleep(2000);
+        mReporter.setBytes(20, 100, 2000, 10000);
+        assertEquals(1, mRecorder.mTransfers);
+        assertEquals(1000, mRecorder.mBytesPerSecond);
+        assertEquals(8, mRecorder.mEtaSeconds);
+
+        // throttled together with the progress
+        mReporter.setBytes(21, 100, 2100, 10000);
+        assertEquals(1, mRecorder.mTransfers);
+        assertEquals(1, mRecorder.mUpdates);
+    }
+
+    @Test
+    public void transferRateOfUnknownSize() {
+        mReporter.setProgress("start", 0, 100);
+        mReporter.setBytes(0, 100, 0, -1);
+
+        SystemClock.sleep(1000);
+        mReporter.setBytes(50, 100, 500, -1);
+        assertEquals(500, mRecorder.mBytesPerSecond);
+        assertEquals(-1, mRecorder.mEtaSeconds);
+    }
+}